@@ -1,15 +1,36 @@
 package com.beantalk.client;
 
+import com.beantalk.util.BinaryCodec;
+import com.beantalk.util.ConfigUtil;
+import com.beantalk.util.FileTransferUtil;
+import com.beantalk.util.FrameReader;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * Chat Client - Version với UI callbacks và Group Chat
@@ -17,13 +38,69 @@ import java.util.function.Consumer;
 public class ChatClient {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 5555;
+    // Đề nghị server dùng binary frame cho các message hay dùng (HELLO khi kết nối)
+    private static final boolean BINARY_PROTOCOL = ConfigUtil.getBoolean("protocol.binary", true);
+
+    // Upload theo chunk: kích thước mỗi chunk và số byte tối đa gửi đi mà server chưa ACK
+    // (giới hạn để tin nhắn chat không phải xếp hàng sau cả file trong socket buffer)
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    private static final long UPLOAD_WINDOW = 1024 * 1024;
+    // Server im lặng quá lâu trong lúc upload / download -> báo lỗi
+    private static final long TRANSFER_TIMEOUT_MS = 30_000;
+    // Số download chạy song song (server giới hạn 4 / kết nối)
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+    // Tự kết nối lại khi mất kết nối (nếu đã có session token): số lần thử, delay tăng gấp đôi mỗi lần
+    private static final int RECONNECT_ATTEMPTS = 6;
+    private static final long RECONNECT_BASE_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 8_000;
+    // Số hội thoại giữ trang mới nhất trong bộ nhớ, và số tin tối đa giữ cho mỗi hội thoại
+    private static final int HISTORY_CACHE_CONVERSATIONS = 50;
+    private static final int HISTORY_CACHE_MESSAGES = 200;
 
     private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private FrameReader reader;
+    private OutputStream out;
+    // Server đã trả HELLO_ACK với binary=true
+    private volatile boolean binary = false;
+    // Server đã trả HELLO_ACK với upload=true (hỗ trợ UPLOAD_START / FILE_CHUNK)
+    private volatile boolean chunkedUpload = false;
+    private final Map<Integer, PendingTransfer> pendingUploads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUploadId = new AtomicInteger(1);
+    // Server đã trả HELLO_ACK với download=true (hỗ trợ DOWNLOAD_REQUEST / FILE_DATA)
+    private volatile boolean serverDownload = false;
+    private final Map<Integer, PendingTransfer> pendingDownloads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextDownloadId = new AtomicInteger(1);
+    private final Semaphore downloadSlots = new Semaphore(MAX_PARALLEL_DOWNLOADS);
+    // Đích đang được tải (2 bubble cùng 1 ảnh chỉ tải 1 lần)
+    private final Map<String, CompletableFuture<Void>> activeDownloads = new ConcurrentHashMap<>();
+    // Server đã trả HELLO_ACK với presence=true (PRESENCE_SNAPSHOT + PRESENCE_DELTA thay cho ONLINE_USERS)
+    private volatile boolean presenceSupported = false;
+    // Danh sách online theo presence stream - chỉ thread nhận message đọc/ghi
+    private final Set<String> presenceUsers = new LinkedHashSet<>();
+    private long presenceVersion = -1;   // -1 = đang chờ snapshot
+    private final List<JsonObject> bufferedDeltas = new ArrayList<>();
+    // Trang mới nhất của các hội thoại vừa mở (key: "u:" + username / "g:" + groupId, LRU):
+    // mở lại chỉ xin các tin mới hơn tin cuối đã có (sinceMessageId)
+    private final Map<String, CachedHistory> historyCache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedHistory> eldest) {
+            return size() > HISTORY_CACHE_CONVERSATIONS;
+        }
+    };
+    // limit của request trang mới nhất gần nhất (để tải lại khi cache bị bỏ)
+    private volatile int historyPageSize = 50;
+    // Lịch sử trên đĩa của user đang đăng nhập (null = tắt / chưa đăng nhập)
+    private volatile HistoryStore historyStore;
+    // Thời điểm mở các hội thoại chưa có trong cache (đo thời gian tới khi hiện trang đầu tiên)
+    private final Map<String, Long> historyOpenedAt = new ConcurrentHashMap<>();
     private Gson gson;
     private String username;
     private int userID;
+    // Token nhận ở LOGIN_SUCCESS - dùng để RESUME khi kết nối lại, không phải gửi lại password
+    private volatile String sessionToken;
+    // disconnect() đã được gọi - không tự kết nối lại
+    private volatile boolean closing = false;
+    private volatile long resumeStartedAt;
 
     // Callbacks cho UI
     private BiConsumer<Boolean, String> loginCallback;
@@ -32,13 +109,14 @@ public class ChatClient {
     private Consumer<String> userJoinedCallback;
     private Consumer<String> userLeftCallback;
     private Consumer<List<String>> onlineUsersCallback;
+    private BiConsumer<List<String>, List<String>> presenceDeltaCallback;
     private Consumer<GroupData> groupCreatedCallback;
     private Consumer<List<GroupData>> userGroupsCallback;
     private Consumer<List<String>> groupMembersCallback;
     private BiConsumer<Integer, String> groupNameUpdatedCallback;
 
-    private Consumer<List<MessageData>> chatHistoryCallback;
-    private Consumer<List<MessageData>> groupHistoryCallback;
+    private Consumer<HistoryPage> chatHistoryCallback;
+    private Consumer<HistoryPage> groupHistoryCallback;
 
     public ChatClient() {
         this.gson = new Gson();
@@ -47,13 +125,28 @@ public class ChatClient {
     /**
      * Kết nối tới server
      */
-    public void connect() throws IOException {
+    public synchronized void connect() throws IOException {
         socket = new Socket(SERVER_HOST, SERVER_PORT);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintWriter(socket.getOutputStream(), true);
+        reader = new FrameReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        // Thỏa thuận lại với server mới (HELLO_ACK)
+        binary = false;
+        chunkedUpload = false;
+        serverDownload = false;
+        presenceSupported = false;
+        presenceVersion = -1;
+        presenceUsers.clear();
+        bufferedDeltas.clear();
 
         // Thread để nhận messages từ server
         new Thread(this::receiveMessages).start();
+
+        // Server cũ sẽ trả ERROR cho HELLO -> tiếp tục dùng JSON và SEND_FILE
+        JsonObject hello = new JsonObject();
+        hello.addProperty("type", "HELLO");
+        hello.addProperty("binary", BINARY_PROTOCOL);
+        hello.addProperty("presence", true);
+        send(hello);
     }
 
     /**
@@ -61,27 +154,120 @@ public class ChatClient {
      */
     private void receiveMessages() {
         try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                handleServerMessage(message);
+            Object frame;
+            while ((frame = reader.read()) != null) {
+                try {
+                    if (frame instanceof byte[] payload && BinaryCodec.isFileData(payload)) {
+                        handleFileData(payload);
+                        continue;
+                    }
+                    JsonObject json = frame instanceof byte[] payload
+                            ? BinaryCodec.decode(payload)
+                            : gson.fromJson((String) frame, JsonObject.class);
+                    handleServerMessage(json);
+                } catch (Exception e) {
+                    System.err.println("Error parsing message: " + e.getMessage());
+                }
             }
         } catch (IOException e) {
             System.err.println("Connection lost: " + e.getMessage());
+        } finally {
+            for (PendingTransfer upload : pendingUploads.values()) {
+                upload.fail("Connection lost");
+            }
+            for (PendingTransfer download : pendingDownloads.values()) {
+                download.fail("Connection lost");
+            }
+            if (!closing && sessionToken != null) {
+                reconnect();
+            }
         }
     }
 
+    /**
+     * Kết nối lại sau khi mất kết nối (mạng chập chờn, server restart) rồi RESUME bằng session token
+     */
+    private void reconnect() {
+        long delay = RECONNECT_BASE_DELAY_MS;
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !closing; attempt++) {
+            try {
+                Thread.sleep(delay);
+                resumeStartedAt = System.nanoTime();
+                connect();
+
+                JsonObject resume = new JsonObject();
+                resume.addProperty("type", "RESUME");
+                resume.addProperty("token", sessionToken);
+                send(resume);
+                System.out.println("🔄 Reconnected (attempt " + attempt + "), resuming session");
+                return;
+            } catch (IOException e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.err.println("Giving up reconnecting after " + RECONNECT_ATTEMPTS + " attempts");
+    }
+
     /**
      * Xử lý message từ server
      */
-    private void handleServerMessage(String message) {
+    private void handleServerMessage(JsonObject json) {
         try {
-            JsonObject json = gson.fromJson(message, JsonObject.class);
             String type = json.get("type").getAsString();
 
             switch (type) {
+                case "HELLO_ACK":
+                    binary = json.get("binary").getAsBoolean();
+                    chunkedUpload = json.has("upload") && json.get("upload").getAsBoolean();
+                    serverDownload = json.has("download") && json.get("download").getAsBoolean();
+                    presenceSupported = json.has("presence") && json.get("presence").getAsBoolean();
+                    break;
+
+                case "UPLOAD_READY":
+                case "UPLOAD_ACK":
+                case "UPLOAD_DONE":
+                case "UPLOAD_FAILED": {
+                    PendingTransfer upload = pendingUploads.get(json.get("uploadId").getAsInt());
+                    if (upload != null) {
+                        upload.update(type, json);
+                    }
+                    break;
+                }
+
+                case "DOWNLOAD_START":
+                case "DOWNLOAD_END":
+                case "DOWNLOAD_FAILED": {
+                    PendingTransfer download = pendingDownloads.get(json.get("downloadId").getAsInt());
+                    if (download != null) {
+                        download.update(type, json);
+                    }
+                    break;
+                }
+
                 case "LOGIN_SUCCESS":
-                    if (loginCallback != null) {
+                    if (json.has("sessionToken")) {
+                        sessionToken = json.get("sessionToken").getAsString();
+                    }
+                    if (json.has("resumed") && json.get("resumed").getAsBoolean()) {
+                        // Kết nối lại - UI vẫn đang mở, chỉ cần tải lại danh sách
                         this.userID = json.get("userID").getAsInt();
+                        System.out.println("✅ Session resumed in "
+                                + (System.nanoTime() - resumeStartedAt) / 1_000_000 + "ms");
+                    } else if (loginCallback != null) {
+                        this.userID = json.get("userID").getAsInt();
+                        // Có thể là tài khoản khác
+                        synchronized (historyCache) {
+                            historyCache.clear();
+                        }
+                        HistoryStore previous = historyStore;
+                        historyStore = HistoryStore.open(username, HISTORY_CACHE_MESSAGES);
+                        if (previous != null) {
+                            previous.close();
+                        }
                         loginCallback.accept(true, "Login successful");
                     }
                     // Auto request online users và groups
@@ -95,6 +281,12 @@ public class ChatClient {
                     }
                     break;
 
+                case "RESUME_FAILED":
+                    // Token hết hạn / bị thu hồi - phải đăng nhập lại bằng password
+                    sessionToken = null;
+                    System.err.println("Cannot resume session: " + json.get("message").getAsString());
+                    break;
+
                 case "REGISTER_SUCCESS":
                     if (registerCallback != null) {
                         registerCallback.accept(true, json.get("message").getAsString());
@@ -178,6 +370,7 @@ public class ChatClient {
                             String filePath = msg.has("filePath") ? msg.get("filePath").getAsString() : null;
 
                             history.add(new MessageData(
+                                    msg.has("messageId") ? msg.get("messageId").getAsInt() : 0,
                                     msg.get("sender").getAsString(),
                                     msg.get("content").getAsString(),
                                     msg.has("receiver") && !msg.get("receiver").isJsonNull() ?
@@ -188,7 +381,10 @@ public class ChatClient {
                                     filePath
                             ));
                         }
-                        chatHistoryCallback.accept(history);
+                        HistoryPage page = syncHistory(new HistoryPage(json, history));
+                        if (page != null) {
+                            chatHistoryCallback.accept(page);
+                        }
                     }
                     break;
 
@@ -205,6 +401,7 @@ public class ChatClient {
                             String filePath = msg.has("filePath") ? msg.get("filePath").getAsString() : null;
 
                             history.add(new MessageData(
+                                    msg.has("messageId") ? msg.get("messageId").getAsInt() : 0,
                                     msg.get("sender").getAsString(),
                                     msg.get("content").getAsString(),
                                     null,
@@ -214,7 +411,10 @@ public class ChatClient {
                                     filePath
                             ));
                         }
-                        groupHistoryCallback.accept(history);
+                        HistoryPage page = syncHistory(new HistoryPage(json, history));
+                        if (page != null) {
+                            groupHistoryCallback.accept(page);
+                        }
                     }
                     break;
 
@@ -243,18 +443,110 @@ public class ChatClient {
                     }
                     break;
 
+                case "PRESENCE_SNAPSHOT":
+                    handlePresenceSnapshot(json);
+                    break;
+
+                case "PRESENCE_DELTA":
+                    handlePresenceDelta(json);
+                    break;
+
                 case "ERROR":
                     System.err.println("Error: " + json.get("message").getAsString());
                     break;
 
                 default:
-                    System.out.println("Unknown message: " + message);
+                    System.out.println("Unknown message: " + json);
             }
         } catch (Exception e) {
             System.err.println("Error parsing message: " + e.getMessage());
         }
     }
 
+    /**
+     * Snapshot danh sách online - thay toàn bộ danh sách rồi áp các delta đến trong lúc chờ
+     */
+    private void handlePresenceSnapshot(JsonObject json) {
+        long version = json.get("version").getAsLong();
+        if (version >= presenceVersion) {
+            presenceVersion = version;
+            presenceUsers.clear();
+            for (JsonElement user : json.getAsJsonArray("users")) {
+                presenceUsers.add(user.getAsString());
+            }
+        }
+        // Snapshot cũ hơn các delta đã áp thì giữ nguyên trạng thái hiện tại
+        if (onlineUsersCallback != null) {
+            onlineUsersCallback.accept(new ArrayList<>(presenceUsers));
+        }
+
+        List<JsonObject> buffered = new ArrayList<>(bufferedDeltas);
+        bufferedDeltas.clear();
+        for (JsonObject delta : buffered) {
+            handlePresenceDelta(delta);
+        }
+    }
+
+    /**
+     * 1 thay đổi presence - áp nếu đúng version kế tiếp, bị nhảy version thì xin snapshot lại
+     */
+    private void handlePresenceDelta(JsonObject json) {
+        long version = json.get("version").getAsLong();
+        if (presenceVersion < 0) {
+            bufferedDeltas.add(json);
+            return;
+        }
+        if (version <= presenceVersion) {
+            return;   // đã có trong snapshot
+        }
+        if (version != presenceVersion + 1) {
+            System.out.println("Presence gap (have v" + presenceVersion + ", got v" + version + ") - resyncing");
+            presenceVersion = -1;
+            bufferedDeltas.clear();
+            bufferedDeltas.add(json);
+            requestPresence();
+            return;
+        }
+        presenceVersion = version;
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        if (json.has("joined")) {
+            for (JsonElement user : json.getAsJsonArray("joined")) {
+                if (presenceUsers.add(user.getAsString())) {
+                    joined.add(user.getAsString());
+                }
+            }
+        }
+        if (json.has("left")) {
+            for (JsonElement user : json.getAsJsonArray("left")) {
+                if (presenceUsers.remove(user.getAsString())) {
+                    left.add(user.getAsString());
+                }
+            }
+        }
+
+        for (String user : joined) {
+            if (userJoinedCallback != null) {
+                userJoinedCallback.accept(user);
+            }
+        }
+        for (String user : left) {
+            if (userLeftCallback != null) {
+                userLeftCallback.accept(user);
+            }
+        }
+        if (presenceDeltaCallback != null && (!joined.isEmpty() || !left.isEmpty())) {
+            presenceDeltaCallback.accept(joined, left);
+        }
+    }
+
+    private void requestPresence() {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", "GET_PRESENCE");
+        send(json);
+    }
+
     /**
      * Đăng nhập
      */
@@ -263,7 +555,7 @@ public class ChatClient {
         json.addProperty("type", "LOGIN");
         json.addProperty("username", username);
         json.addProperty("password", password);
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -275,7 +567,7 @@ public class ChatClient {
         json.addProperty("username", username);
         json.addProperty("password", password);
         json.addProperty("email", email);
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -290,7 +582,7 @@ public class ChatClient {
             json.addProperty("receiver", receiver);
         }
         json.addProperty("content", content);
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -308,7 +600,192 @@ public class ChatClient {
         json.addProperty("fileName", fileName);
         json.addProperty("fileData", fileBase64);
         json.addProperty("messageType", messageType);
-        writer.println(json.toString());
+        send(json);
+    }
+
+    /**
+     * Upload file theo chunk (blocking - gọi từ background thread).
+     * Đọc file từng đoạn UPLOAD_CHUNK_SIZE, nên bộ nhớ không phụ thuộc kích thước file;
+     * tin nhắn chat vẫn được gửi xen giữa các chunk.
+     * Server cũ không hỗ trợ -> gửi Base64 bằng SEND_FILE như trước.
+     */
+    public void uploadFile(File file, String receiver, Integer groupId, String messageType,
+                           LongConsumer progress) throws IOException {
+        if (!chunkedUpload) {
+            sendFile(receiver, groupId, file.getName(), FileTransferUtil.fileToBase64(file), messageType);
+            return;
+        }
+
+        int uploadId = nextUploadId.getAndIncrement();
+        PendingTransfer upload = new PendingTransfer(null);
+        pendingUploads.put(uploadId, upload);
+        boolean finished = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            JsonObject start = new JsonObject();
+            start.addProperty("type", "UPLOAD_START");
+            start.addProperty("uploadId", uploadId);
+            start.addProperty("fileName", file.getName());
+            start.addProperty("size", size);
+            start.addProperty("messageType", messageType);
+            if (groupId != null) {
+                start.addProperty("groupId", groupId);
+            } else {
+                start.addProperty("receiver", receiver);
+            }
+            send(start);
+            upload.await(() -> upload.ready);
+
+            ByteBuffer buffer = ByteBuffer.allocate(UPLOAD_CHUNK_SIZE);
+            long sent = 0;
+            while (sent < size) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    throw new IOException("File changed while uploading");
+                }
+                long next = sent + n;
+                upload.await(() -> next - upload.progress <= UPLOAD_WINDOW);
+                sendChunk(uploadId, buffer.array(), n);
+                sent = next;
+                if (progress != null) {
+                    progress.accept(upload.progress);
+                }
+            }
+
+            JsonObject end = new JsonObject();
+            end.addProperty("type", "UPLOAD_END");
+            end.addProperty("uploadId", uploadId);
+            send(end);
+            upload.await(() -> upload.done);
+            finished = true;
+            if (progress != null) {
+                progress.accept(size);
+            }
+        } finally {
+            pendingUploads.remove(uploadId);
+            if (!finished && upload.error == null) {
+                JsonObject cancel = new JsonObject();
+                cancel.addProperty("type", "UPLOAD_CANCEL");
+                cancel.addProperty("uploadId", uploadId);
+                send(cancel);
+            }
+        }
+    }
+
+    /**
+     * Tải file đã gửi trong chat từ server về target (blocking - gọi từ background thread).
+     * Dữ liệu ghi thẳng xuống target.part theo từng frame; nếu bị ngắt, lần gọi sau
+     * tải tiếp từ cuối file .part (range request) rồi đổi tên thành target.
+     */
+    public void downloadFile(String filePath, File target, LongConsumer progress) throws IOException {
+        if (!serverDownload) {
+            throw new IOException("Server does not support file download");
+        }
+
+        // Cùng đích đang được tải ở thread khác -> chờ kết quả đó
+        String key = target.getAbsolutePath();
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> other = activeDownloads.putIfAbsent(key, mine);
+        if (other != null) {
+            try {
+                other.join();
+                return;
+            } catch (Exception e) {
+                throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            }
+        }
+
+        try {
+            downloadSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            activeDownloads.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw new InterruptedIOException("Download interrupted");
+        }
+        try {
+            downloadToPart(filePath, target, progress);
+            mine.complete(null);
+        } catch (IOException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloadSlots.release();
+            activeDownloads.remove(key, mine);
+        }
+    }
+
+    private void downloadToPart(String filePath, File target, LongConsumer progress) throws IOException {
+        File part = new File(target.getPath() + ".part");
+        long offset = part.exists() ? part.length() : 0;
+
+        int downloadId = nextDownloadId.getAndIncrement();
+        boolean finished = false;
+        PendingTransfer download = null;
+        try (FileChannel channel = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.position(offset);
+            PendingTransfer current = new PendingTransfer(channel);
+            download = current;
+            current.progress = offset;
+            current.progressListener = progress;
+            pendingDownloads.put(downloadId, current);
+
+            JsonObject request = new JsonObject();
+            request.addProperty("type", "DOWNLOAD_REQUEST");
+            request.addProperty("downloadId", downloadId);
+            request.addProperty("filePath", filePath);
+            request.addProperty("offset", offset);
+            send(request);
+
+            try {
+                current.await(() -> current.done);
+                finished = true;
+            } finally {
+                pendingDownloads.remove(downloadId);
+                if (!finished && current.error == null) {
+                    JsonObject cancel = new JsonObject();
+                    cancel.addProperty("type", "DOWNLOAD_CANCEL");
+                    cancel.addProperty("downloadId", downloadId);
+                    send(cancel);
+                }
+            }
+        } catch (IOException e) {
+            // Server từ chối yêu cầu (vd. file .part không khớp range) -> lần sau tải lại từ đầu.
+            // Mất kết nối giữa chừng thì giữ .part để tải tiếp.
+            if (download != null && download.rejected) {
+                Files.deleteIfExists(part.toPath());
+            }
+            throw e;
+        }
+
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 1 frame dữ liệu download - ghi thẳng xuống file .part (trên thread nhận)
+     */
+    private void handleFileData(byte[] payload) {
+        PendingTransfer download = pendingDownloads.get(BinaryCodec.readRawFrameId(payload));
+        if (download == null) {
+            return;   // download đã bị hủy
+        }
+        try {
+            download.write(payload, BinaryCodec.CHUNK_DATA_OFFSET, payload.length - BinaryCodec.CHUNK_DATA_OFFSET);
+        } catch (IOException e) {
+            download.fail("Failed to write file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * File cache trên máy client cho 1 file của server (tên file trên server là UUID nên không trùng)
+     */
+    public static File getCachedFile(String filePath) {
+        File dir = new File(System.getProperty("user.home"), ".beantalk" + File.separator + "files");
+        dir.mkdirs();
+        return new File(dir, FileTransferUtil.getFileName(filePath));
     }
 
     /**
@@ -325,7 +802,7 @@ public class ChatClient {
         }
         json.add("members", membersArray);
 
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -334,7 +811,7 @@ public class ChatClient {
     public void getUserGroups() {
         JsonObject json = new JsonObject();
         json.addProperty("type", "GET_USER_GROUPS");
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -344,7 +821,7 @@ public class ChatClient {
         JsonObject json = new JsonObject();
         json.addProperty("type", "GET_GROUP_MEMBERS");
         json.addProperty("groupId", groupId);
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
@@ -355,44 +832,265 @@ public class ChatClient {
         json.addProperty("type", "RENAME_GROUP");
         json.addProperty("groupId", groupId);
         json.addProperty("newName", newName);
-        writer.println(json.toString());
+        send(json);
     }
 
     /**
-     * Lấy lịch sử chat với user
+     * Lấy lịch sử chat với user (đã mở trước đó thì chỉ xin các tin mới hơn)
      */
     public void getChatHistory(String otherUsername, int limit) {
+        getChatHistory(otherUsername, limit, null);
+    }
+
+    /**
+     * Lấy 1 trang lịch sử chat cũ hơn beforeMessageId (null = trang mới nhất)
+     */
+    public void getChatHistory(String otherUsername, int limit, Integer beforeMessageId) {
+        getChatHistory(otherUsername, limit, beforeMessageId, null);
+    }
+
+    /**
+     * Lấy 1 trang lịch sử chat cũ hơn beforeMessageId hoặc mới hơn afterMessageId
+     */
+    public void getChatHistory(String otherUsername, int limit, Integer beforeMessageId, Integer afterMessageId) {
         JsonObject json = new JsonObject();
         json.addProperty("type", "GET_CHAT_HISTORY");
         json.addProperty("username", otherUsername);
         json.addProperty("limit", limit);
-        writer.println(json.toString());
+        addCursor(json, beforeMessageId, afterMessageId);
+        if (beforeMessageId == null && afterMessageId == null) {
+            openHistory(json, otherUsername, null, chatHistoryCallback);
+        } else {
+            send(json);
+        }
     }
 
     /**
-     * Lấy lịch sử chat của group
+     * Lấy lịch sử chat của group (đã mở trước đó thì chỉ xin các tin mới hơn)
      */
     public void getGroupHistory(int groupId, int limit) {
+        getGroupHistory(groupId, limit, null);
+    }
+
+    /**
+     * Lấy 1 trang lịch sử group cũ hơn beforeMessageId (null = trang mới nhất)
+     */
+    public void getGroupHistory(int groupId, int limit, Integer beforeMessageId) {
+        getGroupHistory(groupId, limit, beforeMessageId, null);
+    }
+
+    /**
+     * Lấy 1 trang lịch sử group cũ hơn beforeMessageId hoặc mới hơn afterMessageId
+     */
+    public void getGroupHistory(int groupId, int limit, Integer beforeMessageId, Integer afterMessageId) {
         JsonObject json = new JsonObject();
         json.addProperty("type", "GET_GROUP_HISTORY");
         json.addProperty("groupId", groupId);
         json.addProperty("limit", limit);
-        writer.println(json.toString());
+        addCursor(json, beforeMessageId, afterMessageId);
+        if (beforeMessageId == null && afterMessageId == null) {
+            openHistory(json, null, groupId, groupHistoryCallback);
+        } else {
+            send(json);
+        }
+    }
+
+    private static void addCursor(JsonObject json, Integer beforeMessageId, Integer afterMessageId) {
+        if (beforeMessageId != null) {
+            json.addProperty("beforeMessageId", beforeMessageId);
+        }
+        if (afterMessageId != null) {
+            json.addProperty("afterMessageId", afterMessageId);
+        }
+    }
+
+    /**
+     * Mở trang mới nhất: hội thoại đã có trong cache (bộ nhớ, hoặc file của HistoryStore) thì đưa
+     * ngay các tin đã có cho UI, không chờ server, rồi chỉ xin các tin mới hơn tin cuối đã có
+     * (sinceMessageId) - không có gì mới thì response rỗng và UI không phải vẽ lại.
+     * File được đọc trên thread của HistoryStore (không chặn EDT); request chỉ gửi đi sau khi
+     * đọc xong để biết sinceMessageId. Callback của UI tự chuyển sang EDT (invokeLater).
+     */
+    private void openHistory(JsonObject json, String otherUsername, Integer groupId, Consumer<HistoryPage> callback) {
+        long start = System.nanoTime();
+        String key = historyKey(otherUsername, groupId);
+        historyPageSize = json.get("limit").getAsInt();
+
+        CachedHistory cached;
+        synchronized (historyCache) {
+            cached = historyCache.get(key);
+        }
+        HistoryStore store = historyStore;
+        if (cached != null || store == null) {
+            showCachedHistory(json, otherUsername, groupId, callback, key, cached, "memory", start);
+            send(json);
+            return;
+        }
+
+        store.load(key).thenAccept(snapshot -> {
+            if (store != historyStore) {
+                return;   // đã đăng xuất / đăng nhập user khác trong lúc đọc
+            }
+            CachedHistory loaded = null;
+            if (snapshot != null) {
+                synchronized (historyCache) {
+                    loaded = historyCache.get(key);   // có thể đã được mở lại từ bộ nhớ trong lúc đọc
+                    if (loaded == null) {
+                        loaded = new CachedHistory(snapshot.messages, snapshot.hasMore);
+                        historyCache.put(key, loaded);
+                    }
+                }
+            }
+            showCachedHistory(json, otherUsername, groupId, callback, key, loaded, "disk", start);
+            send(json);
+        });
+    }
+
+    /**
+     * Đưa trang trong cache cho UI và thêm sinceMessageId vào request; chưa có cache thì
+     * ghi lại thời điểm mở để đo thời gian tới khi trang từ server hiện ra
+     */
+    private void showCachedHistory(JsonObject json, String otherUsername, Integer groupId,
+                                   Consumer<HistoryPage> callback, String key, CachedHistory cached,
+                                   String source, long start) {
+        if (cached == null) {
+            historyOpenedAt.put(key, start);
+            return;
+        }
+
+        if (cached.lastMessageId > 0) {
+            json.addProperty("sinceMessageId", cached.lastMessageId);
+        }
+        if (callback != null) {
+            callback.accept(new HistoryPage(otherUsername, groupId, cached.messages, cached.hasMore));
+        }
+        System.out.println("⚡ History " + key + ": " + cached.messages.size() + " cached messages shown in "
+                + (System.nanoTime() - start) / 1_000 + " us (" + source + "), syncing since #" + cached.lastMessageId);
+    }
+
+    private static String historyKey(String otherUsername, Integer groupId) {
+        return otherUsername != null ? "u:" + otherUsername : "g:" + groupId;
+    }
+
+    /**
+     * Cập nhật cache theo trang vừa nhận, trả về trang cần đưa cho UI (null = không có gì mới để hiện):
+     *   - trang mới nhất: thay cache (và file)
+     *   - trả lời sync: nối các tin mới vào trang trong cache (và cuối file) rồi đưa cả trang cho UI
+     *     như trang mới nhất; tooFarBehind (quá nhiều tin mới) thì server đã trả luôn trang mới nhất
+     *   - trang cuộn (before / after): giữ nguyên cache
+     */
+    private HistoryPage syncHistory(HistoryPage page) {
+        if ((page.username == null && page.groupId == null)
+                || page.beforeMessageId != null || page.afterMessageId != null) {
+            return page;
+        }
+        String key = historyKey(page.username, page.groupId);
+        HistoryStore store = historyStore;
+        CachedHistory current;
+        synchronized (historyCache) {
+            CachedHistory cached = historyCache.get(key);
+            if (page.sinceMessageId == null || page.tooFarBehind) {
+                current = new CachedHistory(page.messages, page.hasMore);
+                if (store != null) {
+                    store.replace(key, current.messages, current.hasMore);
+                }
+            } else if (cached != null) {
+                List<MessageData> added = new ArrayList<>();
+                for (MessageData msg : page.messages) {
+                    if (msg.messageId > cached.lastMessageId) {
+                        added.add(msg);
+                    }
+                }
+                if (added.isEmpty()) {
+                    return null;   // UI đang hiện đúng trang trong cache
+                }
+                current = cached.merge(added);
+                if (store != null) {
+                    store.append(key, added);
+                }
+            } else {
+                current = null;
+            }
+            if (current != null) {
+                historyCache.put(key, current);
+            }
+        }
+
+        if (current == null) {
+            // Cache bị bỏ (LRU / đăng nhập lại) trong lúc chờ - tải lại trang mới nhất
+            if (page.username != null) {
+                getChatHistory(page.username, historyPageSize);
+            } else {
+                getGroupHistory(page.groupId, historyPageSize);
+            }
+            return null;
+        }
+        Long openedAt = historyOpenedAt.remove(key);
+        if (openedAt != null) {
+            System.out.println("📜 History " + key + ": " + current.messages.size() + " messages shown in "
+                    + (System.nanoTime() - openedAt) / 1_000_000 + "ms (server)");
+        }
+        return new HistoryPage(page.username, page.groupId, current.messages, current.hasMore);
     }
 
     /**
      * Lấy danh sách users online
      */
     public void getOnlineUsers() {
+        if (presenceSupported) {
+            // Server mới: snapshot 1 lần, sau đó chỉ nhận delta
+            requestPresence();
+            return;
+        }
         JsonObject json = new JsonObject();
         json.addProperty("type", "GET_ONLINE_USERS");
-        writer.println(json.toString());
+        send(json);
+    }
+
+    /**
+     * Gửi message - binary frame nếu server đã đồng ý và type được hỗ trợ, ngược lại JSON line
+     */
+    private synchronized void send(JsonObject json) {
+        try {
+            byte[] frame = binary ? BinaryCodec.encode(json) : null;
+            if (frame != null) {
+                out.write(frame);
+            } else {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error sending message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gửi 1 chunk file - header rồi dữ liệu, không copy sang mảng mới
+     */
+    private synchronized void sendChunk(int uploadId, byte[] data, int length) throws IOException {
+        out.write(BinaryCodec.rawFrameHeader(BinaryCodec.FILE_CHUNK, uploadId, length));
+        out.write(data, 0, length);
+        out.flush();
     }
 
     /**
      * Disconnect
      */
     public void disconnect() {
+        closing = true;
+        HistoryStore store = historyStore;
+        if (store != null) {
+            // Ghi nốt lịch sử đang chờ xuống đĩa
+            store.close();
+        }
+        if (sessionToken != null && socket != null && !socket.isClosed()) {
+            // Thu hồi token trên server
+            JsonObject logout = new JsonObject();
+            logout.addProperty("type", "LOGOUT");
+            send(logout);
+            sessionToken = null;
+        }
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -428,6 +1126,13 @@ public class ChatClient {
         this.onlineUsersCallback = callback;
     }
 
+    /**
+     * Thay đổi danh sách online (joined, left) - chỉ gọi khi server hỗ trợ presence delta
+     */
+    public void setPresenceDeltaCallback(BiConsumer<List<String>, List<String>> callback) {
+        this.presenceDeltaCallback = callback;
+    }
+
     public void setGroupCreatedCallback(Consumer<GroupData> callback) {
         this.groupCreatedCallback = callback;
     }
@@ -445,10 +1150,21 @@ public class ChatClient {
     }
 
     public void setChatHistoryCallback(Consumer<List<MessageData>> callback) {
-        this.chatHistoryCallback = callback;
+        this.chatHistoryCallback = page -> callback.accept(page.messages);
     }
 
     public void setGroupHistoryCallback(Consumer<List<MessageData>> callback) {
+        this.groupHistoryCallback = page -> callback.accept(page.messages);
+    }
+
+    /**
+     * Nhận cả trang lịch sử kèm cursor (beforeMessageId / afterMessageId) và hasMore
+     */
+    public void setChatHistoryPageCallback(Consumer<HistoryPage> callback) {
+        this.chatHistoryCallback = callback;
+    }
+
+    public void setGroupHistoryPageCallback(Consumer<HistoryPage> callback) {
         this.groupHistoryCallback = callback;
     }
 
@@ -475,6 +1191,8 @@ public class ChatClient {
         public final String messageType;
         public final String fileName;
         public final String filePath;
+        // message_id trên server (0 = chưa biết, VD: NEW_MESSAGE realtime)
+        public final int messageId;
 
         public MessageData(String sender, String content, String receiver, Integer groupId) {
             this(sender, content, receiver, groupId, "TEXT", null, null);
@@ -482,6 +1200,12 @@ public class ChatClient {
 
         public MessageData(String sender, String content, String receiver, Integer groupId,
                            String messageType, String fileName, String filePath) {
+            this(0, sender, content, receiver, groupId, messageType, fileName, filePath);
+        }
+
+        public MessageData(int messageId, String sender, String content, String receiver, Integer groupId,
+                           String messageType, String fileName, String filePath) {
+            this.messageId = messageId;
             this.sender = sender;
             this.content = content;
             this.receiver = receiver;
@@ -492,6 +1216,171 @@ public class ChatClient {
         }
     }
 
+    /**
+     * 1 trang lịch sử (CHAT_HISTORY / GROUP_HISTORY), tin cũ trước
+     */
+    public static class HistoryPage {
+        public final String username;            // chat 1-1, null với group
+        public final Integer groupId;            // group, null với chat 1-1
+        public final List<MessageData> messages;
+        // Cursor của request (cả 2 null = trang mới nhất)
+        public final Integer beforeMessageId;
+        public final Integer afterMessageId;
+        // Còn tin theo hướng đang tải; server cũ không phân trang -> false
+        public final boolean hasMore;
+        // Trả lời sync: id tin cuối client đã có, messages chỉ gồm các tin mới hơn;
+        // tooFarBehind = có quá nhiều tin mới, messages là trang mới nhất
+        public final Integer sinceMessageId;
+        public final boolean tooFarBehind;
+
+        HistoryPage(JsonObject json, List<MessageData> messages) {
+            this.username = json.has("username") ? json.get("username").getAsString() : null;
+            this.groupId = json.has("groupId") ? json.get("groupId").getAsInt() : null;
+            this.messages = messages;
+            this.beforeMessageId = json.has("beforeMessageId") ? json.get("beforeMessageId").getAsInt() : null;
+            this.afterMessageId = json.has("afterMessageId") ? json.get("afterMessageId").getAsInt() : null;
+            this.hasMore = json.has("hasMore") && json.get("hasMore").getAsBoolean();
+            this.sinceMessageId = json.has("sinceMessageId") ? json.get("sinceMessageId").getAsInt() : null;
+            this.tooFarBehind = json.has("tooFarBehind") && json.get("tooFarBehind").getAsBoolean();
+        }
+
+        /**
+         * Trang mới nhất dựng từ cache của client
+         */
+        HistoryPage(String username, Integer groupId, List<MessageData> messages, boolean hasMore) {
+            this.username = username;
+            this.groupId = groupId;
+            this.messages = messages;
+            this.beforeMessageId = null;
+            this.afterMessageId = null;
+            this.hasMore = hasMore;
+            this.sinceMessageId = null;
+            this.tooFarBehind = false;
+        }
+    }
+
+    /**
+     * Trang mới nhất của 1 hội thoại trong historyCache (không sửa sau khi tạo)
+     */
+    private static class CachedHistory {
+        final List<MessageData> messages;
+        final boolean hasMore;
+        final int lastMessageId;   // 0 = không có tin nào có id (server cũ)
+
+        CachedHistory(List<MessageData> messages, boolean hasMore) {
+            this.messages = List.copyOf(messages);
+            this.hasMore = hasMore;
+            int last = 0;
+            for (MessageData msg : messages) {
+                last = Math.max(last, msg.messageId);
+            }
+            this.lastMessageId = last;
+        }
+
+        /**
+         * Nối các tin mới hơn lastMessageId (bỏ tin trùng), giữ tối đa HISTORY_CACHE_MESSAGES tin mới nhất
+         */
+        CachedHistory merge(List<MessageData> newer) {
+            List<MessageData> merged = new ArrayList<>(messages);
+            for (MessageData msg : newer) {
+                if (msg.messageId > lastMessageId) {
+                    merged.add(msg);
+                }
+            }
+            int window = hasMore ? messages.size() : HISTORY_CACHE_MESSAGES;
+            int overflow = merged.size() - Math.max(window, 1);
+            if (overflow <= 0) {
+                return merged.size() == messages.size() ? this : new CachedHistory(merged, hasMore);
+            }
+            return new CachedHistory(merged.subList(overflow, merged.size()), true);
+        }
+    }
+
+    /**
+     * Trạng thái 1 upload / download đang chờ phản hồi từ server
+     */
+    private static class PendingTransfer {
+        private final FileChannel file;   // chỉ có với download
+        boolean ready;
+        boolean done;
+        boolean rejected;                 // server trả FAILED trước khi bắt đầu
+        volatile long progress;           // upload: số byte server đã ACK, download: số byte đã ghi
+        volatile String error;
+        LongConsumer progressListener;
+        private long lastActivity = System.currentTimeMillis();
+
+        PendingTransfer(FileChannel file) {
+            this.file = file;
+        }
+
+        synchronized void update(String type, JsonObject json) {
+            switch (type) {
+                case "UPLOAD_READY":
+                case "DOWNLOAD_START":
+                    ready = true;
+                    break;
+                case "UPLOAD_ACK":
+                    progress = json.get("received").getAsLong();
+                    break;
+                case "UPLOAD_DONE":
+                case "DOWNLOAD_END":
+                    done = true;
+                    break;
+                default:
+                    error = json.get("message").getAsString();
+                    rejected = !ready;
+            }
+            touch();
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            progress += length;
+            if (progressListener != null) {
+                progressListener.accept(progress);
+            }
+            synchronized (this) {
+                touch();
+            }
+        }
+
+        synchronized void fail(String message) {
+            if (error == null) {
+                error = message;
+            }
+            notifyAll();
+        }
+
+        private void touch() {
+            lastActivity = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        /**
+         * Chờ tới khi điều kiện đúng; lỗi hoặc server im lặng quá TRANSFER_TIMEOUT_MS -> IOException
+         */
+        synchronized void await(BooleanSupplier condition) throws IOException {
+            while (error == null && !condition.getAsBoolean()) {
+                long remaining = lastActivity + TRANSFER_TIMEOUT_MS - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Server did not respond");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Transfer interrupted");
+                }
+            }
+            if (error != null) {
+                throw new IOException(error);
+            }
+        }
+    }
+
     /**
      * Data class cho group
      */
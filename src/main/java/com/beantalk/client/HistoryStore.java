@@ -0,0 +1,449 @@
+package com.beantalk.client;
+
+import com.beantalk.util.ConfigUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Lịch sử chat lưu trên đĩa của client: mỗi hội thoại 1 file append-only trong
+ * ~/.beantalk/u_&lt;username&gt;/ (client.historyCache.dir). Lần đầu mở 1 hội thoại sau khi đăng nhập,
+ * ChatClient đọc file để hiện ngay các tin đã có mà không phải chờ server, rồi chỉ xin các tin
+ * mới hơn tin cuối trong file (sinceMessageId).
+ *
+ * File: MAGIC + VERSION, sau đó là các record [int độ dài][byte loại][dữ liệu]:
+ *   - HAS_MORE: còn tin cũ hơn tin đầu tiên trong file hay không (record đầu tiên)
+ *   - MESSAGE: 1 tin, message_id tăng dần
+ * Trang mới nhất mới (tooFarBehind...) thì ghi lại cả file (file tạm + rename), tin mới từ sync
+ * thì nối vào cuối. Record cuối ghi dở (tắt máy giữa chừng) bị cắt bỏ khi đọc; file có nhiều
+ * hơn 2 lần maxMessages tin thì được ghi lại chỉ với maxMessages tin mới nhất.
+ *
+ * Mọi lần đọc / ghi chạy tuần tự trên 1 thread riêng: thread nhận message không phải chờ đĩa,
+ * và lần đọc luôn thấy mọi lần ghi trước đó. Nội dung tin không mã hóa nên mặc định tắt
+ * (client.historyCache.enabled=false); khi bật, thư mục chỉ chủ tài khoản hệ điều hành được đọc
+ * (nếu hệ thống file hỗ trợ POSIX).
+ */
+class HistoryStore {
+    private static final boolean ENABLED = ConfigUtil.getBoolean("client.historyCache.enabled", false);
+    private static final int MAGIC = 0x42544843;   // "BTHC"
+    private static final byte VERSION = 1;
+    private static final byte HAS_MORE = 1;
+    private static final byte MESSAGE = 2;
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * Các tin đã lưu của 1 hội thoại (tối đa maxMessages tin mới nhất)
+     */
+    static final class Snapshot {
+        final List<ChatClient.MessageData> messages;
+        final boolean hasMore;
+
+        Snapshot(List<ChatClient.MessageData> messages, boolean hasMore) {
+            this.messages = messages;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private final Path dir;
+    private final int maxMessages;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-store");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Metrics
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    HistoryStore(Path dir, int maxMessages) {
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Store của user vừa đăng nhập, null nếu tắt (client.historyCache.enabled=false).
+     * Tên thư mục có tiền tố cố định nên username như "." / ".." không trỏ ra ngoài thư mục gốc.
+     */
+    static HistoryStore open(String username, int maxMessages) {
+        if (!ENABLED || username == null) {
+            return null;
+        }
+        String base = ConfigUtil.get("client.historyCache.dir", "");
+        Path root = base.isEmpty() ? Path.of(System.getProperty("user.home"), ".beantalk") : Path.of(base);
+        return new HistoryStore(root.resolve("u_" + fileName(username)), maxMessages);
+    }
+
+    /**
+     * Đọc hội thoại trên thread io (sau mọi lần ghi trước đó) mà không chặn thread gọi;
+     * kết quả null nếu chưa có file, lỗi hoặc store đã đóng
+     */
+    CompletableFuture<Snapshot> load(String key) {
+        CompletableFuture<Snapshot> result = new CompletableFuture<>();
+        try {
+            io.execute(() -> {
+                try {
+                    result.complete(read(key));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("History cache read failed (" + key + "): " + e);
+                    result.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.complete(null);   // đã đóng
+        }
+        return result;
+    }
+
+    /**
+     * Ghi lại cả hội thoại (trang mới nhất mới từ server)
+     */
+    void replace(String key, List<ChatClient.MessageData> messages, boolean hasMore) {
+        submit(key, () -> write(key, messages, hasMore));
+    }
+
+    /**
+     * Nối các tin mới (id lớn hơn mọi tin đã lưu) vào cuối file
+     */
+    void append(String key, List<ChatClient.MessageData> messages) {
+        submit(key, () -> appendRecords(key, messages));
+    }
+
+    /**
+     * Ghi nốt các thay đổi đang chờ rồi dừng thread
+     */
+    void close() {
+        io.shutdown();
+        try {
+            io.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+
+    private void submit(String key, IoTask task) {
+        try {
+            io.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    System.err.println("History cache write failed (" + key + "): " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // đã đóng (đăng xuất) - bỏ qua
+        }
+    }
+
+    // ============ FILE FORMAT (chỉ chạy trên thread io) ============
+
+    private Snapshot read(String key) throws IOException {
+        Path file = file(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        bytesRead.add(buffer.limit());
+        if (buffer.remaining() < 5 || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            Files.deleteIfExists(file);   // hỏng hoặc định dạng khác
+            return null;
+        }
+
+        ArrayDeque<ChatClient.MessageData> messages = new ArrayDeque<>();
+        boolean hasMore = false;
+        boolean dropped = false;
+        int records = 0;
+        int valid = buffer.position();
+        try {
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 1 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                byte kind = record.get();
+                if (kind == HAS_MORE) {
+                    hasMore = record.get() != 0;
+                } else if (kind == MESSAGE) {
+                    messages.add(readMessage(record));
+                    if (messages.size() > maxMessages) {
+                        messages.removeFirst();
+                        dropped = true;
+                    }
+                    records++;
+                }
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // record hỏng - giữ các record trước đó
+        }
+
+        if (valid < buffer.limit()) {
+            // Record cuối ghi dở - cắt bỏ để lần append sau nối đúng chỗ
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        Snapshot snapshot = new Snapshot(new ArrayList<>(messages), hasMore || dropped);
+        if (records > 2 * maxMessages) {
+            write(key, snapshot.messages, snapshot.hasMore);
+        }
+        loads.increment();
+        loadNanos.add(System.nanoTime() - start);
+        return snapshot;
+    }
+
+    private void write(String key, List<ChatClient.MessageData> messages, boolean hasMore) throws IOException {
+        createDirectory();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + messages.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        RecordWriter records = new RecordWriter();
+        records.hasMore(hasMore).writeTo(out);
+        for (ChatClient.MessageData msg : messages) {
+            records.message(msg).writeTo(out);
+        }
+
+        Path file = file(key);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesWritten.add(bytes.size());
+    }
+
+    private void appendRecords(String key, List<ChatClient.MessageData> messages) throws IOException {
+        Path file = file(key);
+        if (!Files.exists(file)) {
+            return;   // lần ghi trang mới nhất bị lỗi - không có gì để nối vào
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(messages.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        RecordWriter records = new RecordWriter();
+        for (ChatClient.MessageData msg : messages) {
+            records.message(msg).writeTo(out);
+        }
+        Files.write(file, bytes.toByteArray(), StandardOpenOption.APPEND);
+        bytesWritten.add(bytes.size());
+    }
+
+    /**
+     * Dựng 1 record trong buffer dùng lại, ghi kèm độ dài
+     */
+    private static final class RecordWriter {
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        private final DataOutputStream out = new DataOutputStream(record);
+
+        RecordWriter hasMore(boolean hasMore) throws IOException {
+            record.reset();
+            out.writeByte(HAS_MORE);
+            out.writeBoolean(hasMore);
+            return this;
+        }
+
+        RecordWriter message(ChatClient.MessageData msg) throws IOException {
+            record.reset();
+            out.writeByte(MESSAGE);
+            out.writeInt(msg.messageId);
+            out.writeInt(msg.groupId != null ? msg.groupId : 0);
+            writeString(msg.sender);
+            writeString(msg.content);
+            writeString(msg.receiver);
+            writeString(msg.messageType);
+            writeString(msg.fileName);
+            writeString(msg.filePath);
+            return this;
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeInt(record.size());
+            record.writeTo(target);
+        }
+    }
+
+    private static ChatClient.MessageData readMessage(ByteBuffer record) {
+        int messageId = record.getInt();
+        int groupId = record.getInt();
+        String sender = readString(record);
+        String content = readString(record);
+        String receiver = readString(record);
+        String messageType = readString(record);
+        String fileName = readString(record);
+        String filePath = readString(record);
+        return new ChatClient.MessageData(messageId, sender, content, receiver,
+                groupId != 0 ? groupId : null, messageType, fileName, filePath);
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > record.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(record.array(), record.arrayOffset() + record.position(), length,
+                StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    private void createDirectory() throws IOException {
+        if (Files.isDirectory(dir)) {
+            return;
+        }
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    /**
+     * Key của ChatClient ("u:" + username / "g:" + groupId) -> tên file an toàn trên mọi hệ điều hành
+     */
+    private Path file(String key) {
+        return dir.resolve(fileName(key.replace(':', '_')) + SUFFIX);
+    }
+
+    private static String fileName(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace("*", "%2A");
+    }
+
+    // ============ METRICS ============
+
+    long getLoads() {
+        return loads.sum();
+    }
+
+    long getLoadMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(loadNanos.sum());
+    }
+
+    long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    // self-test trong thư mục tạm: ghi trang mới nhất, nối tin mới, record ghi dở, compact,
+    // và thời gian đọc 1 hội thoại 200 tin (thứ phải chờ trước khi hiện hội thoại)
+    public static void main(String[] args) throws IOException {
+        System.out.println("=== HISTORY STORE TEST ===\n");
+
+        Path dir = Files.createTempDirectory("beantalk-history");
+        HistoryStore store = new HistoryStore(dir, 5);
+        String chat = "u:bob";
+
+        store.replace(chat, List.of(message(1), message(2), message(3)), true);
+        store.append(chat, List.of(message(4)));
+        Snapshot snapshot = store.load(chat).join();
+        System.out.println("1. Replace + append: " + ids(snapshot) + ", hasMore = " + snapshot.hasMore);
+
+        // Tắt máy giữa lúc đang ghi: record cuối chỉ có một nửa
+        Path file = store.file(chat);
+        byte[] torn = new byte[]{0, 0, 0, 100, MESSAGE, 0, 0};
+        Files.write(file, torn, StandardOpenOption.APPEND);
+        long tornSize = Files.size(file);
+        snapshot = store.load(chat).join();
+        System.out.println("2. Torn tail: " + ids(snapshot) + ", file " + tornSize + " -> " + Files.size(file) + " bytes");
+
+        // Nối quá 2 lần maxMessages -> chỉ giữ 5 tin mới nhất, file được ghi lại
+        List<ChatClient.MessageData> newer = new ArrayList<>();
+        for (int id = 5; id <= 12; id++) {
+            newer.add(message(id));
+        }
+        store.append(chat, newer);
+        Snapshot missing = store.load("g:7").join();   // chạy sau lần append trên thread io
+        long before = Files.size(file);
+        snapshot = store.load(chat).join();
+        System.out.println("3. Compact: " + ids(snapshot) + ", hasMore = " + snapshot.hasMore
+                + ", file " + before + " -> " + Files.size(file) + " bytes");
+
+        System.out.println("4. Missing conversation: " + missing);
+        store.close();
+
+        // Đọc 1 hội thoại 200 tin
+        HistoryStore big = new HistoryStore(dir, 200);
+        List<ChatClient.MessageData> page = new ArrayList<>();
+        for (int id = 1; id <= 200; id++) {
+            page.add(message(id));
+        }
+        big.replace("g:42", page, true);
+        for (int round = 0; round < 50; round++) {   // warm up
+            big.load("g:42").join();
+        }
+        long loadsBefore = big.getLoads();
+        long microsBefore = big.getLoadMicros();
+        long start = System.nanoTime();
+        for (int round = 0; round < 100; round++) {
+            big.load("g:42").join();
+        }
+        long nanos = (System.nanoTime() - start) / 100;
+        System.out.println("5. Load 200 messages (" + Files.size(big.file("g:42")) + " bytes): "
+                + (big.getLoadMicros() - microsBefore) / (big.getLoads() - loadsBefore) + " us read+decode, "
+                + TimeUnit.NANOSECONDS.toMicros(nanos) + " us including hand-off to the io thread");
+        big.close();
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+
+    private static ChatClient.MessageData message(int id) {
+        return new ChatClient.MessageData(id, id % 2 == 0 ? "alice" : "bob", "tin nhắn số " + id + " 👋",
+                id % 2 == 0 ? "bob" : "alice", null, "TEXT", null, null);
+    }
+
+    private static String ids(Snapshot snapshot) {
+        List<Integer> ids = new ArrayList<>();
+        for (ChatClient.MessageData msg : snapshot.messages) {
+            ids.add(msg.messageId);
+        }
+        return ids.toString();
+    }
+}
@@ -12,6 +12,8 @@ public class Message {
     private String messageType;
     private String filePath;
     private LocalDateTime sentAt;
+    // username nguoi gui (chi co khi DAO da resolve, VD: lich su group)
+    private String senderUsername;
 
     // constructor day du
     public Message (int messageID, int senderID, Integer receiverID, Integer groupID, String contentEncrypted, String messageType, String filePath, LocalDateTime sentAt) {
@@ -60,4 +62,7 @@ public class Message {
 
     public LocalDateTime getSentAt() { return sentAt; }
     public void setSentAt(LocalDateTime sentAt) { this.sentAt = sentAt; }
+
+    public String getSenderUsername() { return senderUsername; }
+    public void setSenderUsername(String senderUsername) { this.senderUsername = senderUsername; }
 }
@@ -0,0 +1,195 @@
+package com.beantalk.server;
+
+import com.beantalk.util.ConfigUtil;
+import com.beantalk.util.SecurityUtil;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Pool riêng cho BCrypt (login / register).
+ * BCrypt cố ý tốn CPU (~50-100ms mỗi lần) - chạy trên thread đọc / worker NIO thì 1 đợt
+ * login dồn dập sẽ chiếm hết CPU và làm chậm tin nhắn của user đã đăng nhập.
+ * Pool có số thread và hàng đợi giới hạn; hàng đợi đầy thì từ chối ngay để client thử lại sau.
+ *
+ * Phần xử lý sau khi hash xong (database, broadcast) chạy trên virtual thread,
+ * không chiếm chỗ của BCrypt.
+ */
+class AuthWorkers {
+    private static final int THREADS = ConfigUtil.get("auth.workers", "").isEmpty()
+            ? Math.max(1, Runtime.getRuntime().availableProcessors() / 2)
+            : ConfigUtil.getInt("auth.workers", 1);
+    private static final int QUEUE_SIZE = ConfigUtil.getInt("auth.queueSize", 256);
+    // Gợi ý cho client khi bị từ chối
+    static final long RETRY_AFTER_MS = ConfigUtil.getLong("auth.retryAfterMs", 2000);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, QUEUE_SIZE)),
+            r -> {
+                Thread t = new Thread(r, "auth-worker-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    private static final ExecutorService continuations = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Metrics
+    private static final LongAdder completed = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder hashNanos = new LongAdder();
+    private static final LongAdder waitNanos = new LongAdder();
+    private static final AtomicLong maxHashNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Chạy task trên pool; future hoàn thành trên virtual thread.
+     * Ném RejectedExecutionException nếu hàng đợi đã đầy.
+     */
+    static <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = System.nanoTime();
+                record(waitNanos, maxWaitNanos, startedAt - queuedAt);
+                try {
+                    T value = task.get();
+                    continuations.execute(() -> result.complete(value));
+                } catch (Throwable t) {
+                    continuations.execute(() -> result.completeExceptionally(t));
+                } finally {
+                    record(hashNanos, maxHashNanos, System.nanoTime() - startedAt);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        return result;
+    }
+
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    static void shutdown() {
+        executor.shutdown();
+        continuations.shutdown();
+    }
+
+    // ============ METRICS ============
+
+    public static long getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public static long getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public static long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public static long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public static long getAvgHashMicros() {
+        long count = completed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(hashNanos.sum() / count);
+    }
+
+    public static long getMaxHashMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxHashNanos.get());
+    }
+
+    public static long getAvgWaitMicros() {
+        long count = completed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.sum() / count);
+    }
+
+    public static long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
+    // benchmark: độ trễ xử lý tin nhắn trên worker pool (giống worker NIO) trong lúc có 1000 login
+    // cùng lúc - BCrypt chạy thẳng trên worker (cách cũ) so với chạy trên AuthWorkers
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== AUTH WORKERS BENCHMARK ===\n");
+
+        int logins = 1000;
+        // Cost thấp để benchmark chạy nhanh; tỉ lệ giữa 2 cách không đổi
+        String hash = BCrypt.hashpw("password", BCrypt.gensalt(6));
+        System.out.println("CPUs: " + Runtime.getRuntime().availableProcessors() + ", auth workers: " + THREADS
+                + ", queue: " + QUEUE_SIZE + ", logins: " + logins + "\n");
+
+        for (boolean pooled : new boolean[]{false, true}) {
+            ExecutorService workers = Executors.newFixedThreadPool(4);
+            LongAdder rejectedLogins = new LongAdder();
+
+            for (int i = 0; i < logins; i++) {
+                workers.execute(() -> {
+                    if (!pooled) {
+                        SecurityUtil.verifyPassword("password", hash);
+                        return;
+                    }
+                    try {
+                        submit(() -> SecurityUtil.verifyPassword("password", hash));
+                    } catch (RejectedExecutionException e) {
+                        rejectedLogins.increment();
+                    }
+                });
+            }
+
+            // 200 tin nhắn, mỗi 5ms 1 tin, đo thời gian từ lúc nhận tới lúc xử lý xong
+            long[] latencies = new long[200];
+            Future<?>[] done = new Future<?>[latencies.length];
+            for (int i = 0; i < latencies.length; i++) {
+                int index = i;
+                long received = System.nanoTime();
+                done[i] = workers.submit(() -> {
+                    latencies[index] = System.nanoTime() - received;
+                });
+                Thread.sleep(5);
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+            workers.shutdown();
+            workers.awaitTermination(5, TimeUnit.MINUTES);
+            while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+                Thread.sleep(10);
+            }
+
+            Arrays.sort(latencies);
+            System.out.println((pooled ? "BCrypt on AuthWorkers" : "BCrypt inline on workers") + ":");
+            System.out.println("  message latency p50=" + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2])
+                    + "us, p99=" + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100])
+                    + "us, max=" + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) + "us");
+            if (pooled) {
+                System.out.println("  logins rejected (retry hint sent): " + rejectedLogins.sum()
+                        + ", avg hash=" + getAvgHashMicros() + "us, avg queue wait=" + getAvgWaitMicros() + "us");
+            }
+        }
+
+        shutdown();
+        System.out.println("\n=== BENCHMARK COMPLETED ===");
+    }
+}
@@ -1,40 +1,67 @@
 package com.beantalk.server;
 
+import com.beantalk.util.ConfigUtil;
+import com.beantalk.util.ConnectionPool;
+import com.beantalk.util.DatabaseManager;
 import com.beantalk.util.GroupDAO;
+import com.beantalk.util.GroupMemberCache;
+import com.beantalk.util.MessageDAO;
+import com.beantalk.util.MessageJournal;
+import com.beantalk.util.MessageReencryptor;
+import com.beantalk.util.SessionTokens;
+import com.beantalk.util.UserCache;
+import com.beantalk.util.UsernameCache;
+import com.google.gson.JsonObject;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 
 /**
  * Chat Server - Lắng nghe kết nối từ clients với Group Chat support
+ *
+ * Chế độ chạy (tham số đầu tiên hoặc server.mode trong config.properties):
+ *   blocking - 1 platform thread cho mỗi client (mặc định)
+ *   virtual  - 1 virtual thread cho mỗi client, chạy trên carrier pool giới hạn
+ *   nio      - vài event loop NIO dùng chung cho mọi client
  */
 public class ChatServer {
-    private static final int PORT = 5555;
+    private static final int PORT = ConfigUtil.getInt("server.port", 5555);
     private static Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
+    // Client đã đăng nhập, tra cứu theo username / userID
+    private static final ClientRegistry registry = new ClientRegistry();
     private static ServerSocket serverSocket;
+    private static NioServer nioServer;
+    private static String mode;
 
     public static void main(String[] args) {
         System.out.println("=================================");
         System.out.println("   BEANTALK CHAT SERVER");
         System.out.println("=================================");
 
+        mode = normalizeMode(args.length > 0 ? args[0] : ConfigUtil.get("server.mode", "blocking"));
+        registerMetrics();
+        // Index cho lịch sử phân trang theo message_id (GET_CHAT_HISTORY / GET_GROUP_HISTORY)
+        MessageDAO.ensureHistoryIndexes();
+        // Chuyển dần các tin nhắn mã hóa kiểu cũ sang AES-GCM
+        MessageReencryptor.start();
+
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Server started on port: " + PORT);
-            System.out.println("Waiting for clients...\n");
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
-
-                // Tạo thread mới để xử lý client
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clientHandlers.add(clientHandler);
-                new Thread(clientHandler).start();
-            }
+            switch (mode) {
+                case "nio":
+                    startNio();
+                    break;
 
+                case "virtual":
+                    startVirtual();
+                    break;
+
+                default:
+                    startBlocking();
+            }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         } finally {
@@ -42,13 +69,230 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Chuẩn hóa chế độ chạy; giá trị không hợp lệ quay về blocking (trước khi đăng ký metrics theo mode)
+     */
+    private static String normalizeMode(String value) {
+        String normalized = value == null ? "" : value.trim().toLowerCase();
+        switch (normalized) {
+            case "blocking":
+            case "virtual":
+            case "nio":
+                return normalized;
+            default:
+                System.err.println("Unknown server mode '" + value + "', using blocking");
+                return "blocking";
+        }
+    }
+
+    /**
+     * Chế độ blocking - tạo thread mới cho mỗi client
+     */
+    private static void startBlocking() throws IOException {
+        serverSocket = openServerSocket();
+        System.out.println("Server started on port: " + PORT + " (mode: blocking)");
+        System.out.println("Waiting for clients...\n");
+
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            System.out.println("New client connected: " + clientSocket.getInetAddress());
+
+            // Tạo thread mới để xử lý client
+            ClientHandler clientHandler = new ClientHandler(clientSocket);
+            clientHandlers.add(clientHandler);
+            new Thread(clientHandler).start();
+        }
+    }
+
+    /**
+     * ServerSocket tạo từ ServerSocketChannel - socket nhận được có getChannel() != null,
+     * nhờ đó download dùng được FileChannel.transferTo (zero-copy)
+     */
+    private static ServerSocket openServerSocket() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(PORT));
+        return channel.socket();
+    }
+
+    /**
+     * Chế độ virtual thread - vẫn là code blocking như cũ, nhưng mỗi client chỉ tốn
+     * 1 virtual thread; các carrier thread bên dưới bị giới hạn bởi config
+     */
+    private static void startVirtual() throws IOException {
+        configureCarrierPool();
+
+        serverSocket = openServerSocket();
+        System.out.println("Server started on port: " + PORT + " (mode: virtual)");
+        System.out.println("Waiting for clients...\n");
+
+        Thread.Builder builder = Thread.ofVirtual().name("client-", 0);
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            System.out.println("New client connected: " + clientSocket.getInetAddress());
+
+            ClientHandler clientHandler = new ClientHandler(clientSocket);
+            clientHandlers.add(clientHandler);
+            builder.start(clientHandler);
+        }
+    }
+
+    /**
+     * Giới hạn carrier pool - phải set trước khi tạo virtual thread đầu tiên
+     */
+    private static void configureCarrierPool() {
+        String parallelism = ConfigUtil.get("server.virtual.parallelism", "");
+        String maxPoolSize = ConfigUtil.get("server.virtual.maxPoolSize", "");
+
+        if (!parallelism.isEmpty() && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", parallelism);
+        }
+        if (!maxPoolSize.isEmpty() && System.getProperty("jdk.virtualThreadScheduler.maxPoolSize") == null) {
+            System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", maxPoolSize);
+        }
+        // In stack trace khi virtual thread bị pin vào carrier (synchronized / native frame)
+        if (ConfigUtil.getBoolean("server.virtual.tracePinned", false)
+                && System.getProperty("jdk.tracePinnedThreads") == null) {
+            System.setProperty("jdk.tracePinnedThreads", "short");
+        }
+        System.out.println("Virtual thread carriers: parallelism="
+                + System.getProperty("jdk.virtualThreadScheduler.parallelism", "default")
+                + ", maxPoolSize="
+                + System.getProperty("jdk.virtualThreadScheduler.maxPoolSize", "default"));
+    }
+
+    /**
+     * Chế độ NIO - event loop đọc/ghi, worker pool xử lý message
+     */
+    private static void startNio() throws IOException {
+        int loops = ConfigUtil.getInt("server.nio.loops", Runtime.getRuntime().availableProcessors());
+        int workers = ConfigUtil.getInt("server.nio.workers", 32);
+
+        nioServer = new NioServer(PORT, loops, workers);
+        ServerMetrics.registerGauge("threads.nio", nioServer::getThreadCount);
+        ServerMetrics.registerGauge("inbound.readPauses", NioConnection::getReadPauses);
+        ServerMetrics.registerGauge("inbound.longLineDisconnects", NioConnection::getLongLineDisconnects);
+        System.out.println("Server started on port: " + PORT + " (mode: nio)");
+        System.out.println("Waiting for clients...\n");
+        nioServer.start();
+    }
+
+    /**
+     * Metrics theo chế độ: số kết nối và số thread đang phục vụ client
+     */
+    private static void registerMetrics() {
+        ServerMetrics.registerGauge("connections." + mode, () -> clientHandlers.size());
+        if (!mode.equals("nio")) {
+            ServerMetrics.registerGauge("threads." + mode, ClientHandler::getRunningHandlers);
+        }
+        ServerMetrics.registerGauge("outbound.queuedBytes", ChatServer::getOutboundQueuedBytes);
+        ServerMetrics.registerGauge("outbound.queuedFrames", ChatServer::getOutboundQueuedFrames);
+        ServerMetrics.registerGauge("outbound.maxClientBytes", ChatServer::getMaxOutboundQueuedBytes);
+        ServerMetrics.registerGauge("outbound.peakClientBytes", ChatServer::getPeakOutboundQueuedBytes);
+        ServerMetrics.registerGauge("outbound.backloggedClients", ChatServer::getBackloggedClients);
+        ServerMetrics.registerGauge("outbound.dropped", OutboundQueue::getDroppedFrames);
+        ServerMetrics.registerGauge("outbound.slowDisconnects", OutboundQueue::getOverflowCount);
+        ServerMetrics.registerGauge("outbound.writes", OutboundQueue::getWriteCount);
+        ServerMetrics.registerGauge("outbound.framesWritten", OutboundQueue::getFramesWritten);
+        ServerMetrics.registerGauge("outbound.writesPer1000Frames", OutboundQueue::getWritesPer1000Frames);
+        ServerMetrics.registerGauge("groupCache.hits", GroupMemberCache::getHits);
+        ServerMetrics.registerGauge("groupCache.misses", GroupMemberCache::getMisses);
+        ServerMetrics.registerGauge("groupCache.groups", GroupMemberCache::getCachedGroups);
+        ServerMetrics.registerGauge("groupCache.evictions", GroupMemberCache::getEvictions);
+        ServerMetrics.registerGauge("usernameCache.hits", UsernameCache::getHits);
+        ServerMetrics.registerGauge("usernameCache.misses", UsernameCache::getMisses);
+        ServerMetrics.registerGauge("usernameCache.batchQueries", UsernameCache::getBatchQueries);
+        ServerMetrics.registerGauge("usernameCache.users", UsernameCache::getCachedUsers);
+        ServerMetrics.registerGauge("usernameCache.evictions", UsernameCache::getEvictions);
+        ServerMetrics.registerGauge("userCache.hits", UserCache::getHits);
+        ServerMetrics.registerGauge("userCache.negativeHits", UserCache::getNegativeHits);
+        ServerMetrics.registerGauge("userCache.misses", UserCache::getMisses);
+        ServerMetrics.registerGauge("userCache.hitRatePercent", UserCache::getHitRatePercent);
+        ServerMetrics.registerGauge("userCache.expirations", UserCache::getExpirations);
+        ServerMetrics.registerGauge("userCache.evictions", UserCache::getEvictions);
+        ServerMetrics.registerGauge("userCache.invalidations", UserCache::getInvalidations);
+        ServerMetrics.registerGauge("userCache.size", UserCache::getSize);
+        ServerMetrics.registerGauge("history.recent.hits", RecentMessages::getHits);
+        ServerMetrics.registerGauge("history.recent.misses", RecentMessages::getMisses);
+        ServerMetrics.registerGauge("history.recent.appended", RecentMessages::getAppended);
+        ServerMetrics.registerGauge("history.recent.evictions", RecentMessages::getEvictions);
+        ServerMetrics.registerGauge("history.recent.conversations", RecentMessages::getConversations);
+        ServerMetrics.registerGauge("history.recent.messages", RecentMessages::getMessages);
+        ServerMetrics.registerGauge("history.recent.bytes", RecentMessages::getBytes);
+        ConnectionPool pool = DatabaseManager.getPool();
+        if (pool != null) {
+            ServerMetrics.registerGauge("dbPool.active", pool::getActiveCount);
+            ServerMetrics.registerGauge("dbPool.idle", pool::getIdleCount);
+            ServerMetrics.registerGauge("dbPool.timeouts", pool::getTimeoutCount);
+            ServerMetrics.registerGauge("dbPool.leaks", pool::getLeakCount);
+            for (int i = 0; i < ConnectionPool.getWaitBucketCount(); i++) {
+                int bucket = i;
+                ServerMetrics.registerGauge("dbPool.wait." + ConnectionPool.getWaitBucketName(bucket),
+                        () -> pool.getWaitCount(bucket));
+            }
+        }
+        if (MessageJournal.isEnabled()) {
+            ServerMetrics.registerGauge("journal.queueDepth", MessageJournal::getQueueDepth);
+            ServerMetrics.registerGauge("journal.batches", MessageJournal::getBatchCount);
+            ServerMetrics.registerGauge("journal.flushed", MessageJournal::getFlushedCount);
+            ServerMetrics.registerGauge("journal.failed", MessageJournal::getFailedCount);
+            ServerMetrics.registerGauge("journal.avgBatchSize", MessageJournal::getAvgBatchSize);
+            ServerMetrics.registerGauge("journal.maxBatchSize", MessageJournal::getMaxBatchSize);
+            ServerMetrics.registerGauge("journal.avgFlushMicros", MessageJournal::getAvgFlushMicros);
+            ServerMetrics.registerGauge("journal.maxFlushMicros", MessageJournal::getMaxFlushMicros);
+            ServerMetrics.registerGauge("journal.backpressure", MessageJournal::getBackpressureCount);
+            ServerMetrics.registerGauge("journal.syncFallbacks", MessageJournal::getSyncFallbackCount);
+        }
+        ServerMetrics.registerGauge("auth.queueDepth", AuthWorkers::getQueueDepth);
+        ServerMetrics.registerGauge("auth.active", AuthWorkers::getActiveCount);
+        ServerMetrics.registerGauge("auth.completed", AuthWorkers::getCompletedCount);
+        ServerMetrics.registerGauge("auth.rejected", AuthWorkers::getRejectedCount);
+        ServerMetrics.registerGauge("auth.avgHashMicros", AuthWorkers::getAvgHashMicros);
+        ServerMetrics.registerGauge("auth.maxHashMicros", AuthWorkers::getMaxHashMicros);
+        ServerMetrics.registerGauge("auth.avgWaitMicros", AuthWorkers::getAvgWaitMicros);
+        ServerMetrics.registerGauge("auth.maxWaitMicros", AuthWorkers::getMaxWaitMicros);
+        ServerMetrics.registerGauge("presence.events", PresenceTracker::getEventsReceived);
+        ServerMetrics.registerGauge("presence.cancelled", PresenceTracker::getEventsCancelled);
+        ServerMetrics.registerGauge("presence.deltas", PresenceTracker::getDeltasPublished);
+        ServerMetrics.registerGauge("presence.framesSent", PresenceTracker::getFramesSent);
+        ServerMetrics.registerGauge("session.issued", SessionTokens::getIssuedCount);
+        ServerMetrics.registerGauge("session.resumed", SessionTokens::getAcceptedCount);
+        ServerMetrics.registerGauge("session.rejected", SessionTokens::getRejectedCount);
+        ServerMetrics.registerGauge("session.revoked", SessionTokens::getRevokedCount);
+        if (MessageReencryptor.isEnabled()) {
+            ServerMetrics.registerGauge("reencrypt.batches", MessageReencryptor::getBatchCount);
+            ServerMetrics.registerGauge("reencrypt.migrated", MessageReencryptor::getMigratedCount);
+            ServerMetrics.registerGauge("reencrypt.failed", MessageReencryptor::getFailedCount);
+        }
+        ServerMetrics.registerGauge("wire.json.framesOut", WireStats::getJsonFramesOut);
+        ServerMetrics.registerGauge("wire.json.bytesPerFrame", WireStats::getJsonBytesPerFrame);
+        ServerMetrics.registerGauge("wire.json.parseNanos", WireStats::getJsonParseNanos);
+        ServerMetrics.registerGauge("wire.binary.framesOut", WireStats::getBinaryFramesOut);
+        ServerMetrics.registerGauge("wire.binary.bytesPerFrame", WireStats::getBinaryBytesPerFrame);
+        ServerMetrics.registerGauge("wire.binary.parseNanos", WireStats::getBinaryParseNanos);
+        ServerMetrics.registerGauge("jvm.platformThreads",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        ServerMetrics.startReporter(ConfigUtil.getInt("server.metrics.interval", 30));
+    }
+
+    public static String getMode() {
+        return mode;
+    }
+
+    /**
+     * Thêm client mới (dùng cho engine NIO)
+     */
+    public static void addClient(ClientHandler clientHandler) {
+        clientHandlers.add(clientHandler);
+    }
+
     /**
      * Broadcast message đến tất cả clients
      */
-    public static void broadcast(String message, ClientHandler sender) {
+    public static void broadcast(JsonObject message, ClientHandler sender) {
+        OutboundFrame frame = OutboundFrame.of(message);
         for (ClientHandler client : clientHandlers) {
             if (client != sender) {
-                client.sendMessage(message);
+                client.send(frame);
             }
         }
     }
@@ -56,16 +300,22 @@ public class ChatServer {
     /**
      * Broadcast message đến tất cả members của group
      */
-    public static void broadcastToGroup(int groupId, String message, ClientHandler sender) {
-        // Lấy danh sách user IDs trong group
-        List<Integer> memberIds = GroupDAO.getGroupMemberIds(groupId);
+    public static void broadcastToGroup(int groupId, JsonObject message, ClientHandler sender) {
+        broadcastToGroup(groupId, OutboundFrame.of(message), sender);
+    }
 
-        for (ClientHandler client : clientHandlers) {
-            // Gửi cho tất cả members, trừ sender (nếu có)
-            if (client.getUserID() != 0 &&
-                    memberIds.contains(client.getUserID()) &&
-                    client != sender) {
-                client.sendMessage(message);
+    /**
+     * Broadcast frame đã encode sẵn (sender đã dùng cùng frame cho bản gửi lại chính mình)
+     */
+    static void broadcastToGroup(int groupId, OutboundFrame frame, ClientHandler sender) {
+        // Lấy danh sách user IDs trong group (từ cache, không query database)
+        int[] memberIds = GroupDAO.getGroupMemberIdArray(groupId);
+
+        // Chỉ duyệt members của group, không duyệt toàn bộ clients
+        for (int memberId : memberIds) {
+            ClientHandler client = registry.findByUserId(memberId);
+            if (client != null && client != sender) {
+                client.send(frame);
             }
         }
     }
@@ -73,36 +323,129 @@ public class ChatServer {
     /**
      * Gửi message đến 1 client cụ thể
      */
-    public static boolean sendToUser(String username, String message) {
-        for (ClientHandler client : clientHandlers) {
-            if (client.getUsername() != null && client.getUsername().equals(username)) {
-                client.sendMessage(message);
-                return true;
-            }
+    public static boolean sendToUser(String username, JsonObject message) {
+        ClientHandler client = registry.findByUsername(username);
+        if (client != null) {
+            client.sendMessage(message);
+            return true;
         }
         return false;
     }
 
+    /**
+     * Gửi frame đã encode sẵn đến 1 client cụ thể
+     */
+    static boolean sendToUser(String username, OutboundFrame frame) {
+        ClientHandler client = registry.findByUsername(username);
+        if (client != null) {
+            client.send(frame);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Đăng ký client vào bảng định tuyến sau khi login
+     */
+    public static void registerLogin(ClientHandler clientHandler) {
+        registry.register(clientHandler.getUsername(), clientHandler.getUserID(), clientHandler);
+    }
+
     /**
      * Remove client khi disconnect
      */
     public static void removeClient(ClientHandler clientHandler) {
         clientHandlers.remove(clientHandler);
+        registry.unregister(clientHandler.getUsername(), clientHandler.getUserID(), clientHandler);
         System.out.println("Client disconnected: " + clientHandler.getUsername());
         System.out.println("Total clients online: " + clientHandlers.size());
     }
 
     /**
-     * Lấy danh sách users online
+     * Kết nối đang đăng nhập của user (null nếu offline)
      */
-    public static List<String> getOnlineUsers() {
-        List<String> users = new ArrayList<>();
+    static ClientHandler findClient(String username) {
+        return registry.findByUsername(username);
+    }
+
+    /**
+     * Tất cả kết nối (kể cả chưa đăng nhập) - view, không copy
+     */
+    static Collection<ClientHandler> getClients() {
+        return clientHandlers;
+    }
+
+    // ============ OUTBOUND QUEUES ============
+
+    /**
+     * Tổng số byte đang chờ ghi của mọi kết nối
+     */
+    static long getOutboundQueuedBytes() {
+        long total = 0;
+        for (ClientHandler client : clientHandlers) {
+            total += client.getOutboundQueuedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Tổng số frame đang chờ ghi của mọi kết nối
+     */
+    static long getOutboundQueuedFrames() {
+        long total = 0;
         for (ClientHandler client : clientHandlers) {
-            if (client.getUsername() != null) {
-                users.add(client.getUsername());
+            total += client.getOutboundQueuedFrames();
+        }
+        return total;
+    }
+
+    /**
+     * Hàng đợi ghi sâu nhất (byte) từng có trong các kết nối hiện tại
+     */
+    static long getPeakOutboundQueuedBytes() {
+        long max = 0;
+        for (ClientHandler client : clientHandlers) {
+            max = Math.max(max, client.getOutboundPeakBytes());
+        }
+        return max;
+    }
+
+    /**
+     * Hàng đợi ghi sâu nhất (byte) trong các kết nối hiện tại
+     */
+    static long getMaxOutboundQueuedBytes() {
+        long max = 0;
+        for (ClientHandler client : clientHandlers) {
+            max = Math.max(max, client.getOutboundQueuedBytes());
+        }
+        return max;
+    }
+
+    /**
+     * Số kết nối đang có dữ liệu chờ ghi
+     */
+    static long getBackloggedClients() {
+        long count = 0;
+        for (ClientHandler client : clientHandlers) {
+            if (client.getOutboundQueuedBytes() > 0) {
+                count++;
             }
         }
-        return users;
+        return count;
+    }
+
+    /**
+     * User có kết nối đang đăng nhập hay không
+     */
+    public static boolean isOnline(String username) {
+        return registry.findByUsername(username) != null;
+    }
+
+    /**
+     * Lấy danh sách users online
+     */
+    public static List<String> getOnlineUsers() {
+        return new ArrayList<>(registry.usernames());
     }
 
     /**
@@ -113,6 +456,13 @@ public class ChatServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            MessageJournal.shutdown();
+            MessageReencryptor.stop();
+            AuthWorkers.shutdown();
+            ServerMetrics.stopReporter();
             for (ClientHandler client : clientHandlers) {
                 client.disconnect();
             }
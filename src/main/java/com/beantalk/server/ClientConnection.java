@@ -0,0 +1,51 @@
+package com.beantalk.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Kênh gửi dữ liệu tới 1 client - tách ClientHandler khỏi kiểu I/O cụ thể
+ * (blocking socket hoặc NIO channel)
+ */
+public interface ClientConnection {
+
+    /**
+     * Gửi 1 frame đã encode hoàn chỉnh: JSON line (UTF-8, đã kèm '\n') hoặc binary frame
+     * (đã có header, xem BinaryCodec). Mảng có thể dùng chung cho nhiều client nên không
+     * được sửa. Chỉ đưa vào hàng đợi ghi, không chờ ghi xong; droppable = được bỏ khi
+     * client đọc chậm (xem OutboundQueue)
+     */
+    void send(byte[] data, boolean droppable);
+
+    /**
+     * Gửi header rồi count byte của file bắt đầu từ position bằng FileChannel.transferTo
+     * (zero-copy khi socket là channel). Block tới khi ghi xong; các message khác
+     * chỉ được chen vào giữa 2 lần gọi, không chen vào giữa 1 frame.
+     */
+    void sendFile(byte[] header, FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Số byte đang chờ ghi xuống socket
+     */
+    long getQueuedBytes();
+
+    /**
+     * Số frame đang chờ ghi
+     */
+    int getQueuedFrames();
+
+    /**
+     * Số byte chờ ghi lớn nhất từng có của kết nối
+     */
+    long getPeakQueuedBytes();
+
+    /**
+     * Đóng kết nối
+     */
+    void close();
+
+    /**
+     * Địa chỉ client (dùng để log)
+     */
+    String getRemoteAddress();
+}
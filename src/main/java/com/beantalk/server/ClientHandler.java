@@ -3,64 +3,179 @@ package com.beantalk.server;
 import com.beantalk.model.User;
 import com.beantalk.model.Message;
 import com.beantalk.model.Group;
+import com.beantalk.util.BinaryCodec;
+import com.beantalk.util.ConfigUtil;
+import com.beantalk.util.FileTransferUtil;
 import com.beantalk.util.UserDAO;
 import com.beantalk.util.MessageDAO;
+import com.beantalk.util.MessageJournal;
 import com.beantalk.util.GroupDAO;
 import com.beantalk.util.SecurityUtil;
+import com.beantalk.util.SessionTokens;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * ClientHandler - Xử lý từng client connection với Group Chat support
  */
-public class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private String username;
+public final class ClientHandler implements Runnable {
+    // Số thread (platform hoặc virtual) đang chạy vòng đọc blocking
+    private static final AtomicInteger runningHandlers = new AtomicInteger();
+    // Cho phép client chuyển sang binary frame (HELLO) cho các message hay dùng
+    static final boolean BINARY_PROTOCOL = ConfigUtil.getBoolean("protocol.binary", true);
+    // Số file được upload đồng thời trên 1 kết nối
+    private static final int MAX_UPLOADS_PER_CLIENT = 4;
+    private static final int MAX_DOWNLOADS_PER_CLIENT = 4;
+    // Số tin tối đa trong 1 trang GET_CHAT_HISTORY / GET_GROUP_HISTORY
+    private static final int MAX_HISTORY_PAGE = ConfigUtil.getInt("history.maxPageSize", 200);
+    // Hash giả (cùng cost với hash thật) - username không tồn tại vẫn tốn 1 lần BCrypt,
+    // thời gian trả lời không cho biết username có tồn tại hay không
+    private static final String DUMMY_PASSWORD_HASH = SecurityUtil.hashPassword(UUID.randomUUID().toString());
+
+    private ClientConnection connection;
+    // Gán trên virtual thread của AuthWorkers sau khi BCrypt xong
+    private volatile String username;
     private Gson gson;
-    private int userID;
+    private volatile int userID;
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+    // Đang chờ BCrypt cho LOGIN / REGISTER - mỗi kết nối chỉ 1 yêu cầu trong hàng đợi
+    private final AtomicBoolean authPending = new AtomicBoolean(false);
+    // Token cấp ở LOGIN_SUCCESS gần nhất (thu hồi khi LOGOUT)
+    private volatile String sessionToken;
+    // Client đã gửi HELLO với binary=true - gửi binary frame cho type được hỗ trợ
+    private volatile boolean binary = false;
+    // Client đã gửi HELLO với presence=true - nhận PRESENCE_DELTA thay vì USER_JOINED / USER_LEFT
+    private volatile boolean presenceDeltas = false;
+    // Upload theo chunk đang diễn ra, theo uploadId do client chọn
+    private final Map<Integer, FileUpload> uploads = new ConcurrentHashMap<>();
+    // Download đang chạy, theo downloadId do client chọn
+    private final Map<Integer, FileDownload> downloads = new ConcurrentHashMap<>();
 
     public ClientHandler(Socket socket) {
-        this.socket = socket;
         this.gson = new Gson();
         try {
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new PrintWriter(socket.getOutputStream(), true);
+            this.connection = SocketConnection.open(socket, this::maxInboundFrameSize);
         } catch (IOException e) {
             System.err.println("Error creating client handler: " + e.getMessage());
         }
     }
 
+    /**
+     * Dùng cho engine NIO - đọc/ghi do event loop đảm nhiệm
+     */
+    public ClientHandler(ClientConnection connection) {
+        this.gson = new Gson();
+        this.connection = connection;
+    }
+
+    /**
+     * Vòng đọc cho chế độ blocking (1 thread / client)
+     */
     @Override
     public void run() {
+        if (!(connection instanceof SocketConnection socketConnection)) {
+            return;
+        }
+        runningHandlers.incrementAndGet();
         try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                System.out.println("Received: " + message);
-                handleMessage(message);
+            Object frame;
+            while ((frame = socketConnection.readFrame()) != null) {
+                if (frame instanceof byte[] payload) {
+                    handleBinary(payload);
+                } else {
+                    handleLine((String) frame);
+                }
             }
         } catch (IOException e) {
             System.err.println("Client connection error: " + e.getMessage());
         } finally {
+            runningHandlers.decrementAndGet();
             disconnect();
         }
     }
 
+    public static long getRunningHandlers() {
+        return runningHandlers.get();
+    }
+
+    /**
+     * Nhận 1 dòng JSON từ client (gọi từ thread đọc hoặc worker NIO)
+     */
+    void handleLine(String message) {
+        System.out.println("Received: " + message);
+        JsonObject json;
+        try {
+            long start = System.nanoTime();
+            json = gson.fromJson(message, JsonObject.class);
+            WireStats.jsonParsed(System.nanoTime() - start);
+        } catch (Exception e) {
+            sendError("Invalid message format: " + e.getMessage());
+            return;
+        }
+        handleMessage(json);
+    }
+
+    /**
+     * Độ dài body tối đa của binary frame từ client (kiểm tra trước khi cấp phát):
+     * FILE_CHUNK chỉ được lớn hơn frame điều khiển khi kết nối đang có upload
+     */
+    int maxInboundFrameSize(int type) {
+        return BinaryCodec.maxInboundFrameSize(type, !uploads.isEmpty());
+    }
+
+    /**
+     * Nhận 1 binary frame từ client (payload = type byte + body)
+     */
+    void handleBinary(byte[] payload) {
+        if (BinaryCodec.isFileChunk(payload)) {
+            handleFileChunk(payload);
+            return;
+        }
+        if (!BinaryCodec.isClientType(payload)) {
+            sendError("Binary frame type not accepted from client: " + (payload[0] & 0xFF));
+            return;
+        }
+        JsonObject json;
+        try {
+            long start = System.nanoTime();
+            json = BinaryCodec.decode(payload);
+            WireStats.binaryParsed(System.nanoTime() - start);
+        } catch (Exception e) {
+            sendError("Invalid binary frame: " + e.getMessage());
+            return;
+        }
+        System.out.println("Received (binary): " + json.get("type").getAsString());
+        handleMessage(json);
+    }
+
     /**
      * Xử lý message từ client
      */
-    private void handleMessage(String message) {
+    private void handleMessage(JsonObject json) {
         try {
-            JsonObject json = gson.fromJson(message, JsonObject.class);
             String type = json.get("type").getAsString();
 
             switch (type) {
+                case "HELLO":
+                    handleHello(json);
+                    break;
+
                 case "LOGIN":
                     handleLogin(json);
                     break;
@@ -69,6 +184,14 @@ public class ClientHandler implements Runnable {
                     handleRegister(json);
                     break;
 
+                case "RESUME":
+                    handleResume(json);
+                    break;
+
+                case "LOGOUT":
+                    handleLogout();
+                    break;
+
                 case "SEND_MESSAGE":
                     handleSendMessage(json);
                     break;
@@ -77,6 +200,26 @@ public class ClientHandler implements Runnable {
                     handleSendFile(json);
                     break;
 
+                case "UPLOAD_START":
+                    handleUploadStart(json);
+                    break;
+
+                case "UPLOAD_END":
+                    handleUploadEnd(json);
+                    break;
+
+                case "UPLOAD_CANCEL":
+                    handleUploadCancel(json);
+                    break;
+
+                case "DOWNLOAD_REQUEST":
+                    handleDownloadRequest(json);
+                    break;
+
+                case "DOWNLOAD_CANCEL":
+                    handleDownloadCancel(json);
+                    break;
+
                 case "CREATE_GROUP":
                     handleCreateGroup(json);
                     break;
@@ -105,6 +248,10 @@ public class ClientHandler implements Runnable {
                     handleGetOnlineUsers();
                     break;
 
+                case "GET_PRESENCE":
+                    sendMessage(PresenceTracker.snapshot());
+                    break;
+
                 case "DISCONNECT":
                     disconnect();
                     break;
@@ -119,7 +266,28 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Xu li dang nhap - kiem tra database
+     * Thỏa thuận encoding: client cũ không gửi HELLO nên luôn nhận JSON
+     */
+    private void handleHello(JsonObject json) {
+        boolean wantsBinary = json.has("binary") && json.get("binary").getAsBoolean();
+        boolean wantsPresence = json.has("presence") && json.get("presence").getAsBoolean();
+
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "HELLO_ACK");
+        response.addProperty("binary", wantsBinary && BINARY_PROTOCOL);
+        // Server hỗ trợ UPLOAD_START / FILE_CHUNK (chunk là binary frame, không phụ thuộc protocol.binary)
+        response.addProperty("upload", true);
+        response.addProperty("download", true);
+        response.addProperty("presence", wantsPresence);
+        sendMessage(response.toString());
+        presenceDeltas = wantsPresence;
+
+        // Bật sau khi đã gửi ACK bằng JSON
+        binary = wantsBinary && BINARY_PROTOCOL;
+    }
+
+    /**
+     * Xu li dang nhap - kiem tra database, BCrypt chay tren AuthWorkers
      */
     private void handleLogin(JsonObject json) {
         String username = json.get("username").getAsString();
@@ -127,39 +295,132 @@ public class ClientHandler implements Runnable {
 
         System.out.println("🔐 Login attempt: " + username);
 
-        // verify voi database
-        User user = UserDAO.verifyLogin(username, password);
+        if (this.userID != 0) {
+            sendAuthFailed("LOGIN_FAILED", "Already logged in", false);
+            return;
+        }
+        if (!authPending.compareAndSet(false, true)) {
+            sendAuthFailed("LOGIN_FAILED", "Login already in progress", false);
+            return;
+        }
+
+        // lay user tu database, verify password tren pool BCrypt
+        // user khong ton tai van verify voi hash gia de khong do duoc username qua thoi gian tra loi
+        User user = UserDAO.getUserByUsername(username);
+        String passwordHash = user != null ? user.getPasswordHash() : DUMMY_PASSWORD_HASH;
+
+        CompletableFuture<Boolean> verified;
+        try {
+            verified = AuthWorkers.submit(() -> SecurityUtil.verifyPassword(password, passwordHash));
+        } catch (RejectedExecutionException e) {
+            authPending.set(false);
+            sendAuthFailed("LOGIN_FAILED", "Server is busy, please try again", true);
+            System.out.println("⏳ Login rejected (auth queue full): " + username);
+            return;
+        }
+
+        verified.whenComplete((ok, error) -> {
+            try {
+                completeLogin(username, user != null && Boolean.TRUE.equals(ok) ? user : null);
+            } finally {
+                authPending.set(false);
+            }
+        });
+    }
+
+    /**
+     * Gui ket qua dang nhap (chay tren virtual thread sau khi BCrypt xong)
+     */
+    private void completeLogin(String username, User user) {
+        if (disconnected.get()) {
+            return;
+        }
 
         if (user != null) {
             // login thanh cong
-            this.username = username;
-            this.userID = user.getUserID();
-
-            JsonObject response = new JsonObject();
-            response.addProperty("type", "LOGIN_SUCCESS");
-            response.addProperty("username", username);
-            response.addProperty("userID", userID);
-            sendMessage(response.toString());
-
-            // thong bao cho cac clients khac
-            JsonObject notification = new JsonObject();
-            notification.addProperty("type", "USER_JOINED");
-            notification.addProperty("username", username);
-            ChatServer.broadcast(notification.toString(), this);
-
-            System.out.println("✅ " + username + " logged in (ID: " + userID + ")");
+            UserDAO.updateLastSeen(user.getUserID());
+            // dung username trong database (username khong phan biet hoa thuong)
+            loginSucceeded(user.getUsername(), user.getUserID(), false);
         } else {
             // login that bai
-            JsonObject response = new JsonObject();
-            response.addProperty("type", "LOGIN_FAILED");
-            response.addProperty("message", "Invalid username or password");
-            sendMessage(response.toString());
+            sendAuthFailed("LOGIN_FAILED", "Invalid username or password", false);
             System.out.println("❌ Login failed: " + username);
         }
     }
 
     /**
-     * Xu li dang ki - luu vao database
+     * Dang nhap lai bang session token (sau khi mat ket noi / server restart) - chi kiem tra HMAC,
+     * khong can BCrypt hay database
+     */
+    private void handleResume(JsonObject json) {
+        // Da dang nhap tren ket noi nay - khong cho doi sang user khac
+        if (this.userID != 0) {
+            sendAuthFailed("RESUME_FAILED", "Already logged in", false);
+            return;
+        }
+        if (!authPending.compareAndSet(false, true)) {
+            sendAuthFailed("RESUME_FAILED", "Login already in progress", false);
+            return;
+        }
+
+        try {
+            String token = json.has("token") ? json.get("token").getAsString() : null;
+            // Token chi dung 1 lan - kiem tra va thu hoi cung 1 buoc, LOGIN_SUCCESS kem token moi
+            SessionTokens.Session session = SessionTokens.consume(token);
+
+            if (session == null) {
+                sendAuthFailed("RESUME_FAILED", "Session expired, please login again", false);
+                System.out.println("❌ Resume failed from " + connection.getRemoteAddress());
+                return;
+            }
+            loginSucceeded(session.username, session.userID, true);
+        } finally {
+            authPending.set(false);
+        }
+    }
+
+    /**
+     * Dang xuat - thu hoi token de khong RESUME duoc nua
+     */
+    private void handleLogout() {
+        if (sessionToken != null) {
+            SessionTokens.revoke(sessionToken);
+        }
+        disconnect();
+    }
+
+    /**
+     * Dang ky client vao server, cap session token va thong bao cho moi nguoi
+     */
+    private void loginSucceeded(String username, int userID, boolean resumed) {
+        this.username = username;
+        this.userID = userID;
+        ChatServer.registerLogin(this);
+        if (disconnected.get()) {
+            // Mat ket noi trong luc dang ky - disconnect() co the da chay truoc registerLogin
+            ChatServer.removeClient(this);
+            return;
+        }
+        this.sessionToken = SessionTokens.issue(userID, username);
+
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "LOGIN_SUCCESS");
+        response.addProperty("username", username);
+        response.addProperty("userID", userID);
+        response.addProperty("sessionToken", sessionToken);
+        if (resumed) {
+            response.addProperty("resumed", true);
+        }
+        sendMessage(response.toString());
+
+        // thong bao cho cac clients khac (PRESENCE_DELTA / USER_JOINED)
+        PresenceTracker.changed(username);
+
+        System.out.println("✅ " + username + (resumed ? " resumed session" : " logged in") + " (ID: " + userID + ")");
+    }
+
+    /**
+     * Xu li dang ki - luu vao database, hash password tren AuthWorkers
      */
     private void handleRegister(JsonObject json) {
         String username = json.get("username").getAsString();
@@ -168,32 +429,63 @@ public class ClientHandler implements Runnable {
 
         System.out.println("📝 Register attempt: " + username);
 
+        if (!authPending.compareAndSet(false, true)) {
+            sendAuthFailed("REGISTER_FAILED", "Registration already in progress", false);
+            return;
+        }
+
         // kiem tra username da ton tai hay chua
         if (UserDAO.usernameExists(username)) {
-            JsonObject response = new JsonObject();
-            response.addProperty("type", "REGISTER_FAILED");
-            response.addProperty("message", "Username already exists");
-            sendMessage(response.toString());
+            authPending.set(false);
+            sendAuthFailed("REGISTER_FAILED", "Username already exists", false);
             System.out.println("❌ Register failed: Username exists - " + username);
             return;
         }
-        // hash password va luu vao database
-        String hashedPassword = SecurityUtil.hashPassword(password);
-        boolean success = UserDAO.registerUser(username, hashedPassword, email);
 
-        if (success) {
-            JsonObject response = new JsonObject();
-            response.addProperty("type", "REGISTER_SUCCESS");
-            response.addProperty("message", "Registration successful! Please login.");
-            sendMessage(response.toString());
-            System.out.println("✅ New user registered: " + username);
-        } else {
-            JsonObject response = new JsonObject();
-            response.addProperty("type", "REGISTER_FAILED");
-            response.addProperty("message", "Registration failed! Please try again.");
-            sendMessage(response.toString());
-            System.out.println("❌ Register failed: Database error");
+        // hash password tren pool BCrypt
+        CompletableFuture<String> hashed;
+        try {
+            hashed = AuthWorkers.submit(() -> SecurityUtil.hashPassword(password));
+        } catch (RejectedExecutionException e) {
+            authPending.set(false);
+            sendAuthFailed("REGISTER_FAILED", "Server is busy, please try again", true);
+            System.out.println("⏳ Register rejected (auth queue full): " + username);
+            return;
+        }
+
+        hashed.whenComplete((hashedPassword, error) -> {
+            try {
+                // luu vao database
+                boolean success = hashedPassword != null
+                        && UserDAO.registerUser(username, hashedPassword, email);
+
+                if (success) {
+                    JsonObject response = new JsonObject();
+                    response.addProperty("type", "REGISTER_SUCCESS");
+                    response.addProperty("message", "Registration successful! Please login.");
+                    sendMessage(response.toString());
+                    System.out.println("✅ New user registered: " + username);
+                } else {
+                    sendAuthFailed("REGISTER_FAILED", "Registration failed! Please try again.", false);
+                    System.out.println("❌ Register failed: Database error");
+                }
+            } finally {
+                authPending.set(false);
+            }
+        });
+    }
+
+    /**
+     * LOGIN_FAILED / REGISTER_FAILED; busy = true khi pool BCrypt day (kem retryAfterMs)
+     */
+    private void sendAuthFailed(String type, String message, boolean busy) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", type);
+        response.addProperty("message", message);
+        if (busy) {
+            response.addProperty("retryAfterMs", AuthWorkers.RETRY_AFTER_MS);
         }
+        sendMessage(response.toString());
     }
 
     /**
@@ -235,32 +527,34 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        // Lưu vào database
-        boolean saved = MessageDAO.saveMessage(
+        // Lưu vào database (sau khi commit thì nối vào lịch sử gần đây trong bộ nhớ)
+        boolean saved = MessageJournal.save(
                 this.userID,
                 null,  // receiver_id = null for group
                 groupId,
                 encryptedContent,
                 "TEXT",
-                null
+                null,
+                rememberRecent(RecentMessages.groupKey(groupId), null, content)
         );
 
         if (saved) {
             System.out.println("💾 Group message saved");
         }
 
-        // Tạo message object
+        // Tạo message object - encode 1 lần cho sender và cả group
         JsonObject message = new JsonObject();
         message.addProperty("type", "NEW_MESSAGE");
         message.addProperty("sender", this.username);
         message.addProperty("content", content);
         message.addProperty("groupId", groupId);
+        OutboundFrame frame = OutboundFrame.of(message);
 
         // GỬI CHO CHÍNH SENDER (quan trọng!)
-        sendMessage(message.toString());
+        send(frame);
 
         // Gửi đến tất cả members khác của group
-        ChatServer.broadcastToGroup(groupId, message.toString(), this);
+        ChatServer.broadcastToGroup(groupId, frame, this);
         System.out.println("📤 Group broadcast: " + username + " -> Group#" + groupId);
     }
 
@@ -278,14 +572,16 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        // Lưu vào database
-        boolean saved = MessageDAO.saveMessage(
+        // Lưu vào database (sau khi commit thì nối vào lịch sử gần đây trong bộ nhớ)
+        boolean saved = MessageJournal.save(
                 this.userID,
                 receiverUser.getUserID(),
                 null,  // group_id = null for private
                 encryptedContent,
                 "TEXT",
-                null
+                null,
+                rememberRecent(RecentMessages.chatKey(this.userID, receiverUser.getUserID()),
+                        receiverUser.getUsername(), content)
         );
 
         if (saved) {
@@ -298,13 +594,14 @@ public class ClientHandler implements Runnable {
         message.addProperty("sender", this.username);
         message.addProperty("receiver", receiver);
         message.addProperty("content", content);
+        OutboundFrame frame = OutboundFrame.of(message);
 
         // GỬI LẠI CHO SENDER (để hiển thị tin nhắn của chính mình)
-        sendMessage(message.toString());
+        send(frame);
         System.out.println("📤 Sent back to sender: " + username);
 
         // Gửi cho receiver
-        boolean sent = ChatServer.sendToUser(receiver, message.toString());
+        boolean sent = ChatServer.sendToUser(receiver, frame);
         if (sent) {
             System.out.println("📤 Private: " + username + " -> " + receiver);
         } else {
@@ -356,22 +653,23 @@ public class ClientHandler implements Runnable {
     /**
      * Xử lý group file
      */
-    private void handleGroupFile(int groupId, String fileName, String filePath,
-                                 String encryptedPath, String messageType) {
+    private boolean handleGroupFile(int groupId, String fileName, String filePath,
+                                    String encryptedPath, String messageType) {
         // Kiểm tra user có phải member không
         if (!GroupDAO.isMember(groupId, this.userID)) {
             sendError("You are not a member of this group");
-            return;
+            return false;
         }
 
         // Lưu vào database
-        boolean saved = MessageDAO.saveMessage(
+        boolean saved = MessageJournal.save(
                 this.userID,
                 null,
                 groupId,
                 encryptedPath,
                 messageType,
-                filePath
+                filePath,
+                rememberRecent(RecentMessages.groupKey(groupId), null, null)
         );
 
         if (saved) {
@@ -387,36 +685,40 @@ public class ClientHandler implements Runnable {
         message.addProperty("fileName", fileName);
         message.addProperty("filePath", filePath);
         message.addProperty("content", "[File: " + fileName + "]");
+        OutboundFrame frame = OutboundFrame.of(message);
 
         // Gửi cho sender
-        sendMessage(message.toString());
+        send(frame);
 
         // Broadcast đến group
-        ChatServer.broadcastToGroup(groupId, message.toString(), this);
+        ChatServer.broadcastToGroup(groupId, frame, this);
         System.out.println("📤 File broadcasted to group#" + groupId);
+        return true;
     }
 
     /**
      * Xử lý private file
      */
-    private void handlePrivateFile(String receiver, String fileName, String filePath,
-                                   String encryptedPath, String messageType) {
+    private boolean handlePrivateFile(String receiver, String fileName, String filePath,
+                                      String encryptedPath, String messageType) {
         // Tìm receiver
         User receiverUser = UserDAO.getUserByUsername(receiver);
 
         if (receiverUser == null) {
             sendError("User not found: " + receiver);
-            return;
+            return false;
         }
 
         // Lưu vào database
-        boolean saved = MessageDAO.saveMessage(
+        boolean saved = MessageJournal.save(
                 this.userID,
                 receiverUser.getUserID(),
                 null,
                 encryptedPath,
                 messageType,
-                filePath
+                filePath,
+                rememberRecent(RecentMessages.chatKey(this.userID, receiverUser.getUserID()),
+                        receiverUser.getUsername(), null)
         );
 
         if (saved) {
@@ -432,17 +734,230 @@ public class ClientHandler implements Runnable {
         message.addProperty("fileName", fileName);
         message.addProperty("filePath", filePath);
         message.addProperty("content", "[File: " + fileName + "]");
+        OutboundFrame frame = OutboundFrame.of(message);
 
         // Gửi lại cho sender
-        sendMessage(message.toString());
+        send(frame);
 
         // Gửi cho receiver
-        boolean sent = ChatServer.sendToUser(receiver, message.toString());
+        boolean sent = ChatServer.sendToUser(receiver, frame);
         if (sent) {
             System.out.println("📤 File sent to: " + receiver);
         } else {
             System.out.println("❌ User offline: " + receiver);
         }
+        return true;
+    }
+
+    /**
+     * Bắt đầu upload theo chunk - kiểm tra trước khi client gửi dữ liệu
+     */
+    private void handleUploadStart(JsonObject json) {
+        int uploadId = json.get("uploadId").getAsInt();
+        if (this.userID == 0) {
+            sendUploadFailed(uploadId, "You must login first");
+            return;
+        }
+
+        String fileName = json.get("fileName").getAsString();
+        String messageType = json.get("messageType").getAsString();
+        long size = json.get("size").getAsLong();
+        Integer groupId = json.has("groupId") ? json.get("groupId").getAsInt() : null;
+        String receiver = json.has("receiver") ? json.get("receiver").getAsString() : null;
+
+        if (size <= 0 || size > FileTransferUtil.getMaxFileSize()) {
+            sendUploadFailed(uploadId, "File too large. Maximum size is "
+                    + FileTransferUtil.formatFileSize(FileTransferUtil.getMaxFileSize()));
+            return;
+        }
+        if (uploads.containsKey(uploadId) || uploads.size() >= MAX_UPLOADS_PER_CLIENT) {
+            sendUploadFailed(uploadId, "Too many uploads in progress");
+            return;
+        }
+        if (groupId != null) {
+            if (!GroupDAO.isMember(groupId, this.userID)) {
+                sendUploadFailed(uploadId, "You are not a member of this group");
+                return;
+            }
+        } else if (receiver == null) {
+            sendUploadFailed(uploadId, "Must specify either receiver or groupId");
+            return;
+        } else if (UserDAO.getUserByUsername(receiver) == null) {
+            sendUploadFailed(uploadId, "User not found: " + receiver);
+            return;
+        }
+
+        try {
+            FileUpload upload = FileUpload.open(uploadId, fileName, messageType, receiver, groupId, size);
+            uploads.put(uploadId, upload);
+        } catch (IOException e) {
+            sendUploadFailed(uploadId, "Failed to save file: " + e.getMessage());
+            return;
+        }
+
+        System.out.println("📎 Receiving file: " + fileName + " ("
+                + FileTransferUtil.formatFileSize(size) + ", " + messageType + ")");
+
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "UPLOAD_READY");
+        response.addProperty("uploadId", uploadId);
+        sendMessage(response.toString());
+    }
+
+    /**
+     * 1 chunk dữ liệu file - ghi thẳng xuống đĩa
+     */
+    private void handleFileChunk(byte[] payload) {
+        int uploadId = BinaryCodec.readRawFrameId(payload);
+        FileUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return;   // upload đã bị hủy / lỗi - bỏ qua các chunk còn đang trên đường tới
+        }
+
+        try {
+            int offset = BinaryCodec.CHUNK_DATA_OFFSET;
+            if (upload.write(payload, offset, payload.length - offset)) {
+                JsonObject ack = new JsonObject();
+                ack.addProperty("type", "UPLOAD_ACK");
+                ack.addProperty("uploadId", uploadId);
+                ack.addProperty("received", upload.getReceived());
+                sendMessage(ack.toString());
+            }
+        } catch (IOException e) {
+            uploads.remove(uploadId);
+            upload.abort();
+            sendUploadFailed(uploadId, "Failed to save file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Client đã gửi hết chunk - lưu tin nhắn file và gửi như SEND_FILE
+     */
+    private void handleUploadEnd(JsonObject json) {
+        int uploadId = json.get("uploadId").getAsInt();
+        FileUpload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            sendUploadFailed(uploadId, "Unknown upload");
+            return;
+        }
+        if (!upload.isComplete()) {
+            upload.abort();
+            sendUploadFailed(uploadId, "Upload incomplete: received " + upload.getReceived()
+                    + " of " + upload.size + " bytes");
+            return;
+        }
+
+        boolean sent;
+        try {
+            upload.finish();
+            System.out.println("💾 File saved: " + upload.filePath);
+
+            String encryptedPath = SecurityUtil.encryptMessage(upload.filePath);
+            if (upload.groupId != null) {
+                sent = handleGroupFile(upload.groupId, upload.fileName, upload.filePath,
+                        encryptedPath, upload.messageType);
+            } else {
+                sent = handlePrivateFile(upload.receiver, upload.fileName, upload.filePath,
+                        encryptedPath, upload.messageType);
+            }
+        } catch (IOException e) {
+            sent = false;
+        }
+
+        if (!sent) {
+            upload.abort();
+            sendUploadFailed(uploadId, "Failed to send file");
+            return;
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "UPLOAD_DONE");
+        response.addProperty("uploadId", uploadId);
+        response.addProperty("filePath", upload.filePath);
+        sendMessage(response.toString());
+    }
+
+    /**
+     * Client hủy upload
+     */
+    private void handleUploadCancel(JsonObject json) {
+        FileUpload upload = uploads.remove(json.get("uploadId").getAsInt());
+        if (upload != null) {
+            upload.abort();
+            System.out.println("🚫 Upload cancelled: " + upload.fileName);
+        }
+    }
+
+    /**
+     * Client yêu cầu tải file đã upload - stream từ uploads/ trên thread riêng
+     */
+    private void handleDownloadRequest(JsonObject json) {
+        int downloadId = json.get("downloadId").getAsInt();
+        if (this.userID == 0) {
+            sendDownloadFailed(downloadId, "You must login first");
+            return;
+        }
+
+        String filePath = json.get("filePath").getAsString();
+        long offset = json.has("offset") ? json.get("offset").getAsLong() : 0;
+        long length = json.has("length") ? json.get("length").getAsLong() : -1;
+
+        Path path = FileTransferUtil.resolveUpload(filePath);
+        if (path == null || !Files.isRegularFile(path)) {
+            sendDownloadFailed(downloadId, "File not found");
+            return;
+        }
+
+        // File vừa gửi có thể còn trong journal - chỉ chờ ghi khi chưa thấy trong database
+        boolean canAccess = MessageDAO.canAccessFile(this.userID, filePath);
+        if (!canAccess && MessageJournal.hasPending()) {
+            MessageJournal.flushPending();
+            canAccess = MessageDAO.canAccessFile(this.userID, filePath);
+        }
+        if (!canAccess) {
+            sendDownloadFailed(downloadId, "File not found");
+            return;
+        }
+        if (downloads.containsKey(downloadId) || downloads.size() >= MAX_DOWNLOADS_PER_CLIENT) {
+            sendDownloadFailed(downloadId, "Too many downloads in progress");
+            return;
+        }
+
+        FileDownload download = new FileDownload(this, connection, downloadId, path, offset, length);
+        downloads.put(downloadId, download);
+        Thread.ofVirtual().name("download-" + username + "-" + downloadId).start(download);
+        System.out.println("📥 " + username + " downloading " + path.getFileName()
+                + (offset > 0 ? " from byte " + offset : ""));
+    }
+
+    private void handleDownloadCancel(JsonObject json) {
+        FileDownload download = downloads.remove(json.get("downloadId").getAsInt());
+        if (download != null) {
+            download.cancel();
+        }
+    }
+
+    /**
+     * Gọi từ FileDownload khi kết thúc (xong, lỗi hoặc bị hủy)
+     */
+    void downloadFinished(int downloadId, FileDownload download) {
+        downloads.remove(downloadId, download);
+    }
+
+    private void sendDownloadFailed(int downloadId, String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "DOWNLOAD_FAILED");
+        response.addProperty("downloadId", downloadId);
+        response.addProperty("message", error);
+        sendMessage(response.toString());
+    }
+
+    private void sendUploadFailed(int uploadId, String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "UPLOAD_FAILED");
+        response.addProperty("uploadId", uploadId);
+        response.addProperty("message", error);
+        sendMessage(response.toString());
     }
 
     /**
@@ -491,7 +1006,7 @@ public class ClientHandler implements Runnable {
         notification.addProperty("type", "GROUP_CREATED");
         notification.addProperty("groupId", groupId);
         notification.addProperty("groupName", groupName);
-        ChatServer.broadcastToGroup(groupId, notification.toString(), this);
+        ChatServer.broadcastToGroup(groupId, notification, this);
 
         System.out.println("✅ Group created: " + groupName + " (ID: " + groupId + ")");
     }
@@ -564,7 +1079,7 @@ public class ClientHandler implements Runnable {
             response.addProperty("newName", newName);
 
             // Gửi cho tất cả members
-            ChatServer.broadcastToGroup(groupId, response.toString(), null);
+            ChatServer.broadcastToGroup(groupId, response, null);
             System.out.println("✏️ Group#" + groupId + " renamed to: " + newName);
         } else {
             sendError("Failed to rename group");
@@ -581,7 +1096,14 @@ public class ClientHandler implements Runnable {
         }
 
         String otherUsername = json.get("username").getAsString();
-        int limit = json.has("limit") ? json.get("limit").getAsInt() : 50;
+        int limit = historyLimit(json);
+        Integer beforeId = optionalInt(json, "beforeMessageId");
+        Integer afterId = optionalInt(json, "afterMessageId");
+        // Sync khi mở lại hội thoại: chỉ các tin mới hơn tin cuối client đã có (mới nhất trước);
+        // nhiều hơn limit tin thì trả luôn trang mới nhất kèm tooFarBehind
+        Integer sinceId = beforeId == null && afterId == null ? optionalInt(json, "sinceMessageId") : null;
+        Integer queryBefore = sinceId != null ? Integer.valueOf(Integer.MAX_VALUE) : beforeId;
+        Integer queryAfter = sinceId != null ? sinceId : afterId;
 
         User otherUser = UserDAO.getUserByUsername(otherUsername);
         if (otherUser == null) {
@@ -589,48 +1111,53 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        System.out.println("📜 Loading chat history: " + username + " <-> " + otherUsername);
-
-        // Lấy tin nhắn từ database
-        List<Message> messages = MessageDAO.getChatHistory(this.userID, otherUser.getUserID(), limit);
+        System.out.println("📜 Loading chat history: " + username + " <-> " + otherUsername
+                + describeCursor(beforeId, afterId, sinceId));
+
+        // Tin vừa gửi trong chat này (còn trong journal) phải được ghi xuống database và vào lịch sử gần đây;
+        // không chờ nếu chỉ các hội thoại khác còn tin chưa ghi
+        MessageJournal.flushPendingChat(this.userID, otherUser.getUserID());
+
+        // Lấy thêm 1 dòng để biết còn trang tiếp theo không - trang gần đây lấy từ bộ nhớ nếu có
+        String recentKey = RecentMessages.chatKey(this.userID, otherUser.getUserID());
+        List<JsonObject> items = RecentMessages.page(recentKey, queryBefore, queryAfter, limit + 1);
+        boolean fromMemory = items != null;
+        if (items == null) {
+            RecentMessages.Tail tail = RecentMessages.beginLoad(recentKey, queryBefore, queryAfter);
+            List<Message> messages = MessageDAO.getChatHistoryPage(
+                    this.userID, otherUser.getUserID(), queryBefore, queryAfter, limit + 1);
+
+            List<String> contents = decryptTextContents(messages);
+            // Tail dùng chung cho cả 2 user - lưu username đúng như trong database, không theo
+            // cách viết hoa / thường của người yêu cầu
+            String otherName = otherUser.getUsername();
+            items = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                Message msg = messages.get(i);
+
+                // Xác định sender
+                String senderName = (msg.getSenderID() == this.userID) ? this.username : otherName;
+                String receiverName = (msg.getSenderID() == this.userID) ? otherName : this.username;
+                items.add(historyItem(msg, senderName, receiverName, contents.get(i)));
+            }
+            RecentMessages.completeLoad(recentKey, tail, items, limit + 1);
+        }
+        boolean hasMore = trimPage(items, limit, queryBefore, queryAfter);
 
-        // Tạo response
+        // Tạo response (kèm cursor để client biết trang này ứng với hội thoại / vị trí nào)
         JsonObject response = new JsonObject();
         response.addProperty("type", "CHAT_HISTORY");
-
-        JsonArray messagesArray = new JsonArray();
-        for (Message msg : messages) {
-            JsonObject msgObj = new JsonObject();
-
-            // Xác định sender
-            String senderName = (msg.getSenderID() == this.userID) ? this.username : otherUsername;
-            String receiverName = (msg.getSenderID() == this.userID) ? otherUsername : this.username;
-
-            msgObj.addProperty("sender", senderName);
-            msgObj.addProperty("receiver", receiverName);
-            msgObj.addProperty("messageType", msg.getMessageType());
-            msgObj.addProperty("timestamp", msg.getSentAt().toString());
-
-            // Xử lý theo loại message
-            if (msg.getMessageType().equals("TEXT")) {
-                // TEXT message - decrypt content
-                String decrypted = SecurityUtil.decryptMessage(msg.getContentEncrypted());
-                msgObj.addProperty("content", decrypted);
-            } else {
-                // FILE hoặc IMAGE message
-                String filePath = msg.getFilePath();
-                msgObj.addProperty("filePath", filePath);
-                msgObj.addProperty("fileName", com.beantalk.util.FileTransferUtil.getFileName(filePath));
-                msgObj.addProperty("content", "[File: " + com.beantalk.util.FileTransferUtil.getFileName(filePath) + "]");
-            }
-
-            messagesArray.add(msgObj);
+        response.addProperty("username", otherUsername);
+        addCursor(response, beforeId, afterId, hasMore);
+        if (sinceId != null) {
+            response.addProperty("sinceMessageId", sinceId);
+            response.addProperty("tooFarBehind", hasMore);
         }
+        response.add("messages", toJsonArray(items));
+        sendMessage(response);
 
-        response.add("messages", messagesArray);
-        sendMessage(response.toString());
-
-        System.out.println("✅ Sent " + messages.size() + " messages to " + username);
+        System.out.println("✅ Sent " + items.size() + " messages to " + username
+                + (fromMemory ? " (recent, from memory)" : ""));
     }
 
     /**
@@ -643,7 +1170,14 @@ public class ClientHandler implements Runnable {
         }
 
         int groupId = json.get("groupId").getAsInt();
-        int limit = json.has("limit") ? json.get("limit").getAsInt() : 50;
+        int limit = historyLimit(json);
+        Integer beforeId = optionalInt(json, "beforeMessageId");
+        Integer afterId = optionalInt(json, "afterMessageId");
+        // Sync khi mở lại hội thoại: chỉ các tin mới hơn tin cuối client đã có (mới nhất trước);
+        // nhiều hơn limit tin thì trả luôn trang mới nhất kèm tooFarBehind
+        Integer sinceId = beforeId == null && afterId == null ? optionalInt(json, "sinceMessageId") : null;
+        Integer queryBefore = sinceId != null ? Integer.valueOf(Integer.MAX_VALUE) : beforeId;
+        Integer queryAfter = sinceId != null ? sinceId : afterId;
 
         // Kiểm tra user có phải member không
         if (!GroupDAO.isMember(groupId, this.userID)) {
@@ -651,48 +1185,150 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        System.out.println("📜 Loading group history: Group#" + groupId);
-
-        // Lấy tin nhắn từ database
-        List<Message> messages = MessageDAO.getGroupMessages(groupId, limit);
+        System.out.println("📜 Loading group history: Group#" + groupId + describeCursor(beforeId, afterId, sinceId));
+
+        // Tin vừa gửi trong group (còn trong journal) phải được ghi xuống database và vào lịch sử gần đây
+        MessageJournal.flushPendingGroup(groupId);
+
+        // Lấy thêm 1 dòng để biết còn trang tiếp theo không - trang gần đây lấy từ bộ nhớ nếu có
+        String recentKey = RecentMessages.groupKey(groupId);
+        List<JsonObject> items = RecentMessages.page(recentKey, queryBefore, queryAfter, limit + 1);
+        boolean fromMemory = items != null;
+        if (items == null) {
+            RecentMessages.Tail tail = RecentMessages.beginLoad(recentKey, queryBefore, queryAfter);
+            List<Message> messages = MessageDAO.getGroupMessagesPage(groupId, queryBefore, queryAfter, limit + 1);
+
+            List<String> contents = decryptTextContents(messages);
+            items = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                Message msg = messages.get(i);
+                // Sender username đã được MessageDAO resolve cho cả trang
+                String senderName = (msg.getSenderUsername() != null) ? msg.getSenderUsername() : "Unknown";
+                items.add(historyItem(msg, senderName, null, contents.get(i)));
+            }
+            RecentMessages.completeLoad(recentKey, tail, items, limit + 1);
+        }
+        boolean hasMore = trimPage(items, limit, queryBefore, queryAfter);
 
         // Tạo response
         JsonObject response = new JsonObject();
         response.addProperty("type", "GROUP_HISTORY");
+        response.addProperty("groupId", groupId);
+        addCursor(response, beforeId, afterId, hasMore);
+        if (sinceId != null) {
+            response.addProperty("sinceMessageId", sinceId);
+            response.addProperty("tooFarBehind", hasMore);
+        }
+        response.add("messages", toJsonArray(items));
+        sendMessage(response);
 
-        JsonArray messagesArray = new JsonArray();
-        for (Message msg : messages) {
-            JsonObject msgObj = new JsonObject();
-
-            // Lấy sender username
-            User sender = UserDAO.getUserById(msg.getSenderID());
-            String senderName = (sender != null) ? sender.getUsername() : "Unknown";
-
-            msgObj.addProperty("sender", senderName);
-            msgObj.addProperty("groupId", groupId);
-            msgObj.addProperty("messageType", msg.getMessageType());
-            msgObj.addProperty("timestamp", msg.getSentAt().toString());
-
-            // Xử lý theo loại message
-            if (msg.getMessageType().equals("TEXT")) {
-                // TEXT message - decrypt content
-                String decrypted = SecurityUtil.decryptMessage(msg.getContentEncrypted());
-                msgObj.addProperty("content", decrypted);
-            } else {
-                // FILE hoặc IMAGE message
-                String filePath = msg.getFilePath();
-                msgObj.addProperty("filePath", filePath);
-                msgObj.addProperty("fileName", com.beantalk.util.FileTransferUtil.getFileName(filePath));
-                msgObj.addProperty("content", "[File: " + com.beantalk.util.FileTransferUtil.getFileName(filePath) + "]");
-            }
+        System.out.println("✅ Sent " + items.size() + " group messages to " + username
+                + (fromMemory ? " (recent, from memory)" : ""));
+    }
+
+    /**
+     * Số tin mỗi trang lịch sử (mặc định 50, tối đa MAX_HISTORY_PAGE)
+     */
+    private static int historyLimit(JsonObject json) {
+        int limit = json.has("limit") ? json.get("limit").getAsInt() : 50;
+        return Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+    }
 
-            messagesArray.add(msgObj);
+    private static Integer optionalInt(JsonObject json, String name) {
+        return json.has(name) && !json.get(name).isJsonNull() ? json.get(name).getAsInt() : null;
+    }
+
+    private static String describeCursor(Integer beforeId, Integer afterId, Integer sinceId) {
+        if (beforeId != null) {
+            return " (before #" + beforeId + ")";
+        }
+        if (sinceId != null) {
+            return " (since #" + sinceId + ")";
         }
+        return afterId != null ? " (after #" + afterId + ")" : "";
+    }
 
-        response.add("messages", messagesArray);
-        sendMessage(response.toString());
+    /**
+     * Trang lấy dư 1 dòng (theo thứ tự tăng dần): bỏ dòng dư ở phía xa cursor nhất,
+     * trả về true nếu còn trang tiếp theo theo hướng đang đọc
+     */
+    private static <T> boolean trimPage(List<T> messages, int limit, Integer beforeId, Integer afterId) {
+        if (messages.size() <= limit) {
+            return false;
+        }
+        boolean older = beforeId != null || afterId == null;
+        messages.remove(older ? 0 : messages.size() - 1);
+        return true;
+    }
 
-        System.out.println("✅ Sent " + messages.size() + " group messages to " + username);
+    /**
+     * 1 tin trong CHAT_HISTORY / GROUP_HISTORY (content = nội dung đã giải mã, FILE/IMAGE thì bỏ qua).
+     * Có thể nằm trong RecentMessages và dùng chung cho nhiều response - không sửa sau khi tạo.
+     */
+    private static JsonObject historyItem(Message msg, String senderName, String receiverName, String content) {
+        JsonObject msgObj = new JsonObject();
+        msgObj.addProperty("messageId", msg.getMessageID());
+        msgObj.addProperty("sender", senderName);
+        if (receiverName != null) {
+            msgObj.addProperty("receiver", receiverName);
+        }
+        if (msg.getGroupID() != null) {
+            msgObj.addProperty("groupId", msg.getGroupID());
+        }
+        msgObj.addProperty("messageType", msg.getMessageType());
+        msgObj.addProperty("timestamp", msg.getSentAt().toString());
+
+        // Xử lý theo loại message
+        if (msg.getMessageType().equals("TEXT")) {
+            msgObj.addProperty("content", content);
+        } else {
+            // FILE hoặc IMAGE message
+            String filePath = msg.getFilePath();
+            msgObj.addProperty("filePath", filePath);
+            msgObj.addProperty("fileName", com.beantalk.util.FileTransferUtil.getFileName(filePath));
+            msgObj.addProperty("content", "[File: " + com.beantalk.util.FileTransferUtil.getFileName(filePath) + "]");
+        }
+        return msgObj;
+    }
+
+    /**
+     * Callback cho MessageJournal: sau khi tin được commit (đã có message_id) thì nối
+     * vào lịch sử gần đây của hội thoại
+     */
+    private Consumer<Message> rememberRecent(String recentKey, String receiverName, String content) {
+        String senderName = this.username;
+        return saved -> RecentMessages.append(recentKey, saved.getMessageID(),
+                historyItem(saved, senderName, receiverName, content));
+    }
+
+    private static JsonArray toJsonArray(List<JsonObject> items) {
+        JsonArray array = new JsonArray(items.size());
+        for (JsonObject item : items) {
+            array.add(item);
+        }
+        return array;
+    }
+
+    private static void addCursor(JsonObject response, Integer beforeId, Integer afterId, boolean hasMore) {
+        if (beforeId != null) {
+            response.addProperty("beforeMessageId", beforeId);
+        }
+        if (afterId != null) {
+            response.addProperty("afterMessageId", afterId);
+        }
+        response.addProperty("hasMore", hasMore);
+    }
+
+    /**
+     * Decrypt content của các tin TEXT trong 1 trang lịch sử bằng 1 lần gọi
+     * (phần tử ứng với tin FILE/IMAGE là null)
+     */
+    private static List<String> decryptTextContents(List<Message> messages) {
+        List<String> encrypted = new ArrayList<>(messages.size());
+        for (Message msg : messages) {
+            encrypted.add(msg.getMessageType().equals("TEXT") ? msg.getContentEncrypted() : null);
+        }
+        return SecurityUtil.decryptAll(encrypted);
     }
 
     /**
@@ -702,16 +1338,46 @@ public class ClientHandler implements Runnable {
         JsonObject response = new JsonObject();
         response.addProperty("type", "ONLINE_USERS");
         response.add("users", gson.toJsonTree(ChatServer.getOnlineUsers()));
-        sendMessage(response.toString());
+        sendMessage(response);
         System.out.println("👥 Sent online users list");
     }
 
     /**
-     * Gửi message đến client
+     * Gửi message đến client (chỉ đưa vào hàng đợi ghi của kết nối, không chờ socket)
      */
     public void sendMessage(String message) {
-        if (writer != null) {
-            writer.println(message);
+        sendBytes(OutboundFrame.toJsonLine(message), false, false);
+    }
+
+    /**
+     * Gửi message - binary frame nếu client hỗ trợ và type có trong BinaryCodec, ngược lại JSON
+     * (chỉ encode dạng client này dùng)
+     */
+    public void sendMessage(JsonObject message) {
+        byte[] binaryFrame = binary ? BinaryCodec.encode(message) : null;
+        if (binaryFrame != null) {
+            sendBytes(binaryFrame, true, false);
+        } else {
+            sendMessage(message.toString());
+        }
+    }
+
+    /**
+     * Gửi frame đã encode sẵn (fan-out: encode 1 lần, mọi client dùng chung byte)
+     */
+    void send(OutboundFrame frame) {
+        sendBytes(frame.bytesFor(binary), frame.isBinaryFor(binary), frame.isDroppable());
+    }
+
+    private void sendBytes(byte[] data, boolean binaryFrame, boolean droppable) {
+        if (connection == null) {
+            return;
+        }
+        connection.send(data, droppable);
+        if (binaryFrame) {
+            WireStats.binarySent(data.length);
+        } else {
+            WireStats.jsonSent(data.length);
         }
     }
 
@@ -729,28 +1395,56 @@ public class ClientHandler implements Runnable {
      * Disconnect client
      */
     public void disconnect() {
-        try {
-            ChatServer.removeClient(this);
-            if (username != null) {
-                JsonObject notification = new JsonObject();
-                notification.addProperty("type", "USER_LEFT");
-                notification.addProperty("username", username);
-                ChatServer.broadcast(notification.toString(), this);
-
-                // Update last_seen
-                if (userID != 0) {
-                    UserDAO.updateLastSeen(userID);
-                }
-                System.out.println("👋 " + username + " disconnected");
-            }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+        // Có thể được gọi từ nhiều nơi (DISCONNECT, mất kết nối, shutdown) - chỉ xử lý 1 lần
+        if (!disconnected.compareAndSet(false, true)) {
+            return;
+        }
+        ChatServer.removeClient(this);
+        // Xóa các file đang upload dở
+        for (FileUpload upload : uploads.values()) {
+            upload.abort();
+        }
+        uploads.clear();
+        for (FileDownload download : downloads.values()) {
+            download.cancel();
+        }
+        downloads.clear();
+        if (username != null) {
+            // PresenceTracker đối chiếu với registry: nếu user đã kết nối lại (RESUME) trước khi
+            // kết nối cũ bị phát hiện là đã chết thì không báo USER_LEFT
+            PresenceTracker.changed(username);
+        }
+        if (username != null && !ChatServer.isOnline(username)) {
+            // Update last_seen
+            if (userID != 0) {
+                UserDAO.updateLastSeen(userID);
             }
-        } catch (IOException e) {
-            System.err.println("Error disconnecting: " + e.getMessage());
+            System.out.println("👋 " + username + " disconnected");
+        }
+        if (connection != null) {
+            connection.close();
         }
     }
 
+    boolean wantsPresenceDeltas() {
+        return presenceDeltas;
+    }
+
+    /**
+     * Số byte đang chờ ghi tới client này (0 nếu chưa có kết nối)
+     */
+    long getOutboundQueuedBytes() {
+        return connection != null ? connection.getQueuedBytes() : 0;
+    }
+
+    long getOutboundQueuedFrames() {
+        return connection != null ? connection.getQueuedFrames() : 0;
+    }
+
+    long getOutboundPeakBytes() {
+        return connection != null ? connection.getPeakQueuedBytes() : 0;
+    }
+
     /**
      * Getters
      */
@@ -0,0 +1,118 @@
+package com.beantalk.server;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bảng định tuyến các client đã đăng nhập - tra cứu theo username và userID trong O(1)
+ *
+ * Username không phân biệt hoa thường (giống database và UserCache): key là username viết thường.
+ */
+public class ClientRegistry {
+    private final Map<String, ClientHandler> byUsername = new ConcurrentHashMap<>();
+    private final Map<Integer, ClientHandler> byUserId = new ConcurrentHashMap<>();
+
+    /**
+     * Đăng ký client sau khi login thành công (đăng nhập lại sẽ thay kết nối cũ)
+     */
+    public void register(String username, int userId, ClientHandler client) {
+        byUsername.put(key(username), client);
+        byUserId.put(userId, client);
+    }
+
+    /**
+     * Gỡ client - chỉ gỡ nếu entry vẫn trỏ tới đúng client này
+     */
+    public void unregister(String username, int userId, ClientHandler client) {
+        if (username != null) {
+            byUsername.remove(key(username), client);
+        }
+        if (userId != 0) {
+            byUserId.remove(userId, client);
+        }
+    }
+
+    public ClientHandler findByUsername(String username) {
+        return byUsername.get(key(username));
+    }
+
+    public ClientHandler findByUserId(int userId) {
+        return byUserId.get(userId);
+    }
+
+    /**
+     * Danh sách username đang online, đúng như trong database (view, không copy)
+     */
+    public Collection<String> usernames() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<String> iterator() {
+                Iterator<ClientHandler> clients = byUsername.values().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return clients.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return clients.next().getUsername();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return byUsername.size();
+            }
+        };
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    public int size() {
+        return byUsername.size();
+    }
+
+    // test: thời gian tra cứu không tăng theo số user online
+    public static void main(String[] args) {
+        System.out.println("=== CLIENT REGISTRY TEST ===\n");
+
+        int[] sizes = {1_000, 10_000, 50_000};
+        int lookups = 1_000_000;
+
+        for (int size : sizes) {
+            ClientRegistry registry = new ClientRegistry();
+            String[] names = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = "user" + (i + 1);
+                registry.register(names[i], i + 1, new ClientHandler((ClientConnection) null));
+            }
+
+            // warm up
+            long found = 0;
+            for (int i = 0; i < lookups; i++) {
+                if (registry.findByUserId(1 + i % size) != null) found++;
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int idx = i % size;
+                if (registry.findByUserId(idx + 1) != null) found++;
+                if (registry.findByUsername(names[idx]) != null) found++;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("%,7d users online: %.1f ns/lookup pair (found %d)%n",
+                    size, (double) elapsed / lookups, found);
+        }
+
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+}
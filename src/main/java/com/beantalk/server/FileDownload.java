@@ -0,0 +1,99 @@
+package com.beantalk.server;
+
+import com.beantalk.util.BinaryCodec;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Gửi 1 file trong uploads/ cho client - chạy trên thread riêng, dữ liệu đi thẳng từ
+ * FileChannel ra socket (transferTo), chia thành các frame FILE_DATA để tin nhắn chat
+ * vẫn chen vào được giữa các frame.
+ *
+ * Range giống HTTP: offset (byte bắt đầu) + length (-1 = tới hết file), dùng để tải tiếp
+ * sau khi bị ngắt.
+ */
+class FileDownload implements Runnable {
+    static final int FRAME_SIZE = 256 * 1024;
+
+    private final ClientHandler handler;
+    private final ClientConnection connection;
+    private final int downloadId;
+    private final Path path;
+    private final long offset;
+    private final long length;
+    private volatile boolean cancelled = false;
+
+    FileDownload(ClientHandler handler, ClientConnection connection, int downloadId,
+                 Path path, long offset, long length) {
+        this.handler = handler;
+        this.connection = connection;
+        this.downloadId = downloadId;
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        boolean streaming = false;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (offset < 0 || offset > size) {
+                sendFailed("Invalid range: offset " + offset + " of " + size + " bytes");
+                return;
+            }
+            long end = length < 0 ? size : Math.min(size, offset + length);
+
+            JsonObject start = new JsonObject();
+            start.addProperty("type", "DOWNLOAD_START");
+            start.addProperty("downloadId", downloadId);
+            start.addProperty("size", size);
+            start.addProperty("offset", offset);
+            start.addProperty("length", end - offset);
+            handler.sendMessage(start.toString());
+
+            streaming = true;
+            long position = offset;
+            while (position < end) {
+                if (cancelled) {
+                    return;
+                }
+                int n = (int) Math.min(FRAME_SIZE, end - position);
+                connection.sendFile(BinaryCodec.rawFrameHeader(BinaryCodec.FILE_DATA, downloadId, n),
+                        file, position, n);
+                position += n;
+            }
+
+            JsonObject done = new JsonObject();
+            done.addProperty("type", "DOWNLOAD_END");
+            done.addProperty("downloadId", downloadId);
+            handler.sendMessage(done.toString());
+        } catch (IOException e) {
+            System.err.println("❌ Download failed: " + path.getFileName() + " - " + e.getMessage());
+            if (streaming) {
+                // Frame có thể đã ghi dở - stream không còn đúng định dạng, đóng kết nối
+                connection.close();
+            } else {
+                sendFailed("Failed to read file: " + e.getMessage());
+            }
+        } finally {
+            handler.downloadFinished(downloadId, this);
+        }
+    }
+
+    private void sendFailed(String error) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "DOWNLOAD_FAILED");
+        response.addProperty("downloadId", downloadId);
+        response.addProperty("message", error);
+        handler.sendMessage(response.toString());
+    }
+}
@@ -0,0 +1,67 @@
+package com.beantalk.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 1 frame file trong hàng đợi ghi: header rồi vùng [position, position + count) của file.
+ * Thread download đưa region vào hàng đợi rồi chờ writer ghi xong (await).
+ */
+class FileRegion {
+    final ByteBuffer header;
+    final FileChannel file;
+    long position;
+    long remaining;
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    FileRegion(ByteBuffer header, FileChannel file, long position, long count) {
+        this.header = header;
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Ghi tiếp phần còn lại; false nếu socket đầy (non-blocking: chờ OP_WRITE lần sau)
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (header.hasRemaining()) {
+            channel.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        while (remaining > 0) {
+            long n = file.transferTo(position, remaining, channel);
+            if (n <= 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("File truncated while sending");
+                }
+                return false;
+            }
+            position += n;
+            remaining -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Chờ writer ghi xong region (gọi từ thread download)
+     */
+    void await() throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending file");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to send file", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.beantalk.server;
+
+import com.beantalk.util.FileTransferUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 1 file đang được upload theo chunk - dữ liệu ghi thẳng xuống uploads/ qua FileChannel,
+ * bộ nhớ không phụ thuộc kích thước file
+ */
+class FileUpload {
+    // Gửi UPLOAD_ACK mỗi khi nhận thêm chừng này byte (client chờ ACK để giới hạn dữ liệu đang bay)
+    static final long ACK_INTERVAL = 256 * 1024;
+
+    final int uploadId;
+    final String fileName;
+    final String messageType;
+    final String receiver;
+    final Integer groupId;
+    final long size;
+    final String filePath;
+
+    private final FileChannel channel;
+    private long received = 0;
+    private long acked = 0;
+
+    private FileUpload(int uploadId, String fileName, String messageType, String receiver, Integer groupId,
+                       long size, String filePath, FileChannel channel) {
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.messageType = messageType;
+        this.receiver = receiver;
+        this.groupId = groupId;
+        this.size = size;
+        this.filePath = filePath;
+        this.channel = channel;
+    }
+
+    static FileUpload open(int uploadId, String fileName, String messageType, String receiver, Integer groupId,
+                           long size) throws IOException {
+        String filePath = FileTransferUtil.newUploadPath(fileName);
+        FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new FileUpload(uploadId, fileName, messageType, receiver, groupId, size, filePath, channel);
+    }
+
+    /**
+     * Ghi 1 chunk; trả về true nếu đã tới lúc gửi UPLOAD_ACK
+     */
+    boolean write(byte[] data, int offset, int length) throws IOException {
+        if (received + length > size) {
+            throw new IOException("Upload exceeds declared size");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        received += length;
+
+        if (received - acked >= ACK_INTERVAL || received == size) {
+            acked = received;
+            return true;
+        }
+        return false;
+    }
+
+    long getReceived() {
+        return received;
+    }
+
+    boolean isComplete() {
+        return received == size;
+    }
+
+    /**
+     * Đóng file sau khi nhận đủ
+     */
+    void finish() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Hủy upload - xóa file đang ghi dở
+     */
+    void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(Paths.get(filePath));
+        } catch (IOException e) {
+            System.err.println("Error removing partial upload: " + e.getMessage());
+        }
+    }
+}
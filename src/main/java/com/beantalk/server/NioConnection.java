@@ -0,0 +1,393 @@
+package com.beantalk.server;
+
+import com.beantalk.util.BinaryCodec;
+import com.beantalk.util.ConfigUtil;
+import com.beantalk.util.FrameReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Kết nối NIO - đọc/ghi do event loop đảm nhiệm, xử lý message chạy trên worker pool.
+ * Các frame của cùng 1 client luôn được xử lý tuần tự, đúng thứ tự nhận.
+ * Nhận cả JSON lines lẫn binary frame (BinaryCodec), phân biệt bằng byte đầu tiên.
+ */
+public class NioConnection implements ClientConnection {
+    // Đánh dấu client đã đóng kết nối (so sánh theo identity)
+    private static final String EOF_MARKER = new String("<EOF>");
+    // Frame đã nhận nhưng worker chưa xử lý vượt quá HIGH_WATER byte thì ngừng đọc socket,
+    // đọc lại khi xuống dưới LOW_WATER (client gửi nhanh hơn server xử lý)
+    static final long INBOUND_HIGH_WATER =
+            Math.max(1, ConfigUtil.getLong("server.inbound.highWaterBytes", 1024 * 1024));
+    static final long INBOUND_LOW_WATER = INBOUND_HIGH_WATER / 2;
+
+    private static final LongAdder readPauses = new LongAdder();
+    private static final LongAdder longLineDisconnects = new LongAdder();
+
+    private final SocketChannel channel;
+    private final NioEventLoop eventLoop;
+    private final ExecutorService workers;
+    private final String remoteAddress;
+    private ClientHandler handler;
+    private SelectionKey key;
+
+    // Chỉ event loop chạm vào các buffer này
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final byte[] binaryHeader = new byte[BinaryCodec.HEADER_SIZE];
+    private int binaryHeaderLength = 0;
+    private byte[] binaryPayload;          // != null: đang đọc dở body của binary frame
+    private int binaryPayloadLength = 0;
+    private int binaryPayloadTotal = 0;    // type byte + body
+
+    // String = JSON line, byte[] = binary payload (type byte + body)
+    private final Queue<Object> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private final AtomicLong inboundBytes = new AtomicLong();
+    private final AtomicBoolean readPaused = new AtomicBoolean(false);
+
+    // Hàng đợi ghi có giới hạn, chỉ event loop lấy ra ghi
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[OutboundQueue.GATHER_MAX_FRAMES];
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+    private final AtomicBoolean eof = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    public NioConnection(SocketChannel channel, NioEventLoop eventLoop, ExecutorService workers) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+        this.remoteAddress = describe(channel);
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    // ============ READ (event loop thread) ============
+
+    /**
+     * Tách các frame hoàn chỉnh từ dữ liệu vừa đọc, phần còn dư giữ lại cho lần sau
+     */
+    void onBytes(ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        int i = buffer.position();
+        int end = buffer.limit();
+
+        while (i < end) {
+            if (binaryPayload != null) {
+                // Body của binary frame - buffer lớn dần theo dữ liệu nhận được
+                if (binaryPayloadLength == binaryPayload.length) {
+                    binaryPayload = Arrays.copyOf(binaryPayload,
+                            (int) Math.min(binaryPayloadTotal, 2L * binaryPayload.length));
+                }
+                int n = Math.min(end - i, binaryPayload.length - binaryPayloadLength);
+                System.arraycopy(data, i, binaryPayload, binaryPayloadLength, n);
+                binaryPayloadLength += n;
+                i += n;
+                if (binaryPayloadLength == binaryPayloadTotal) {
+                    addInbound(binaryPayload);
+                    binaryPayload = null;
+                }
+            } else if (binaryHeaderLength > 0 || (partialLine.size() == 0 && data[i] == BinaryCodec.MAGIC)) {
+                // Header của binary frame (chỉ nhận MAGIC ở đầu frame)
+                binaryHeader[binaryHeaderLength++] = data[i++];
+                if (binaryHeaderLength == BinaryCodec.HEADER_SIZE) {
+                    startBinaryPayload();
+                }
+            } else {
+                // JSON line
+                int newline = i;
+                while (newline < end && data[newline] != '\n') {
+                    newline++;
+                }
+                if (partialLine.size() + (newline - i) > FrameReader.MAX_LINE_BYTES) {
+                    longLineDisconnects.increment();
+                    throw new IOException("Line too long (max " + FrameReader.MAX_LINE_BYTES + " bytes)");
+                }
+                partialLine.write(data, i, newline - i);
+                if (newline < end) {
+                    addInbound(takeLine());
+                    newline++;
+                }
+                i = newline;
+            }
+        }
+        buffer.position(end);
+
+        if (inboundBytes.get() > INBOUND_HIGH_WATER) {
+            pauseRead();
+        }
+        scheduleDispatch();
+    }
+
+    private void addInbound(Object frame) {
+        inboundBytes.addAndGet(sizeOf(frame));
+        inbound.add(frame);
+    }
+
+    private static int sizeOf(Object frame) {
+        return frame instanceof byte[] payload ? payload.length : ((String) frame).length();
+    }
+
+    /**
+     * Tắt OP_READ (event loop) - socket đầy dần thì TCP tự làm client gửi chậm lại
+     */
+    private void pauseRead() {
+        if (!readPaused.compareAndSet(false, true)) {
+            return;
+        }
+        readPauses.increment();
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        // Worker có thể đã xử lý xong trước khi readPaused được bật
+        if (inboundBytes.get() < INBOUND_LOW_WATER) {
+            resumeRead();
+        }
+    }
+
+    private void resumeRead() {
+        if (readPaused.compareAndSet(true, false) && key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void startBinaryPayload() throws IOException {
+        binaryHeaderLength = 0;
+        int length = BinaryCodec.readLength(binaryHeader);
+        int max = handler.maxInboundFrameSize(binaryHeader[1] & 0xFF);
+        if (length < 0 || length > max) {
+            throw new IOException("Binary frame too large: " + length + " (max " + max + ")");
+        }
+        byte[] payload = new byte[Math.min(length + 1, BinaryCodec.INITIAL_PAYLOAD_SIZE)];
+        payload[0] = binaryHeader[1];
+        if (length == 0) {
+            addInbound(payload);
+        } else {
+            binaryPayload = payload;
+            binaryPayloadLength = 1;
+            binaryPayloadTotal = length + 1;
+        }
+    }
+
+    /**
+     * Client đóng kết nối - disconnect được xử lý sau các dòng còn trong hàng đợi
+     */
+    void onEof() {
+        closed = true;
+        if (!eof.compareAndSet(false, true)) {
+            return;
+        }
+        inbound.add(EOF_MARKER);
+        scheduleDispatch();
+    }
+
+    private String takeLine() {
+        String line = partialLine.toString(StandardCharsets.UTF_8);
+        partialLine.reset();
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        return line;
+    }
+
+    // ============ DISPATCH (worker thread) ============
+
+    private void scheduleDispatch() {
+        if (!inbound.isEmpty() && dispatching.compareAndSet(false, true)) {
+            workers.execute(this::drainInbound);
+        }
+    }
+
+    private void drainInbound() {
+        try {
+            Object frame;
+            while ((frame = inbound.poll()) != null) {
+                if (frame == EOF_MARKER) {
+                    handler.disconnect();
+                    inbound.clear();
+                    return;
+                }
+                try {
+                    if (frame instanceof byte[] payload) {
+                        handler.handleBinary(payload);
+                    } else {
+                        handler.handleLine((String) frame);
+                    }
+                } catch (RuntimeException e) {
+                    // 1 frame lỗi không được làm mất các frame sau của client
+                    System.err.println("Error handling frame from " + remoteAddress + ": " + e);
+                } finally {
+                    // Luôn trừ, kể cả khi handler ném Error - nếu không OP_READ có thể bị tắt mãi
+                    if (inboundBytes.addAndGet(-sizeOf(frame)) < INBOUND_LOW_WATER && readPaused.get()) {
+                        eventLoop.execute(this::resumeRead);
+                    }
+                }
+            }
+        } finally {
+            dispatching.set(false);
+            scheduleDispatch();
+        }
+    }
+
+    // ============ WRITE ============
+
+    @Override
+    public void send(byte[] data, boolean droppable) {
+        enqueue(ByteBuffer.wrap(data), droppable);
+    }
+
+    /**
+     * Đưa cả frame (header + vùng file) vào hàng đợi như 1 phần tử rồi chờ event loop ghi xong
+     * (gọi từ thread download, không phải event loop)
+     */
+    @Override
+    public void sendFile(byte[] header, FileChannel file, long position, long count) throws IOException {
+        FileRegion region = new FileRegion(ByteBuffer.wrap(header), file, position, count);
+        if (!outbound.offerFile(region)) {
+            throw new ClosedChannelException();
+        }
+        requestWrite();
+        region.await();
+    }
+
+    private void enqueue(ByteBuffer data, boolean droppable) {
+        OutboundQueue.Result result = outbound.offer(data, droppable);
+        if (result == OutboundQueue.Result.QUEUED) {
+            requestWrite();
+        } else if (result == OutboundQueue.Result.OVERFLOW) {
+            System.out.println("🐢 Slow consumer disconnected: " + remoteAddress
+                    + " (" + outbound.getQueuedBytes() + " bytes, "
+                    + outbound.getQueuedFrames() + " frames queued)");
+            close();
+            // Event loop không còn đọc kênh này - tự báo disconnect cho handler
+            onEof();
+        }
+    }
+
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            eventLoop.execute(this::enableWrite);
+        }
+    }
+
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Ghi hết hàng đợi ra socket, các frame liên tiếp được gộp thành 1 lần gathering write;
+     * nếu socket đầy thì chờ OP_WRITE lần sau
+     */
+    void onWritable() throws IOException {
+        Object head;
+        while ((head = outbound.peek()) != null) {
+            if (head instanceof FileRegion region) {
+                if (!region.writeTo(channel)) {
+                    return;
+                }
+                region.done.complete(null);
+                outbound.remove();
+            } else if (!outbound.writeTo(channel, writeBatch)) {
+                return;
+            }
+        }
+
+        // Chỉ tắt OP_WRITE - OP_READ có thể đang bị tắt vì inbound đầy
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeRequested.set(false);
+
+        // Có message mới được thêm vào trong lúc đang tắt OP_WRITE
+        if (!outbound.isEmpty() && writeRequested.compareAndSet(false, true)) {
+            enableWrite();
+        }
+    }
+
+    // ============ CLOSE ============
+
+    @Override
+    public void close() {
+        closed = true;
+        // Từ chối frame mới ngay, không chờ event loop
+        outbound.close();
+        eventLoop.execute(() -> {
+            if (key != null) {
+                key.cancel();
+            }
+            closeChannel();
+        });
+    }
+
+    void closeChannel() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel: " + e.getMessage());
+        }
+        // Bỏ frame còn chờ, báo lỗi cho các thread download đang chờ
+        outbound.close();
+    }
+
+    public static long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    public static long getLongLineDisconnects() {
+        return longLineDisconnects.sum();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outbound.getQueuedFrames();
+    }
+
+    @Override
+    public long getPeakQueuedBytes() {
+        return outbound.getPeakBytes();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    private static String describe(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            return String.valueOf(address);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.beantalk.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop NIO - 1 thread + 1 Selector phục vụ đọc/ghi cho nhiều kết nối
+ */
+public class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final String name;
+    // Tạo trong start(), không tạo trong constructor (this chưa khởi tạo xong)
+    private volatile Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Dùng chung cho mọi kết nối của loop này, dữ liệu được copy vào NioConnection ngay
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.name = name;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Đăng ký channel mới vào selector (chạy trên thread của loop)
+     */
+    public void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SocketChannel channel = connection.getChannel();
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+            } catch (IOException e) {
+                System.err.println("Error registering channel: " + e.getMessage());
+                connection.onEof();
+                connection.closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Đưa task vào loop, đánh thức selector nếu gọi từ thread khác
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    processKey(key);
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                readBuffer.clear();
+                int n = connection.getChannel().read(readBuffer);
+                if (n < 0) {
+                    closeKey(key, connection);
+                    return;
+                }
+                readBuffer.flip();
+                connection.onBytes(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            closeKey(key, connection);
+        }
+    }
+
+    private void closeKey(SelectionKey key, NioConnection connection) {
+        key.cancel();
+        connection.closeChannel();
+        connection.onEof();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.beantalk.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server engine NIO - vài event loop đọc/ghi cho toàn bộ kết nối,
+ * ClientHandler (có gọi DAO blocking) chạy trên worker pool riêng
+ */
+public class NioServer {
+    private final int port;
+    private final NioEventLoop[] eventLoops;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0;
+
+    public NioServer(int port, int eventLoopCount, int workerCount) throws IOException {
+        this.port = port;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new NioEventLoop("nio-loop-" + i);
+        }
+
+        this.workerCount = workerCount;
+        AtomicInteger workerIndex = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "nio-worker-" + workerIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Mở cổng và nhận kết nối (blocking trên thread gọi)
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        for (NioEventLoop loop : eventLoops) {
+            loop.start();
+        }
+        System.out.println("NIO engine: " + eventLoops.length + " event loops");
+
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = serverChannel.accept();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            // Chia đều kết nối cho các event loop (round-robin)
+            NioEventLoop loop = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+
+            NioConnection connection = new NioConnection(channel, loop, workers);
+            ClientHandler clientHandler = new ClientHandler(connection);
+            connection.setHandler(clientHandler);
+
+            System.out.println("New client connected: " + connection.getRemoteAddress());
+            ChatServer.addClient(clientHandler);
+            loop.register(connection);
+        }
+    }
+
+    /**
+     * Số thread cố định của engine (event loop + worker)
+     */
+    public long getThreadCount() {
+        return eventLoops.length + workerCount;
+    }
+
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+        for (NioEventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+        workers.shutdown();
+    }
+}
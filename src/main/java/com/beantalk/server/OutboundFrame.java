@@ -0,0 +1,164 @@
+package com.beantalk.server;
+
+import com.beantalk.util.BinaryCodec;
+import com.google.gson.JsonObject;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message đã encode sẵn, bất biến - serialize đúng 1 lần rồi ghi nguyên các byte này
+ * cho mọi client nhận (fan-out group, presence), không toString / getBytes lại
+ * cho từng người.
+ *
+ * Giữ cả 2 dạng: JSON line (UTF-8, đã kèm '\n') và binary frame (null nếu type không có
+ * trong BinaryCodec hoặc tắt protocol.binary); mỗi client lấy dạng mình đã thỏa thuận.
+ * Các mảng byte được chia sẻ giữa mọi hàng đợi ghi nên không được sửa sau khi tạo.
+ */
+final class OutboundFrame {
+    private final byte[] jsonLine;
+    private final byte[] binaryFrame;
+    private final boolean droppable;
+
+    private OutboundFrame(byte[] jsonLine, byte[] binaryFrame, boolean droppable) {
+        this.jsonLine = jsonLine;
+        this.binaryFrame = binaryFrame;
+        this.droppable = droppable;
+    }
+
+    /**
+     * Encode message cho fan-out
+     */
+    static OutboundFrame of(JsonObject message) {
+        return of(message, false);
+    }
+
+    /**
+     * droppable = được bỏ khi client đọc chậm (xem OutboundQueue)
+     */
+    static OutboundFrame of(JsonObject message, boolean droppable) {
+        byte[] binaryFrame = ClientHandler.BINARY_PROTOCOL ? BinaryCodec.encode(message) : null;
+        return new OutboundFrame(toJsonLine(message.toString()), binaryFrame, droppable);
+    }
+
+    static byte[] toJsonLine(String json) {
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Byte ghi xuống socket cho client có / không dùng binary
+     */
+    byte[] bytesFor(boolean binaryClient) {
+        return binaryClient && binaryFrame != null ? binaryFrame : jsonLine;
+    }
+
+    boolean isBinaryFor(boolean binaryClient) {
+        return binaryClient && binaryFrame != null;
+    }
+
+    boolean isDroppable() {
+        return droppable;
+    }
+
+    // benchmark: số byte cấp phát cho 1 tin nhắn group gửi tới 500 thành viên (client JSON)
+    // - cách cũ: toString 2 lần + (message + "\n").getBytes cho từng người nhận
+    // - cách mới: encode 1 lần, mọi hàng đợi dùng chung mảng byte
+    public static void main(String[] args) {
+        System.out.println("=== OUTBOUND FRAME BENCHMARK ===\n");
+
+        int members = 500;
+        List<ClientHandler> recipients = new ArrayList<>();
+        List<OutboundQueue> queues = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            OutboundQueue queue = new OutboundQueue();
+            queues.add(queue);
+            recipients.add(new ClientHandler(new ClientConnection() {
+                @Override
+                public void send(byte[] data, boolean droppable) {
+                    queue.offer(ByteBuffer.wrap(data), droppable);
+                }
+
+                @Override
+                public void sendFile(byte[] header, FileChannel file, long position, long count) {
+                }
+
+                @Override
+                public long getQueuedBytes() {
+                    return queue.getQueuedBytes();
+                }
+
+                @Override
+                public int getQueuedFrames() {
+                    return queue.getQueuedFrames();
+                }
+
+                @Override
+                public long getPeakQueuedBytes() {
+                    return queue.getPeakBytes();
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return "bench";
+                }
+            }));
+        }
+
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "NEW_MESSAGE");
+        message.addProperty("sender", "alice");
+        message.addProperty("content", "Chào cả nhóm, tối nay 8h họp nhé! ".repeat(4));
+        message.addProperty("groupId", 42);
+        System.out.println("Message: " + toJsonLine(message.toString()).length + " bytes, recipients: " + members + "\n");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        int iterations = 2000;
+
+        for (int round = 0; round < 2; round++) {   // vòng đầu để warm up
+            for (boolean encodeOnce : new boolean[]{false, true}) {
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (encodeOnce) {
+                        OutboundFrame frame = of(message);
+                        for (ClientHandler client : recipients) {
+                            client.send(frame);
+                        }
+                    } else {
+                        // Cách cũ: sendMessage cho sender và broadcastToGroup đều toString,
+                        // rồi mỗi người nhận tự getBytes chuỗi JSON
+                        message.toString();
+                        String json = message.toString();
+                        for (ClientHandler client : recipients) {
+                            client.sendMessage(json);
+                        }
+                    }
+                    for (OutboundQueue queue : queues) {
+                        while (queue.peek() != null) {
+                            queue.remove();
+                        }
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+                if (round == 1) {
+                    System.out.println((encodeOnce ? "Encode once:      " : "Encode per member:")
+                            + " " + allocated / iterations / 1024 + " KB allocated, "
+                            + nanos / iterations / 1000 + " us per fan-out");
+                }
+            }
+        }
+
+        System.out.println("\n=== BENCHMARK COMPLETED ===");
+    }
+}
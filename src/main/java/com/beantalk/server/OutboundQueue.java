@@ -0,0 +1,370 @@
+package com.beantalk.server;
+
+import com.beantalk.util.ConfigUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hàng đợi ghi có giới hạn của 1 kết nối. Thread gửi (broadcast, fan-out) chỉ thêm vào
+ * hàng đợi rồi đi tiếp; writer của kết nối (event loop NIO hoặc thread ghi riêng của
+ * kết nối blocking) lấy ra ghi xuống socket. Nhờ đó 1 client đọc chậm không làm chậm
+ * người gửi hay các client khác.
+ *
+ * Khi số byte đang chờ vượt maxBytes:
+ *   1. bỏ các frame "droppable" (presence) còn trong hàng đợi - client thấy version nhảy
+ *      ở delta tiếp theo và tự xin snapshot lại
+ *   2. vẫn không đủ chỗ: frame droppable mới bị bỏ, frame thường -> OVERFLOW,
+ *      kết nối bị ngắt (slow consumer)
+ * Các frame writer đang ghi dở không bao giờ bị bỏ. Frame file (FileRegion)
+ * chỉ tính phần header vì nội dung được đọc dần từ file khi ghi.
+ *
+ * Writer ghi gộp các frame đang chờ bằng 1 lần gathering write (writev) thay vì
+ * 1 syscall cho mỗi frame như PrintWriter autoflush trước đây.
+ */
+class OutboundQueue {
+    static final long MAX_BYTES = ConfigUtil.getLong("server.outbound.maxBytes", 4 * 1024 * 1024);
+    // Giới hạn 1 lần gathering write
+    static final int GATHER_MAX_FRAMES = Math.max(1, ConfigUtil.getInt("server.outbound.gatherFrames", 64));
+    private static final long GATHER_MAX_BYTES = 256 * 1024;
+    // Writer blocking chờ thêm tối đa N micro giây để gom frame trước khi ghi (0 = ghi ngay)
+    private static final long LINGER_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(ConfigUtil.getLong("server.outbound.lingerMicros", 0));
+
+    enum Result { QUEUED, DROPPED, OVERFLOW, CLOSED }
+
+    /**
+     * 1 frame đã encode; droppable = được phép bỏ khi client đọc chậm
+     */
+    private static final class Frame {
+        final ByteBuffer buffer;
+        final int size;
+        final boolean droppable;
+
+        Frame(ByteBuffer buffer, boolean droppable) {
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+            this.droppable = droppable;
+        }
+    }
+
+    // ReentrantLock thay vì synchronized để writer là virtual thread không bị pin khi chờ
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // Frame hoặc FileRegion
+    private final ArrayDeque<Object> items = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long peakBytes = 0;
+    // Số frame đầu hàng đợi writer đang ghi (không được bỏ)
+    private int inFlight = 0;
+    private boolean closed = false;
+
+    // Metrics chung cho mọi kết nối
+    private static final LongAdder droppedFrames = new LongAdder();
+    private static final LongAdder overflows = new LongAdder();
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder framesWritten = new LongAdder();
+
+    /**
+     * Thêm 1 frame; xem Result để biết frame có được đưa vào hàng đợi hay không
+     */
+    Result offer(ByteBuffer buffer, boolean droppable) {
+        int size = buffer.remaining();
+        lock.lock();
+        try {
+            if (closed) {
+                return Result.CLOSED;
+            }
+            // Hàng đợi rỗng thì luôn nhận (1 frame lớn hơn maxBytes, VD trang lịch sử lớn)
+            if (queuedBytes > 0 && queuedBytes + size > MAX_BYTES) {
+                dropDroppable();
+                if (queuedBytes > 0 && queuedBytes + size > MAX_BYTES) {
+                    if (droppable) {
+                        droppedFrames.increment();
+                        return Result.DROPPED;
+                    }
+                    overflows.increment();
+                    return Result.OVERFLOW;
+                }
+            }
+            items.add(new Frame(buffer, droppable));
+            queuedBytes += size;
+            peakBytes = Math.max(peakBytes, queuedBytes);
+            notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thêm frame file - không áp giới hạn (thread download đang chờ nên mỗi download chỉ có
+     * tối đa 1 region trong hàng đợi); false nếu kết nối đã đóng
+     */
+    boolean offerFile(FileRegion region) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            items.add(region);
+            queuedBytes += region.header.capacity();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bỏ các frame presence chưa ghi (trừ các frame đầu writer có thể đang ghi dở)
+     */
+    private void dropDroppable() {
+        Iterator<Object> it = items.iterator();
+        for (int i = Math.max(1, inFlight); i > 0 && it.hasNext(); i--) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            if (it.next() instanceof Frame frame && frame.droppable) {
+                it.remove();
+                queuedBytes -= frame.size;
+                droppedFrames.increment();
+            }
+        }
+    }
+
+    /**
+     * Phần tử đầu hàng đợi (ByteBuffer hoặc FileRegion), null nếu rỗng.
+     * Chỉ writer gọi; phần tử vẫn nằm trong hàng đợi tới khi gọi remove().
+     */
+    Object peek() {
+        lock.lock();
+        try {
+            return unwrap(items.peek());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Giống peek() nhưng chờ tới khi có dữ liệu; null nếu hàng đợi đã đóng
+     */
+    Object awaitHead() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : unwrap(items.peek());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Object unwrap(Object item) {
+        return item instanceof Frame frame ? frame.buffer : item;
+    }
+
+    /**
+     * Bỏ phần tử đầu sau khi writer đã ghi xong
+     */
+    void remove() {
+        remove(1);
+    }
+
+    /**
+     * Bỏ count phần tử đầu sau khi writer đã ghi xong
+     */
+    void remove(int count) {
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                Object head = items.poll();
+                if (head instanceof Frame frame) {
+                    queuedBytes -= frame.size;
+                } else if (head instanceof FileRegion region) {
+                    queuedBytes -= region.header.capacity();
+                }
+            }
+            inFlight = Math.max(0, inFlight - count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lấy các frame liên tiếp ở đầu hàng đợi (dừng ở FileRegion) cho 1 lần ghi gộp;
+     * các frame này được đánh dấu đang ghi tới khi remove()
+     */
+    int gather(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            long bytes = 0;
+            for (Object item : items) {
+                if (!(item instanceof Frame frame) || count == batch.length
+                        || (count > 0 && bytes + frame.buffer.remaining() > GATHER_MAX_BYTES)) {
+                    break;
+                }
+                batch[count++] = frame.buffer;
+                bytes += frame.buffer.remaining();
+            }
+            inFlight = Math.max(inFlight, count);
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ghi gộp các frame đầu hàng đợi bằng 1 lần gathering write (writev).
+     * Trả về false nếu còn frame ghi dở (socket non-blocking đầy).
+     */
+    boolean writeTo(GatheringByteChannel channel, ByteBuffer[] batch) throws IOException {
+        int count = gather(batch);
+        if (count == 0) {
+            return true;
+        }
+        try {
+            channel.write(batch, 0, count);
+            int completed = 0;
+            while (completed < count && !batch[completed].hasRemaining()) {
+                completed++;
+            }
+            recordWrite(completed);
+            remove(completed);
+            return completed == count;
+        } finally {
+            Arrays.fill(batch, 0, count, null);
+        }
+    }
+
+    /**
+     * Writer blocking: chờ thêm frame tối đa lingerMicros trước khi ghi,
+     * dừng sớm nếu đã đủ 1 lần ghi gộp
+     */
+    void linger() throws InterruptedException {
+        if (LINGER_NANOS <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            long remaining = LINGER_NANOS;
+            while (remaining > 0 && !closed
+                    && items.size() < GATHER_MAX_FRAMES && queuedBytes < GATHER_MAX_BYTES) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 1 lần ghi xuống socket (1 syscall) chứa frames frame
+     */
+    static void recordWrite(int frames) {
+        writes.increment();
+        framesWritten.add(frames);
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return items.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đóng hàng đợi: bỏ hết frame, báo lỗi cho các thread download đang chờ
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Object item : items) {
+                if (item instanceof FileRegion region) {
+                    region.done.completeExceptionally(new ClosedChannelException());
+                }
+            }
+            items.clear();
+            queuedBytes = 0;
+            inFlight = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ============ METRICS ============
+
+    /**
+     * Số byte đang chờ ghi của kết nối này
+     */
+    long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Số frame đang chờ ghi của kết nối này
+     */
+    int getQueuedFrames() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Số byte chờ ghi lớn nhất từng có của kết nối này
+     */
+    long getPeakBytes() {
+        lock.lock();
+        try {
+            return peakBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public static long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    public static long getWriteCount() {
+        return writes.sum();
+    }
+
+    public static long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * Số syscall ghi cho mỗi 1000 frame (1000 = mỗi frame 1 syscall như autoflush)
+     */
+    public static long getWritesPer1000Frames() {
+        long frames = framesWritten.sum();
+        return frames == 0 ? 0 : writes.sum() * 1000 / frames;
+    }
+}
@@ -0,0 +1,207 @@
+package com.beantalk.server;
+
+import com.beantalk.util.ConfigUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Danh sách online có version - mỗi thay đổi (user online / offline) tăng version lên 1.
+ *
+ * Client đã thỏa thuận (HELLO presence=true) lấy PRESENCE_SNAPSHOT 1 lần rồi chỉ nhận
+ * PRESENCE_DELTA; thấy version bị nhảy thì xin snapshot lại. Client cũ vẫn nhận
+ * USER_JOINED / USER_LEFT như trước.
+ *
+ * ClientHandler chỉ báo "user này vừa thay đổi"; 1 thread duy nhất so trạng thái thật
+ * trong ClientRegistry với danh sách đã công bố rồi phát delta, nên delta luôn đi theo
+ * đúng thứ tự version và không bao giờ lệch với registry (VD: đăng nhập lại trong lúc
+ * kết nối cũ đang đóng).
+ *
+ * Thay đổi được gom trong cửa sổ coalesceMs (VD: cả nghìn user kết nối lại sau khi server
+ * restart) thành 1 delta cho mỗi client; user vào rồi ra ngay trong cùng cửa sổ thì
+ * không phát gì cả.
+ */
+class PresenceTracker {
+    private static final long COALESCE_MS = ConfigUtil.getLong("presence.coalesceMs", 100);
+
+    private static final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    // Trạng thái đã công bố - chỉ thread dispatcher ghi, snapshot() đọc dưới cùng khóa
+    private static final Object lock = new Object();
+    private static final Set<String> online = new LinkedHashSet<>();
+    private static long version = 0;
+
+    // Metrics
+    private static final LongAdder eventsReceived = new LongAdder();
+    private static final LongAdder eventsCancelled = new LongAdder();
+    private static final LongAdder deltasPublished = new LongAdder();
+    private static final LongAdder framesSent = new LongAdder();
+
+    static {
+        Thread dispatcher = new Thread(PresenceTracker::runDispatcher, "presence-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Báo user vừa đăng nhập / ngắt kết nối - trạng thái thật đọc lại từ registry khi xử lý
+     */
+    static void changed(String username) {
+        eventsReceived.increment();
+        changes.add(username);
+    }
+
+    /**
+     * PRESENCE_SNAPSHOT: toàn bộ danh sách online kèm version hiện tại
+     */
+    static JsonObject snapshot() {
+        JsonArray users = new JsonArray();
+        long snapshotVersion;
+        synchronized (lock) {
+            for (String username : online) {
+                users.add(username);
+            }
+            snapshotVersion = version;
+        }
+
+        JsonObject json = new JsonObject();
+        json.addProperty("type", "PRESENCE_SNAPSHOT");
+        json.addProperty("version", snapshotVersion);
+        json.add("users", users);
+        return json;
+    }
+
+    private static void runDispatcher() {
+        Set<String> batch = new LinkedHashSet<>();
+        while (true) {
+            try {
+                batch.add(changes.take());
+                // Gom thêm các thay đổi tới trong cửa sổ
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COALESCE_MS);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    String next = changes.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                publish(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Presence dispatch error: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void publish(Set<String> usernames) {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        long deltaVersion;
+        synchronized (lock) {
+            for (String username : usernames) {
+                if (ChatServer.isOnline(username)) {
+                    if (online.add(username)) {
+                        joined.add(username);
+                    }
+                } else if (online.remove(username)) {
+                    left.add(username);
+                }
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                eventsCancelled.add(usernames.size());
+                return;
+            }
+            deltaVersion = ++version;
+        }
+        eventsCancelled.add(usernames.size() - joined.size() - left.size());
+        deltasPublished.increment();
+
+        JsonObject delta = new JsonObject();
+        delta.addProperty("type", "PRESENCE_DELTA");
+        delta.addProperty("version", deltaVersion);
+        if (!joined.isEmpty()) {
+            delta.add("joined", toJsonArray(joined));
+        }
+        if (!left.isEmpty()) {
+            delta.add("left", toJsonArray(left));
+        }
+
+        // Encode 1 lần cho cả lượt fan-out; delta được phép bỏ khi client đọc chậm
+        // (client resync theo version), client cũ không resync được nên USER_JOINED / USER_LEFT thì không
+        OutboundFrame deltaFrame = OutboundFrame.of(delta, true);
+        // Client cũ chỉ hiểu từng USER_JOINED / USER_LEFT
+        List<OutboundFrame> legacyFrames = new ArrayList<>();
+        List<String> legacyUsers = new ArrayList<>();
+        addLegacy(legacyFrames, legacyUsers, "USER_JOINED", joined);
+        addLegacy(legacyFrames, legacyUsers, "USER_LEFT", left);
+
+        // Delta cho mọi client đã đăng nhập (kể cả chính user đó để version liền mạch),
+        // USER_JOINED / USER_LEFT cho client cũ trừ chính user đó
+        long frames = 0;
+        for (ClientHandler client : ChatServer.getClients()) {
+            if (client.wantsPresenceDeltas()) {
+                if (client.getUsername() != null) {
+                    client.send(deltaFrame);
+                    frames++;
+                }
+                continue;
+            }
+            for (int i = 0; i < legacyFrames.size(); i++) {
+                if (!legacyUsers.get(i).equals(client.getUsername())) {
+                    client.send(legacyFrames.get(i));
+                    frames++;
+                }
+            }
+        }
+        framesSent.add(frames);
+    }
+
+    private static void addLegacy(List<OutboundFrame> frames, List<String> users,
+                                  String type, List<String> usernames) {
+        for (String username : usernames) {
+            JsonObject legacy = new JsonObject();
+            legacy.addProperty("type", type);
+            legacy.addProperty("username", username);
+            frames.add(OutboundFrame.of(legacy));
+            users.add(username);
+        }
+    }
+
+    private static JsonArray toJsonArray(List<String> usernames) {
+        JsonArray array = new JsonArray();
+        for (String username : usernames) {
+            array.add(username);
+        }
+        return array;
+    }
+
+    // ============ METRICS ============
+
+    public static long getEventsReceived() {
+        return eventsReceived.sum();
+    }
+
+    public static long getEventsCancelled() {
+        return eventsCancelled.sum();
+    }
+
+    public static long getDeltasPublished() {
+        return deltasPublished.sum();
+    }
+
+    public static long getFramesSent() {
+        return framesSent.sum();
+    }
+}
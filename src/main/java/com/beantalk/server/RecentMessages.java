@@ -0,0 +1,397 @@
+package com.beantalk.server;
+
+import com.beantalk.util.ConfigUtil;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Đuôi lịch sử trong bộ nhớ cho mỗi hội thoại (chat 1-1 hoặc group): perConversation tin mới
+ * nhất, đã giải mã và dựng sẵn thành phần tử của CHAT_HISTORY / GROUP_HISTORY, nên trường hợp
+ * hay gặp nhất "mở chat, xem tin gần đây" không cần query SQL hay decrypt lại.
+ *
+ * Tail chỉ được tạo khi lần đầu đọc trang mới nhất từ database (beginLoad / completeLoad),
+ * sau đó được nối thêm từ đường gửi tin (MessageJournal gọi append sau khi commit, lúc đã có
+ * message_id). Tin được commit trong lúc đang load cũng được nối vào tail, trùng thì bỏ
+ * theo message_id, nên tail luôn chứa đủ mọi tin có id > coveredAfter() - trang nào
+ * nằm trọn trong khoảng đó mới được trả từ bộ nhớ, còn lại vẫn đọc database.
+ *
+ * Bộ nhớ của mọi tail (ước lượng theo byte: chi phí cố định mỗi tail + mảng + nội dung tin)
+ * bị giới hạn bởi maxBytes: vượt quá thì bỏ cả hội thoại ít được mở / nhắn nhất (LRU),
+ * kể cả tail rỗng. Các JsonObject được dùng chung giữa các response nên không được sửa
+ * sau khi đưa vào.
+ */
+class RecentMessages {
+    private static final int PER_CONVERSATION = ConfigUtil.getInt("history.recent.perConversation", 100);
+    private static final long MAX_BYTES = ConfigUtil.getLong("history.recent.maxBytes", 32L * 1024 * 1024);
+
+    // Ước lượng bộ nhớ: object Tail + entry trong map, mỗi ô ring (int + reference),
+    // mỗi field của 1 tin (entry + key), mỗi ký tự (String UTF-16)
+    private static final int TAIL_OVERHEAD_BYTES = 160;
+    private static final int SLOT_BYTES = 12;
+    private static final int FIELD_BYTES = 64;
+    private static final int CHAR_BYTES = 2;
+    // Ring bắt đầu nhỏ, lớn dần tới PER_CONVERSATION
+    private static final int INITIAL_CAPACITY = Math.min(8, Math.max(1, PER_CONVERSATION));
+
+    /**
+     * Ring buffer các tin theo message_id tăng dần
+     */
+    static final class Tail {
+        private int[] ids = new int[INITIAL_CAPACITY];
+        private JsonObject[] items = new JsonObject[INITIAL_CAPACITY];
+        private int head = 0;   // vị trí tin cũ nhất
+        private int size = 0;
+        private long bytes = TAIL_OVERHEAD_BYTES + (long) INITIAL_CAPACITY * SLOT_BYTES;
+        // Mọi tin có id > max(loadedAfter, droppedMax) đều có trong tail
+        private int loadedAfter = Integer.MAX_VALUE;   // MAX = chưa load xong lần nào
+        private int droppedMax = 0;                    // id lớn nhất đã bị đẩy ra khỏi ring
+
+        private int idAt(int i) {
+            return ids[(head + i) % ids.length];
+        }
+
+        private JsonObject itemAt(int i) {
+            return items[(head + i) % items.length];
+        }
+
+        private int coveredAfter() {
+            return Math.max(loadedAfter, droppedMax);
+        }
+
+        /**
+         * Chèn theo thứ tự id (thường là cuối ring); trả về số tin tăng thêm (0 hoặc 1)
+         */
+        private int insert(int id, JsonObject item) {
+            int pos = size;
+            while (pos > 0 && idAt(pos - 1) >= id) {
+                if (idAt(pos - 1) == id) {
+                    return 0;   // đã có (VD: vừa đọc từ database)
+                }
+                pos--;
+            }
+            int added = 1;
+            if (size == PER_CONVERSATION) {
+                if (pos == 0) {
+                    // Cũ hơn mọi tin trong ring đầy
+                    droppedMax = Math.max(droppedMax, id);
+                    return 0;
+                }
+                droppedMax = Math.max(droppedMax, ids[head]);
+                bytes -= estimateBytes(items[head]);
+                items[head] = null;
+                head = (head + 1) % ids.length;
+                size--;
+                pos--;
+                added = 0;
+            } else if (size == ids.length) {
+                grow();
+            }
+            // Dời các tin mới hơn sang phải 1 ô (hiếm: tin được commit không theo thứ tự id)
+            for (int i = size; i > pos; i--) {
+                ids[(head + i) % ids.length] = idAt(i - 1);
+                items[(head + i) % items.length] = itemAt(i - 1);
+            }
+            ids[(head + pos) % ids.length] = id;
+            items[(head + pos) % items.length] = item;
+            bytes += estimateBytes(item);
+            size++;
+            return added;
+        }
+
+        /**
+         * Gấp đôi ring (tối đa PER_CONVERSATION), tin cũ nhất về vị trí 0
+         */
+        private void grow() {
+            int capacity = Math.min(PER_CONVERSATION, ids.length * 2);
+            int[] newIds = new int[capacity];
+            JsonObject[] newItems = new JsonObject[capacity];
+            for (int i = 0; i < size; i++) {
+                newIds[i] = idAt(i);
+                newItems[i] = itemAt(i);
+            }
+            bytes += (long) (capacity - ids.length) * SLOT_BYTES;
+            ids = newIds;
+            items = newItems;
+            head = 0;
+        }
+    }
+
+    private static final Object lock = new Object();
+    // Thứ tự truy cập (LRU); key: chatKey / groupKey
+    private static final LinkedHashMap<String, Tail> tails = new LinkedHashMap<>(256, 0.75f, true);
+    private static long totalMessages = 0;
+    private static long totalBytes = 0;
+
+    // Metrics
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder appended = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    static String chatKey(int userId1, int userId2) {
+        return "u:" + Math.min(userId1, userId2) + ":" + Math.max(userId1, userId2);
+    }
+
+    static String groupKey(int groupId) {
+        return "g:" + groupId;
+    }
+
+    private static boolean enabled() {
+        return PER_CONVERSATION > 0 && MAX_BYTES > 0;
+    }
+
+    /**
+     * 1 trang (theo thứ tự id tăng dần, tối đa limit tin) nếu nằm trọn trong tail,
+     * null nếu phải đọc database. Cursor giống MessageDAO.getChatHistoryPage.
+     */
+    static List<JsonObject> page(String key, Integer beforeId, Integer afterId, int limit) {
+        if (!enabled()) {
+            return null;
+        }
+        synchronized (lock) {
+            Tail tail = tails.get(key);
+            if (tail == null || tail.loadedAfter == Integer.MAX_VALUE) {
+                misses.increment();
+                return null;
+            }
+            int covered = tail.coveredAfter();
+            List<JsonObject> page = new ArrayList<>(Math.min(limit, tail.size));
+
+            if (afterId != null && beforeId == null) {
+                // Tin mới hơn afterId: đủ nếu tail chứa mọi tin sau afterId
+                if (afterId < covered) {
+                    misses.increment();
+                    return null;
+                }
+                for (int i = 0; i < tail.size && page.size() < limit; i++) {
+                    if (tail.idAt(i) > afterId) {
+                        page.add(tail.itemAt(i));
+                    }
+                }
+            } else {
+                // Trang mới nhất / cũ hơn beforeId: đủ nếu lấy được limit tin, hoặc tail có cả hội thoại
+                int upper = beforeId != null ? beforeId : Integer.MAX_VALUE;
+                int lower = afterId != null ? afterId : 0;
+                for (int i = tail.size - 1; i >= 0 && page.size() < limit; i--) {
+                    int id = tail.idAt(i);
+                    if (id < upper && id > lower) {
+                        page.add(tail.itemAt(i));
+                    }
+                }
+                if (page.size() < limit && covered > lower) {
+                    misses.increment();
+                    return null;
+                }
+                Collections.reverse(page);
+            }
+            hits.increment();
+            return page;
+        }
+    }
+
+    /**
+     * Trước khi đọc trang mới nhất từ database: tạo tail (nếu chưa có) để gom các tin được
+     * commit trong lúc đọc; null nếu trang không phải trang mới nhất
+     */
+    static Tail beginLoad(String key, Integer beforeId, Integer afterId) {
+        if (!enabled() || beforeId != null || afterId != null) {
+            return null;
+        }
+        synchronized (lock) {
+            Tail tail = tails.get(key);
+            if (tail == null) {
+                tail = new Tail();
+                tails.put(key, tail);
+                totalBytes += tail.bytes;
+                evictIfNeeded();
+            }
+            return tail;
+        }
+    }
+
+    /**
+     * Đưa trang mới nhất vừa đọc từ database (id tăng dần, lấy tối đa requested tin) vào tail
+     */
+    static void completeLoad(String key, Tail tail, List<JsonObject> items, int requested) {
+        if (tail == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (tails.get(key) != tail) {
+                return;   // tail đã bị bỏ (LRU) trong lúc đọc - có thể đã lỡ mất tin được nối vào
+            }
+            // Đọc được ít hơn số yêu cầu = đã có cả hội thoại
+            int loadedAfter = items.size() < requested ? 0 : messageId(items.get(0)) - 1;
+            tail.loadedAfter = Math.min(tail.loadedAfter, loadedAfter);
+            long before = tail.bytes;
+            for (JsonObject item : items) {
+                totalMessages += tail.insert(messageId(item), item);
+            }
+            totalBytes += tail.bytes - before;
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Tin vừa commit (gọi từ MessageJournal); chỉ nối vào hội thoại đang có tail
+     */
+    static void append(String key, int messageId, JsonObject item) {
+        if (!enabled() || messageId <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            Tail tail = tails.get(key);
+            if (tail == null) {
+                return;
+            }
+            long before = tail.bytes;
+            totalMessages += tail.insert(messageId, item);
+            totalBytes += tail.bytes - before;
+            appended.increment();
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Bỏ các hội thoại ít dùng nhất cho tới khi tổng bộ nhớ <= maxBytes (gọi khi giữ lock);
+     * luôn giữ lại hội thoại vừa dùng
+     */
+    private static void evictIfNeeded() {
+        Iterator<Map.Entry<String, Tail>> it = tails.entrySet().iterator();
+        while (totalBytes > MAX_BYTES && tails.size() > 1 && it.hasNext()) {
+            Tail eldest = it.next().getValue();
+            it.remove();
+            totalMessages -= eldest.size;
+            totalBytes -= eldest.bytes;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Ước lượng bộ nhớ của 1 tin đã dựng sẵn (field + nội dung chuỗi)
+     */
+    static long estimateBytes(JsonObject item) {
+        long bytes = 0;
+        for (Map.Entry<String, JsonElement> field : item.entrySet()) {
+            bytes += FIELD_BYTES + (long) field.getKey().length() * CHAR_BYTES;
+            JsonElement value = field.getValue();
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+                bytes += (long) value.getAsString().length() * CHAR_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    private static int messageId(JsonObject item) {
+        return item.get("messageId").getAsInt();
+    }
+
+    // ============ METRICS ============
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getAppended() {
+        return appended.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static long getConversations() {
+        synchronized (lock) {
+            return tails.size();
+        }
+    }
+
+    public static long getMessages() {
+        synchronized (lock) {
+            return totalMessages;
+        }
+    }
+
+    public static long getBytes() {
+        synchronized (lock) {
+            return totalBytes;
+        }
+    }
+
+    // self-test không cần database (chạy với -Dhistory.recent.perConversation=5 -Dhistory.recent.maxBytes=3000)
+    public static void main(String[] args) {
+        System.out.println("=== RECENT MESSAGES TEST ===\n");
+
+        String chat = chatKey(2, 1);
+        System.out.println("1. Before load: " + page(chat, null, null, 3));
+
+        // Đọc trang mới nhất (3 tin, còn tin cũ hơn); tin #13 được commit trong lúc đọc
+        Tail tail = beginLoad(chat, null, null);
+        append(chat, 13, item(13));
+        completeLoad(chat, tail, List.of(item(10), item(11), item(12)), 3);
+        System.out.println("2. Newest 3:  " + ids(page(chat, null, null, 3)));
+        System.out.println("   Newest 5:  " + ids(page(chat, null, null, 5)) + " (not covered -> database)");
+        System.out.println("   After 11:  " + ids(page(chat, null, 11, 10)));
+        System.out.println("   After 5:   " + ids(page(chat, null, 5, 10)) + " (not covered -> database)");
+
+        // Tin commit không theo thứ tự + trùng
+        append(chat, 15, item(15));
+        append(chat, 14, item(14));
+        append(chat, 14, item(14));
+        System.out.println("3. Ring (cap " + PER_CONVERSATION + "): " + ids(page(chat, null, null, PER_CONVERSATION)));
+
+        // Group ngắn: trang đầu đọc được ít hơn yêu cầu -> có cả hội thoại
+        String group = groupKey(7);
+        completeLoad(group, beginLoad(group, null, null), List.of(item(3), item(8)), 51);
+        System.out.println("4. Whole group: " + ids(page(group, null, null, 51)));
+
+        // Tổng vượt maxBytes -> bỏ hội thoại ít dùng nhất
+        System.out.println("5. Before: bytes = " + getBytes() + " (max " + MAX_BYTES + ")");
+        String other = chatKey(3, 4);
+        completeLoad(other, beginLoad(other, null, null), List.of(item(20), item(21), item(22), item(23)), 4);
+        System.out.println("   Messages = " + getMessages() + ", bytes = " + getBytes()
+                + ", conversations = " + getConversations() + ", evictions = " + getEvictions()
+                + ", chat evicted = " + (page(chat, null, null, 1) == null));
+
+        // Tail rỗng cũng tốn bộ nhớ: mở nhiều hội thoại không có tin vẫn bị giới hạn
+        for (int g = 100; g < 200; g++) {
+            completeLoad(groupKey(g), beginLoad(groupKey(g), null, null), List.of(), 51);
+        }
+        System.out.println("6. 100 empty groups opened: conversations = " + getConversations()
+                + ", bytes = " + getBytes() + " <= " + MAX_BYTES);
+
+        System.out.println("\nhits = " + getHits() + ", misses = " + getMisses() + ", appended = " + getAppended());
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+
+    private static JsonObject item(int messageId) {
+        JsonObject item = new JsonObject();
+        item.addProperty("messageId", messageId);
+        item.addProperty("sender", "alice");
+        item.addProperty("content", "message " + messageId);
+        return item;
+    }
+
+    private static String ids(List<JsonObject> page) {
+        if (page == null) {
+            return "null";
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (JsonObject item : page) {
+            ids.add(messageId(item));
+        }
+        return ids.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package com.beantalk.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics của server - các module đăng ký gauge, reporter in định kỳ ra console
+ */
+public class ServerMetrics {
+    // Sắp xếp theo tên để log dễ đọc
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService reporter;
+
+    /**
+     * Đăng ký 1 gauge (đăng ký lại cùng tên sẽ ghi đè)
+     */
+    public static void registerGauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Giá trị hiện tại của 1 gauge, -1 nếu chưa đăng ký
+     */
+    public static long get(String name) {
+        LongSupplier supplier = gauges.get(name);
+        return supplier != null ? supplier.getAsLong() : -1;
+    }
+
+    /**
+     * Chụp toàn bộ metrics thành 1 dòng
+     */
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * In metrics mỗi intervalSeconds giây (0 = tắt)
+     */
+    public static synchronized void startReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(
+                () -> System.out.println("📊 [metrics] " + snapshot()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
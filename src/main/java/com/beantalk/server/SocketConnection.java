@@ -0,0 +1,248 @@
+package com.beantalk.server;
+
+import com.beantalk.util.BinaryCodec;
+import com.beantalk.util.FrameReader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Kết nối blocking - 1 thread đọc cho mỗi socket.
+ * Ghi qua hàng đợi có giới hạn + 1 virtual thread writer riêng, nên thread gửi
+ * (broadcast) không bao giờ bị block vì socket của client này đầy.
+ */
+public class SocketConnection implements ClientConnection {
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream out;
+    // JSON, binary và file ghi chung 1 stream theo thứ tự vào hàng đợi
+    private final OutboundQueue outbound = new OutboundQueue();
+    private final String remoteAddress;
+
+    private SocketConnection(Socket socket, IntUnaryOperator maxFrameSize) throws IOException {
+        this.socket = socket;
+        this.reader = new FrameReader(socket.getInputStream(), FrameReader.MAX_LINE_BYTES, maxFrameSize);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.remoteAddress = String.valueOf(socket.getInetAddress());
+    }
+
+    /**
+     * Tạo kết nối và chạy writer thread (sau khi object đã khởi tạo xong).
+     * maxFrameSize: type -> độ dài body tối đa của frame nhận từ client
+     */
+    public static SocketConnection open(Socket socket, IntUnaryOperator maxFrameSize) throws IOException {
+        SocketConnection connection = new SocketConnection(socket, maxFrameSize);
+        Thread.ofVirtual().name("writer-" + connection.remoteAddress).start(connection::runWriter);
+        return connection;
+    }
+
+    /**
+     * Đọc 1 frame từ client (String = JSON line, byte[] = binary payload),
+     * trả về null khi client đóng kết nối
+     */
+    public Object readFrame() throws IOException {
+        return reader.read();
+    }
+
+    @Override
+    public void send(byte[] data, boolean droppable) {
+        enqueue(ByteBuffer.wrap(data), droppable);
+    }
+
+    /**
+     * Đưa frame file vào hàng đợi rồi chờ writer ghi xong (gọi từ thread download)
+     */
+    @Override
+    public void sendFile(byte[] header, FileChannel file, long position, long count) throws IOException {
+        FileRegion region = new FileRegion(ByteBuffer.wrap(header), file, position, count);
+        if (!outbound.offerFile(region)) {
+            throw new ClosedChannelException();
+        }
+        region.await();
+    }
+
+    private void enqueue(ByteBuffer data, boolean droppable) {
+        if (outbound.offer(data, droppable) == OutboundQueue.Result.OVERFLOW) {
+            System.out.println("🐢 Slow consumer disconnected: " + remoteAddress
+                    + " (" + outbound.getQueuedBytes() + " bytes, "
+                    + outbound.getQueuedFrames() + " frames queued)");
+            // Thread đọc gặp lỗi socket và tự gọi disconnect
+            close();
+        }
+    }
+
+    /**
+     * Writer: ghi gộp mọi frame đang chờ bằng 1 lần gathering write (writev) trên channel
+     * của socket; socket không có channel thì ghi qua BufferedOutputStream, flush 1 lần
+     */
+    private void runWriter() {
+        SocketChannel channel = socket.getChannel();
+        ByteBuffer[] batch = new ByteBuffer[OutboundQueue.GATHER_MAX_FRAMES];
+        try {
+            Object head;
+            while ((head = outbound.awaitHead()) != null) {
+                if (head instanceof FileRegion region) {
+                    writeFile(region);
+                    outbound.remove();
+                    continue;
+                }
+                outbound.linger();
+                if (channel != null) {
+                    // Channel blocking ghi hết mới trả về
+                    while (!outbound.writeTo(channel, batch)) {
+                        // ghi tiếp frame còn dở
+                    }
+                } else {
+                    writeBuffered(batch);
+                }
+            }
+        } catch (IOException e) {
+            // Giống PrintWriter trước đây: không báo lỗi ghi, thread đọc sẽ phát hiện mất kết nối
+            close();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    private void writeBuffered(ByteBuffer[] batch) throws IOException {
+        int count = outbound.gather(batch);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = batch[i];
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            batch[i] = null;
+        }
+        out.flush();
+        OutboundQueue.recordWrite(count);
+        outbound.remove(count);
+    }
+
+    private void writeFile(FileRegion region) throws IOException {
+        try {
+            // Socket nhận từ ServerSocketChannel có channel -> transferTo dùng sendfile, không copy qua heap
+            WritableByteChannel target = socket.getChannel() != null
+                    ? socket.getChannel() : Channels.newChannel(out);
+            while (!region.writeTo(target)) {
+                // Channel blocking: chỉ trả false khi chưa ghi được byte nào, thử lại
+            }
+            out.flush();
+            region.done.complete(null);
+        } catch (IOException e) {
+            region.done.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outbound.getQueuedFrames();
+    }
+
+    @Override
+    public long getPeakQueuedBytes() {
+        return outbound.getPeakBytes();
+    }
+
+    @Override
+    public void close() {
+        // Đánh thức writer, báo lỗi cho các thread download đang chờ
+        outbound.close();
+        try {
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // benchmark: gửi 1 đợt 20000 message (~200 byte, như 1 trang lịch sử / group đông) tới 1 client
+    // - cách cũ: PrintWriter autoflush, mỗi println là 1 lần ghi xuống socket
+    // - cách mới: hàng đợi + writer ghi gộp (writev)
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== SOCKET WRITE BENCHMARK ===\n");
+
+        int messages = 20000;
+        String json = "{\"type\":\"NEW_MESSAGE\",\"sender\":\"alice\",\"groupId\":42,\"content\":\""
+                + "x".repeat(130) + "\"}";
+        byte[] line = OutboundFrame.toJsonLine(json);
+        long totalBytes = (long) messages * line.length;
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            int port = server.socket().getLocalPort();
+
+            for (int round = 0; round < 2; round++) {   // vòng đầu để warm up
+                for (boolean queued : new boolean[]{false, true}) {
+                    Socket client = new Socket("localhost", port);
+                    Socket accepted = server.socket().accept();
+                    Thread reader = Thread.ofPlatform().start(() -> {
+                        byte[] buffer = new byte[64 * 1024];
+                        long received = 0;
+                        try (InputStream in = client.getInputStream()) {
+                            int n;
+                            while (received < totalBytes && (n = in.read(buffer)) > 0) {
+                                received += n;
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Reader error: " + e.getMessage());
+                        }
+                    });
+
+                    long writesBefore = OutboundQueue.getWriteCount();
+                    long start = System.nanoTime();
+                    long writes;
+                    if (queued) {
+                        SocketConnection connection = SocketConnection.open(accepted, type -> BinaryCodec.MAX_CONTROL_FRAME_SIZE);
+                        for (int i = 0; i < messages; i++) {
+                            connection.send(line, false);
+                        }
+                        reader.join();
+                        writes = OutboundQueue.getWriteCount() - writesBefore;
+                        connection.close();
+                    } else {
+                        PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                                accepted.getOutputStream(), StandardCharsets.UTF_8), true);
+                        for (int i = 0; i < messages; i++) {
+                            writer.println(json);
+                        }
+                        reader.join();
+                        writes = messages;
+                        accepted.close();
+                    }
+                    long nanos = System.nanoTime() - start;
+                    client.close();
+
+                    if (round == 1) {
+                        System.out.println((queued ? "Queue + gathering write:" : "PrintWriter autoflush:  ")
+                                + " " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, " + writes + " writes, "
+                                + String.format("%.3f", (double) writes / messages) + " writes/message");
+                    }
+                }
+            }
+        }
+
+        System.out.println("\n=== BENCHMARK COMPLETED ===");
+    }
+}
@@ -0,0 +1,68 @@
+package com.beantalk.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thống kê trên wire theo từng encoding (JSON lines / binary):
+ * số frame, số byte, thời gian parse frame nhận được
+ */
+public class WireStats {
+    private static final LongAdder jsonFramesOut = new LongAdder();
+    private static final LongAdder jsonBytesOut = new LongAdder();
+    private static final LongAdder binaryFramesOut = new LongAdder();
+    private static final LongAdder binaryBytesOut = new LongAdder();
+
+    private static final LongAdder jsonFramesIn = new LongAdder();
+    private static final LongAdder jsonParseNanos = new LongAdder();
+    private static final LongAdder binaryFramesIn = new LongAdder();
+    private static final LongAdder binaryParseNanos = new LongAdder();
+
+    static void jsonSent(int bytes) {
+        jsonFramesOut.increment();
+        jsonBytesOut.add(bytes);
+    }
+
+    static void binarySent(int bytes) {
+        binaryFramesOut.increment();
+        binaryBytesOut.add(bytes);
+    }
+
+    static void jsonParsed(long nanos) {
+        jsonFramesIn.increment();
+        jsonParseNanos.add(nanos);
+    }
+
+    static void binaryParsed(long nanos) {
+        binaryFramesIn.increment();
+        binaryParseNanos.add(nanos);
+    }
+
+    public static long getJsonFramesOut() {
+        return jsonFramesOut.sum();
+    }
+
+    public static long getBinaryFramesOut() {
+        return binaryFramesOut.sum();
+    }
+
+    public static long getJsonBytesPerFrame() {
+        return average(jsonBytesOut, jsonFramesOut);
+    }
+
+    public static long getBinaryBytesPerFrame() {
+        return average(binaryBytesOut, binaryFramesOut);
+    }
+
+    public static long getJsonParseNanos() {
+        return average(jsonParseNanos, jsonFramesIn);
+    }
+
+    public static long getBinaryParseNanos() {
+        return average(binaryParseNanos, binaryFramesIn);
+    }
+
+    private static long average(LongAdder total, LongAdder count) {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / n;
+    }
+}
@@ -1,5 +1,7 @@
 package com.beantalk.ui;
 
+import com.beantalk.client.ChatClient;
+
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -20,15 +22,17 @@ public class FileBubblePanel extends JPanel {
     private String messageType;
     private String time;
     private boolean isOwnMessage;
+    private final transient ChatClient client;
 
     public FileBubblePanel(String sender, String fileName, String filePath,
-                           String messageType, String time, boolean isOwnMessage) {
+                           String messageType, String time, boolean isOwnMessage, ChatClient client) {
         this.sender = sender;
         this.fileName = fileName;
         this.filePath = filePath;
         this.messageType = messageType;
         this.time = time;
         this.isOwnMessage = isOwnMessage;
+        this.client = client;
 
         initComponents();
     }
@@ -87,58 +91,80 @@ public class FileBubblePanel extends JPanel {
     }
 
     /**
-     * Thêm image preview
+     * Thêm image preview - ảnh được tải từ server về cache trên máy (background thread)
      */
     private void addImagePreview(JPanel parent) {
-        try {
-            File imageFile = new File(filePath);
-            if (imageFile.exists()) {
-                BufferedImage originalImage = ImageIO.read(imageFile);
-
-                // Scale image để vừa khung chat
-                int maxWidth = 300;
-                int maxHeight = 300;
-
-                int width = originalImage.getWidth();
-                int height = originalImage.getHeight();
+        JLabel imageLabel = new JLabel("Loading image...");
+        imageLabel.setFont(new Font("Arial", Font.ITALIC, 11));
+        imageLabel.setForeground(Color.GRAY);
+        imageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        parent.add(imageLabel);
+
+        // File name
+        JLabel fileNameLabel = new JLabel(fileName);
+        fileNameLabel.setFont(new Font("Arial", Font.PLAIN, 11));
+        fileNameLabel.setForeground(Color.DARK_GRAY);
+        fileNameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        parent.add(fileNameLabel);
+
+        new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                File imageFile = ChatClient.getCachedFile(filePath);
+                if (!imageFile.exists()) {
+                    client.downloadFile(filePath, imageFile, null);
+                }
+                return ImageIO.read(imageFile);
+            }
 
-                if (width > maxWidth || height > maxHeight) {
-                    double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
-                    width = (int) (width * scale);
-                    height = (int) (height * scale);
+            @Override
+            protected void done() {
+                try {
+                    BufferedImage originalImage = get();
+                    if (originalImage == null) {
+                        throw new IOException("Unsupported image format");
+                    }
+                    showImage(imageLabel, originalImage);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    System.err.println("Error loading image: " + cause.getMessage());
+                    imageLabel.setText("⚠️ File not found: " + fileName);
+                    imageLabel.setForeground(Color.RED);
                 }
+                revalidate();
+                repaint();
+            }
+        }.execute();
+    }
 
-                Image scaledImage = originalImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
+    private void showImage(JLabel imageLabel, BufferedImage originalImage) {
+        // Scale image để vừa khung chat
+        int maxWidth = 300;
+        int maxHeight = 300;
 
-                JLabel imageLabel = new JLabel(new ImageIcon(scaledImage));
-                imageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-                imageLabel.setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY));
-                imageLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
 
-                // Click để xem ảnh full size
-                imageLabel.addMouseListener(new MouseAdapter() {
-                    @Override
-                    public void mouseClicked(MouseEvent e) {
-                        showFullImage(originalImage);
-                    }
-                });
+        if (width > maxWidth || height > maxHeight) {
+            double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
+            width = (int) (width * scale);
+            height = (int) (height * scale);
+        }
 
-                parent.add(imageLabel);
+        Image scaledImage = originalImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
 
-                // File name
-                JLabel fileNameLabel = new JLabel(fileName);
-                fileNameLabel.setFont(new Font("Arial", Font.PLAIN, 11));
-                fileNameLabel.setForeground(Color.DARK_GRAY);
-                fileNameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-                parent.add(fileNameLabel);
+        imageLabel.setText(null);
+        imageLabel.setIcon(new ImageIcon(scaledImage));
+        imageLabel.setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY));
+        imageLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
 
-            } else {
-                addFileNotFound(parent);
+        // Click để xem ảnh full size
+        imageLabel.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                showFullImage(originalImage);
             }
-        } catch (IOException e) {
-            System.err.println("Error loading image: " + e.getMessage());
-            addFileNotFound(parent);
-        }
+        });
     }
 
     /**
@@ -164,9 +190,9 @@ public class FileBubblePanel extends JPanel {
         nameLabel.setFont(new Font("Arial", Font.BOLD, 12));
         infoPanel.add(nameLabel);
 
-        // File size
+        // File size (khi đã có trong cache trên máy)
         try {
-            File file = new File(filePath);
+            File file = ChatClient.getCachedFile(filePath);
             if (file.exists()) {
                 String sizeStr = com.beantalk.util.FileTransferUtil.formatFileSize(file.length());
                 JLabel sizeLabel = new JLabel(sizeStr);
@@ -190,17 +216,6 @@ public class FileBubblePanel extends JPanel {
         parent.add(filePanel);
     }
 
-    /**
-     * File not found message
-     */
-    private void addFileNotFound(JPanel parent) {
-        JLabel errorLabel = new JLabel("⚠️ File not found: " + fileName);
-        errorLabel.setFont(new Font("Arial", Font.ITALIC, 11));
-        errorLabel.setForeground(Color.RED);
-        errorLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        parent.add(errorLabel);
-    }
-
     /**
      * Hiển thị ảnh full size
      */
@@ -219,43 +234,41 @@ public class FileBubblePanel extends JPanel {
     }
 
     /**
-     * Download file
+     * Download file - stream từ server xuống file được chọn (tải tiếp được nếu bị ngắt)
      */
     private void downloadFile() {
-        try {
-            File sourceFile = new File(filePath);
-            if (!sourceFile.exists()) {
-                JOptionPane.showMessageDialog(this,
-                        "File not found on server!",
-                        "Error",
-                        JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setSelectedFile(new File(fileName));
 
-            JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setSelectedFile(new File(fileName));
-
-            int result = fileChooser.showSaveDialog(this);
-            if (result == JFileChooser.APPROVE_OPTION) {
-                File destinationFile = fileChooser.getSelectedFile();
+        int result = fileChooser.showSaveDialog(this);
+        if (result != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File destinationFile = fileChooser.getSelectedFile();
 
-                // Copy file
-                java.nio.file.Files.copy(
-                        sourceFile.toPath(),
-                        destinationFile.toPath(),
-                        java.nio.file.StandardCopyOption.REPLACE_EXISTING
-                );
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                client.downloadFile(filePath, destinationFile, null);
+                return null;
+            }
 
-                JOptionPane.showMessageDialog(this,
-                        "File downloaded successfully!",
-                        "Success",
-                        JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(FileBubblePanel.this,
+                            "File downloaded successfully!",
+                            "Success",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(FileBubblePanel.this,
+                            "Error downloading file: " + cause.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
             }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this,
-                    "Error downloading file: " + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE);
-        }
+        }.execute();
     }
-}
\ No newline at end of file
+}
@@ -9,6 +9,8 @@ import java.awt.*;
 import java.awt.event.*;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.io.InputStream;
 
@@ -47,6 +49,17 @@ public class MainChatFrame extends JFrame {
     private Integer currentGroupId = null;
     private List<ChatClient.GroupData> userGroups;
 
+    // Lịch sử cuộn vô hạn: chỉ giữ 1 cửa sổ các trang quanh vị trí đang xem,
+    // cuộn gần đầu / cuối thì tải thêm trang, trang xa viewport thì bỏ khỏi panel
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_LOADED_MESSAGES = 300;
+    private final ArrayDeque<LoadedPage> loadedPages = new ArrayDeque<>();
+    private int loadedMessages = 0;
+    private boolean hasOlder = false;     // còn tin cũ hơn trang đầu
+    private boolean hasNewer = false;     // các trang mới nhất đã bị bỏ khỏi panel
+    private Integer pendingBefore = null; // cursor của request đang chờ server trả
+    private Integer pendingAfter = null;
+
     public MainChatFrame(ChatClient client) {
         this.client = client;
         this.username = client.getUsername();
@@ -273,6 +286,8 @@ public class MainChatFrame extends JFrame {
         chatScrollPane = new JScrollPane(chatContainer);
         chatScrollPane.setBorder(null);
         chatScrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        // Cuộn gần đầu / cuối -> tải trước trang kế tiếp
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> maybeLoadMoreHistory());
         centerPanel.add(chatScrollPane, BorderLayout.CENTER);
 
         // Message input panel
@@ -518,32 +533,22 @@ public class MainChatFrame extends JFrame {
                     System.out.println("  📂 Auto-opened chat with: " + msg.sender);
                 }
 
-                if (shouldDisplay) {
+                if (shouldDisplay && hasNewer) {
+                    // Đang xem tin cũ, các trang mới nhất đã bị bỏ -> không nối vào giữa chừng.
+                    // Tin của mình thì quay về trang mới nhất (tin mới nằm trong đó)
+                    if (msg.sender.equals(username)) {
+                        requestHistoryPage(null, null);
+                    }
+                    System.out.println("  ⏳ Viewing older messages - new message loads when scrolling down");
+                } else if (shouldDisplay) {
                     String time = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
-                    boolean isOwn = msg.sender.equals(username);
-
-                    // Kiểm tra loại message
-                    if (msg.messageType != null && !msg.messageType.equals("TEXT")) {
-                        // FILE hoặc IMAGE message
-                        FileBubblePanel bubble = new FileBubblePanel(
-                                msg.sender,
-                                msg.fileName,
-                                msg.filePath,
-                                msg.messageType,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
-                    } else {
-                        // TEXT message
-                        MessageBubblePanel bubble = new MessageBubblePanel(
-                                msg.sender,
-                                msg.content,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
+                    JComponent bubble = createBubble(msg, time);
+                    chatPanel.add(bubble);
+                    if (loadedPages.isEmpty()) {
+                        loadedPages.add(new LoadedPage());
                     }
+                    loadedPages.peekLast().rows.add(bubble);
+                    loadedMessages++;
 
                     chatPanel.revalidate();
                     chatPanel.repaint();
@@ -551,6 +556,7 @@ public class MainChatFrame extends JFrame {
                     SwingUtilities.invokeLater(() -> {
                         JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
                         vertical.setValue(vertical.getMaximum());
+                        unloadOlderPages();
                     });
 
                     System.out.println("  ✅ Message displayed in chat panel");
@@ -625,6 +631,21 @@ public class MainChatFrame extends JFrame {
             });
         });
 
+        // Presence delta - chỉ thêm / bớt user thay đổi, không dựng lại cả list (giữ nguyên lựa chọn)
+        client.setPresenceDeltaCallback((joined, left) -> {
+            SwingUtilities.invokeLater(() -> {
+                for (String user : left) {
+                    userListModel.removeElement(user);
+                }
+                for (String user : joined) {
+                    if (!userListModel.contains(user)) {
+                        userListModel.addElement(user);
+                    }
+                }
+                onlineCountLabel.setText(String.format("👥 Online (%d)", userListModel.getSize()));
+            });
+        });
+
         // User groups callback
         client.setUserGroupsCallback(groups -> {
             SwingUtilities.invokeLater(() -> {
@@ -656,103 +677,281 @@ public class MainChatFrame extends JFrame {
             });
         });
 
-        // Chat history callback
-        client.setChatHistoryCallback(history -> {
+        // Chat history callback - trang mới nhất hoặc trang cũ / mới hơn khi cuộn
+        client.setChatHistoryPageCallback(page -> {
             SwingUtilities.invokeLater(() -> {
-                System.out.println("📜 Received chat history: " + history.size() + " messages");
-
-                // Clear chat panel
-                chatPanel.removeAll();
-
-                // Hiển thị từng tin nhắn
-                for (ChatClient.MessageData msg : history) {
-                    String time = ""; // Có thể parse từ timestamp nếu cần
-                    boolean isOwn = msg.sender.equals(username);
-
-                    // Kiểm tra loại message
-                    if (msg.messageType != null && !msg.messageType.equals("TEXT")) {
-                        // FILE hoặc IMAGE message
-                        FileBubblePanel bubble = new FileBubblePanel(
-                                msg.sender,
-                                msg.fileName,
-                                msg.filePath,
-                                msg.messageType,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
-                    } else {
-                        // TEXT message
-                        MessageBubblePanel bubble = new MessageBubblePanel(
-                                msg.sender,
-                                msg.content,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
-                    }
+                System.out.println("📜 Received chat history: " + page.messages.size() + " messages");
+                boolean current = currentGroupId == null && currentReceiver != null
+                        && (page.username == null || page.username.equals(currentReceiver));
+                if (current) {
+                    handleHistoryPage(page);
                 }
-
-                chatPanel.revalidate();
-                chatPanel.repaint();
-
-                // Scroll to bottom
-                SwingUtilities.invokeLater(() -> {
-                    JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
-                    vertical.setValue(vertical.getMaximum());
-                });
             });
         });
 
         // Group history callback
-        client.setGroupHistoryCallback(history -> {
+        client.setGroupHistoryPageCallback(page -> {
             SwingUtilities.invokeLater(() -> {
-                System.out.println("📜 Received group history: " + history.size() + " messages");
-
-                // Clear chat panel
-                chatPanel.removeAll();
-
-                // Hiển thị từng tin nhắn
-                for (ChatClient.MessageData msg : history) {
-                    String time = ""; // Có thể parse từ timestamp nếu cần
-                    boolean isOwn = msg.sender.equals(username);
-
-                    // Kiểm tra loại message
-                    if (msg.messageType != null && !msg.messageType.equals("TEXT")) {
-                        // FILE hoặc IMAGE message
-                        FileBubblePanel bubble = new FileBubblePanel(
-                                msg.sender,
-                                msg.fileName,
-                                msg.filePath,
-                                msg.messageType,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
-                    } else {
-                        // TEXT message
-                        MessageBubblePanel bubble = new MessageBubblePanel(
-                                msg.sender,
-                                msg.content,
-                                time,
-                                isOwn
-                        );
-                        chatPanel.add(bubble);
-                    }
+                System.out.println("📜 Received group history: " + page.messages.size() + " messages");
+                boolean current = currentGroupId != null
+                        && (page.groupId == null || page.groupId.equals(currentGroupId));
+                if (current) {
+                    handleHistoryPage(page);
                 }
+            });
+        });
+    }
 
-                chatPanel.revalidate();
-                chatPanel.repaint();
+    /**
+     * 1 trang lịch sử của cuộc chat đang mở: trang mới nhất dựng lại cả panel,
+     * trang cũ hơn chèn lên đầu, trang mới hơn nối xuống cuối.
+     * Trang trả về muộn (đã chuyển chat / đã tải lại) bị bỏ qua.
+     */
+    private void handleHistoryPage(ChatClient.HistoryPage page) {
+        if (page.beforeMessageId != null) {
+            if (page.beforeMessageId.equals(pendingBefore)) {
+                pendingBefore = null;
+                prependOlderPage(page);
+            }
+        } else if (page.afterMessageId != null) {
+            if (page.afterMessageId.equals(pendingAfter)) {
+                pendingAfter = null;
+                appendNewerPage(page);
+            }
+        } else {
+            showLatestPage(page);
+        }
+    }
 
-                // Scroll to bottom
-                SwingUtilities.invokeLater(() -> {
-                    JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
-                    vertical.setValue(vertical.getMaximum());
-                });
-            });
+    private void showLatestPage(ChatClient.HistoryPage page) {
+        // Clear chat panel
+        chatPanel.removeAll();
+        resetHistoryWindow();
+        hasOlder = page.hasMore;
+
+        LoadedPage loaded = createPage(page.messages);
+        for (Component row : loaded.rows) {
+            chatPanel.add(row);
+        }
+        loadedPages.add(loaded);
+        loadedMessages += loaded.rows.size();
+
+        chatPanel.revalidate();
+        chatPanel.repaint();
+
+        // Scroll to bottom, trang ngắn hơn viewport thì tải tiếp trang cũ hơn
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
+            vertical.setValue(vertical.getMaximum());
+            maybeLoadMoreHistory();
         });
     }
 
+    /**
+     * Chèn trang cũ hơn lên đầu, giữ nguyên tin đang nằm trong viewport
+     */
+    private void prependOlderPage(ChatClient.HistoryPage page) {
+        hasOlder = page.hasMore;
+        if (page.messages.isEmpty()) {
+            return;
+        }
+        LoadedPage loaded = createPage(page.messages);
+        JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
+        int oldHeight = chatPanel.getHeight();
+        int oldValue = vertical.getValue();
+
+        for (int i = 0; i < loaded.rows.size(); i++) {
+            chatPanel.add(loaded.rows.get(i), i);
+        }
+        loadedPages.addFirst(loaded);
+        loadedMessages += loaded.rows.size();
+
+        // Layout ngay để biết phần vừa chèn cao bao nhiêu rồi đẩy thanh cuộn xuống đúng bấy nhiêu
+        chatScrollPane.validate();
+        vertical.setValue(oldValue + chatPanel.getHeight() - oldHeight);
+        chatPanel.repaint();
+
+        unloadNewerPages();
+        System.out.println("📜 Loaded older page: " + loaded.rows.size() + " messages, "
+                + loadedMessages + " in view");
+    }
+
+    /**
+     * Nối trang mới hơn xuống cuối (sau khi đã bỏ các trang mới nhất)
+     */
+    private void appendNewerPage(ChatClient.HistoryPage page) {
+        hasNewer = page.hasMore;
+        if (page.messages.isEmpty()) {
+            return;
+        }
+        LoadedPage loaded = createPage(page.messages);
+        for (Component row : loaded.rows) {
+            chatPanel.add(row);
+        }
+        loadedPages.addLast(loaded);
+        loadedMessages += loaded.rows.size();
+
+        chatScrollPane.validate();
+        chatPanel.repaint();
+
+        unloadOlderPages();
+        System.out.println("📜 Loaded newer page: " + loaded.rows.size() + " messages, "
+                + loadedMessages + " in view");
+    }
+
+    /**
+     * Vượt MAX_LOADED_MESSAGES: bỏ các trang cuối nằm dưới viewport quá 1 màn hình
+     * (bỏ phía dưới không làm dịch nội dung đang xem)
+     */
+    private void unloadNewerPages() {
+        Rectangle view = chatScrollPane.getViewport().getViewRect();
+        boolean removed = false;
+        while (loadedMessages > MAX_LOADED_MESSAGES && loadedPages.size() > 1) {
+            LoadedPage last = loadedPages.peekLast();
+            Component firstRow = last.rows.get(0);
+            if (chatPanel.getY() + firstRow.getY() < view.y + 2 * view.height) {
+                break;
+            }
+            removePage(last);
+            loadedPages.removeLast();
+            hasNewer = true;
+            removed = true;
+        }
+        if (removed) {
+            chatScrollPane.validate();
+            chatPanel.repaint();
+        }
+    }
+
+    /**
+     * Vượt MAX_LOADED_MESSAGES: bỏ các trang đầu nằm trên viewport quá 1 màn hình,
+     * kéo thanh cuộn lên đúng phần đã bỏ để nội dung đang xem không bị nhảy
+     */
+    private void unloadOlderPages() {
+        Rectangle view = chatScrollPane.getViewport().getViewRect();
+        JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
+        int oldHeight = chatPanel.getHeight();
+        int oldValue = vertical.getValue();
+        boolean removed = false;
+        while (loadedMessages > MAX_LOADED_MESSAGES && loadedPages.size() > 1) {
+            LoadedPage first = loadedPages.peekFirst();
+            Component lastRow = first.rows.get(first.rows.size() - 1);
+            if (chatPanel.getY() + lastRow.getY() + lastRow.getHeight() > view.y - view.height) {
+                break;
+            }
+            removePage(first);
+            loadedPages.removeFirst();
+            hasOlder = true;
+            removed = true;
+        }
+        if (removed) {
+            chatScrollPane.validate();
+            vertical.setValue(oldValue - (oldHeight - chatPanel.getHeight()));
+            chatPanel.repaint();
+        }
+    }
+
+    private void removePage(LoadedPage page) {
+        for (Component row : page.rows) {
+            chatPanel.remove(row);
+        }
+        loadedMessages -= page.rows.size();
+    }
+
+    /**
+     * Còn dưới 1 màn hình là tới đầu / cuối phần đã tải -> xin trang kế tiếp (mỗi lần 1 request)
+     */
+    private void maybeLoadMoreHistory() {
+        if (loadedPages.isEmpty() || pendingBefore != null || pendingAfter != null) {
+            return;
+        }
+        JScrollBar vertical = chatScrollPane.getVerticalScrollBar();
+        int prefetch = chatScrollPane.getViewport().getHeight();
+
+        if (hasOlder && vertical.getValue() < prefetch) {
+            int oldestId = loadedPages.peekFirst().firstMessageId;
+            if (oldestId > 0) {
+                pendingBefore = oldestId;
+                requestHistoryPage(oldestId, null);
+            }
+        } else if (hasNewer && vertical.getValue() + vertical.getVisibleAmount() > vertical.getMaximum() - prefetch) {
+            int newestId = loadedPages.peekLast().lastMessageId;
+            if (newestId > 0) {
+                pendingAfter = newestId;
+                requestHistoryPage(null, newestId);
+            }
+        }
+    }
+
+    /**
+     * Xin 1 trang lịch sử của cuộc chat đang mở (cả 2 cursor null = trang mới nhất)
+     */
+    private void requestHistoryPage(Integer beforeMessageId, Integer afterMessageId) {
+        if (currentGroupId != null) {
+            client.getGroupHistory(currentGroupId, HISTORY_PAGE_SIZE, beforeMessageId, afterMessageId);
+        } else if (currentReceiver != null) {
+            client.getChatHistory(currentReceiver, HISTORY_PAGE_SIZE, beforeMessageId, afterMessageId);
+        }
+    }
+
+    private void resetHistoryWindow() {
+        loadedPages.clear();
+        loadedMessages = 0;
+        hasOlder = false;
+        hasNewer = false;
+        pendingBefore = null;
+        pendingAfter = null;
+    }
+
+    private LoadedPage createPage(List<ChatClient.MessageData> messages) {
+        LoadedPage page = new LoadedPage();
+        for (ChatClient.MessageData msg : messages) {
+            String time = ""; // Có thể parse từ timestamp nếu cần
+            page.rows.add(createBubble(msg, time));
+            if (msg.messageId > 0) {
+                if (page.firstMessageId == 0) {
+                    page.firstMessageId = msg.messageId;
+                }
+                page.lastMessageId = msg.messageId;
+            }
+        }
+        return page;
+    }
+
+    private JComponent createBubble(ChatClient.MessageData msg, String time) {
+        boolean isOwn = msg.sender.equals(username);
+
+        // Kiểm tra loại message
+        if (msg.messageType != null && !msg.messageType.equals("TEXT")) {
+            // FILE hoặc IMAGE message
+            return new FileBubblePanel(
+                    msg.sender,
+                    msg.fileName,
+                    msg.filePath,
+                    msg.messageType,
+                    time,
+                    isOwn,
+                    client
+            );
+        }
+        // TEXT message
+        return new MessageBubblePanel(
+                msg.sender,
+                msg.content,
+                time,
+                isOwn
+        );
+    }
+
+    /**
+     * 1 trang tin đang hiển thị; tin realtime được nối vào trang cuối
+     */
+    private static class LoadedPage {
+        final List<Component> rows = new ArrayList<>();
+        int firstMessageId;   // 0 = trang chưa có tin nào đã lưu trên server
+        int lastMessageId;
+    }
+
     /**
      * Chuyển sang private chat
      */
@@ -763,6 +962,7 @@ public class MainChatFrame extends JFrame {
 
         // Clear và hiển thị chat panel
         chatPanel.removeAll();
+        resetHistoryWindow();
         welcomePanel.setVisible(false);
         chatPanel.setVisible(true);
 
@@ -782,7 +982,7 @@ public class MainChatFrame extends JFrame {
         membersPanel.setVisible(false);
 
         // Load chat history
-        client.getChatHistory(user, 50);
+        client.getChatHistory(user, HISTORY_PAGE_SIZE);
         System.out.println("📜 Requesting chat history with: " + user);
     }
 
@@ -796,6 +996,7 @@ public class MainChatFrame extends JFrame {
 
         // Clear và hiển thị chat panel
         chatPanel.removeAll();
+        resetHistoryWindow();
         welcomePanel.setVisible(false);
         chatPanel.setVisible(true);
 
@@ -816,7 +1017,7 @@ public class MainChatFrame extends JFrame {
         client.getGroupMembers(groupId);
 
         // Load group history
-        client.getGroupHistory(groupId, 50);
+        client.getGroupHistory(groupId, HISTORY_PAGE_SIZE);
         System.out.println("📜 Requesting group history: Group#" + groupId);
     }
 
@@ -926,38 +1127,45 @@ public class MainChatFrame extends JFrame {
      * Gửi file
      */
     private void sendFile(java.io.File file) {
-        // Show progress dialog
-        JDialog progressDialog = new JDialog(this, "Sending File", true);
+        // Giữ lại đích gửi - user có thể chuyển sang chat khác trong lúc đang upload
+        String receiver = currentReceiver;
+        Integer groupId = currentGroupId;
+        long fileSize = file.length();
+
+        // Progress dialog không modal - vẫn chat được trong lúc gửi file
+        JDialog progressDialog = new JDialog(this, "Sending File", false);
         progressDialog.setLayout(new BorderLayout(10, 10));
-        progressDialog.setSize(300, 100);
+        progressDialog.setSize(320, 120);
         progressDialog.setLocationRelativeTo(this);
 
-        JLabel statusLabel = new JLabel("Preparing file...", SwingConstants.CENTER);
-        statusLabel.setBorder(new EmptyBorder(20, 20, 20, 20));
-        progressDialog.add(statusLabel, BorderLayout.CENTER);
+        JLabel statusLabel = new JLabel("Sending " + file.getName() + "...", SwingConstants.CENTER);
+        statusLabel.setBorder(new EmptyBorder(10, 20, 0, 20));
+        progressDialog.add(statusLabel, BorderLayout.NORTH);
+
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setBorder(new EmptyBorder(0, 20, 15, 20));
+        progressDialog.add(progressBar, BorderLayout.CENTER);
 
         // Send in background thread
-        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+        SwingWorker<Void, Long> worker = new SwingWorker<Void, Long>() {
             @Override
             protected Void doInBackground() throws Exception {
-                try {
-                    // Convert to Base64
-                    String fileBase64 = com.beantalk.util.FileTransferUtil.fileToBase64(file);
+                // Determine message type
+                String messageType = com.beantalk.util.FileTransferUtil.isImageFile(file.getName())
+                        ? "IMAGE" : "FILE";
 
-                    // Determine message type
-                    String messageType = com.beantalk.util.FileTransferUtil.isImageFile(file.getName())
-                            ? "IMAGE" : "FILE";
-
-                    // Send
-                    client.sendFile(currentReceiver, currentGroupId, file.getName(),
-                            fileBase64, messageType);
-
-                } catch (Exception e) {
-                    throw e;
-                }
+                // Stream file theo chunk
+                client.uploadFile(file, receiver, groupId, messageType, this::publish);
                 return null;
             }
 
+            @Override
+            protected void process(List<Long> chunks) {
+                long sent = chunks.get(chunks.size() - 1);
+                progressBar.setValue((int) (sent * 100 / Math.max(1, fileSize)));
+            }
+
             @Override
             protected void done() {
                 progressDialog.dispose();
@@ -965,9 +1173,10 @@ public class MainChatFrame extends JFrame {
                     get(); // Check for exceptions
                     // Success - file bubble will appear via callback
                 } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
                     JOptionPane.showMessageDialog(
                             MainChatFrame.this,
-                            "Failed to send file: " + e.getMessage(),
+                            "Failed to send file: " + cause.getMessage(),
                             "Send Error",
                             JOptionPane.ERROR_MESSAGE
                     );
@@ -0,0 +1,567 @@
+package com.beantalk.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary framing cho các message hay dùng nhất (chạy song song với JSON lines).
+ *
+ * Frame: [MAGIC 0xB7][type 1 byte][length 4 byte big-endian][body]
+ * Body:  bitmask các field có mặt (varint) + giá trị theo thứ tự schema.
+ *        String = varint độ dài + UTF-8, int/long = zigzag varint.
+ *
+ * Byte 0xB7 không thể đứng đầu 1 dòng JSON UTF-8, nên reader phân biệt được
+ * 2 kiểu frame chỉ bằng byte đầu tiên.
+ */
+public class BinaryCodec {
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final int HEADER_SIZE = 6;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    // Giới hạn body của frame server nhận từ client: frame điều khiển nhỏ, FILE_CHUNK chỉ được
+    // lớn hơn khi kết nối đang có upload
+    public static final int MAX_CONTROL_FRAME_SIZE =
+            Math.min(MAX_FRAME_SIZE, ConfigUtil.getInt("protocol.maxControlFrameBytes", 1024 * 1024));
+    public static final int MAX_CHUNK_FRAME_SIZE =
+            Math.min(MAX_FRAME_SIZE, ConfigUtil.getInt("protocol.maxChunkFrameBytes", 1024 * 1024));
+    // Buffer body cấp phát lúc đầu - lớn dần theo dữ liệu thực sự nhận được, nên header khai
+    // độ dài lớn không làm cấp phát trước cả frame (vừa 1 chunk upload 64KB)
+    public static final int INITIAL_PAYLOAD_SIZE = 128 * 1024;
+
+    // Frame raw (không decode thành JSON): body = [id 4 byte][dữ liệu file]
+    public static final int FILE_CHUNK = 64;   // client -> server, id = uploadId
+    public static final int FILE_DATA = 65;    // server -> client, id = downloadId
+    // Vị trí dữ liệu file trong payload (type byte + id)
+    public static final int CHUNK_DATA_OFFSET = 5;
+    public static final int RAW_HEADER_SIZE = HEADER_SIZE + 4;
+
+    // Kiểu giá trị của field
+    private static final int STRING = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int STRING_LIST = 3;
+    private static final int MESSAGE_LIST = 4;
+    private static final int BOOLEAN = 5;
+
+    /**
+     * Danh sách field (theo thứ tự) của 1 loại object
+     */
+    private static class Schema {
+        final String[] names;
+        final int[] kinds;
+
+        Schema(Object... fields) {
+            names = new String[fields.length / 2];
+            kinds = new int[fields.length / 2];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = (String) fields[i * 2];
+                kinds[i] = (Integer) fields[i * 2 + 1];
+            }
+        }
+
+        int indexOf(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // 1 tin nhắn trong NEW_MESSAGE / lịch sử chat
+    // (field mới chỉ được thêm vào cuối schema để bitmask của field cũ không đổi)
+    private static final Schema MESSAGE = new Schema(
+            "sender", STRING, "receiver", STRING, "groupId", INT, "content", STRING,
+            "messageType", STRING, "fileName", STRING, "filePath", STRING, "timestamp", STRING,
+            "messageId", INT);
+
+    // Index = mã type trên wire
+    private static final String[] TYPE_NAMES = {
+            null,
+            "SEND_MESSAGE",
+            "NEW_MESSAGE",
+            "CHAT_HISTORY",
+            "GROUP_HISTORY",
+            "USER_JOINED",
+            "USER_LEFT",
+            "ONLINE_USERS",
+            "GET_CHAT_HISTORY",
+            "GET_GROUP_HISTORY",
+            "PRESENCE_SNAPSHOT",
+            "PRESENCE_DELTA"
+    };
+
+    private static final Schema[] SCHEMAS = {
+            null,
+            new Schema("receiver", STRING, "groupId", INT, "content", STRING),
+            MESSAGE,
+            new Schema("messages", MESSAGE_LIST, "username", STRING,
+                    "beforeMessageId", INT, "afterMessageId", INT, "hasMore", BOOLEAN,
+                    "sinceMessageId", INT, "tooFarBehind", BOOLEAN),
+            new Schema("messages", MESSAGE_LIST, "groupId", INT,
+                    "beforeMessageId", INT, "afterMessageId", INT, "hasMore", BOOLEAN,
+                    "sinceMessageId", INT, "tooFarBehind", BOOLEAN),
+            new Schema("username", STRING),
+            new Schema("username", STRING),
+            new Schema("users", STRING_LIST),
+            new Schema("username", STRING, "limit", INT, "beforeMessageId", INT, "afterMessageId", INT,
+                    "sinceMessageId", INT),
+            new Schema("groupId", INT, "limit", INT, "beforeMessageId", INT, "afterMessageId", INT,
+                    "sinceMessageId", INT),
+            new Schema("version", LONG, "users", STRING_LIST),
+            new Schema("version", LONG, "joined", STRING_LIST, "left", STRING_LIST)
+    };
+
+    // Type client được gửi lên server, các type còn lại chỉ server gửi xuống
+    private static final Set<String> CLIENT_TYPES =
+            Set.of("SEND_MESSAGE", "GET_CHAT_HISTORY", "GET_GROUP_HISTORY");
+
+    /**
+     * Payload (type byte + body) có phải type client được gửi lên không
+     */
+    public static boolean isClientType(byte[] payload) {
+        int code = payload[0] & 0xFF;
+        return code > 0 && code < TYPE_NAMES.length && CLIENT_TYPES.contains(TYPE_NAMES[code]);
+    }
+
+    /**
+     * Type có hỗ trợ binary không
+     */
+    public static boolean supports(String type) {
+        return typeCode(type) > 0;
+    }
+
+    private static int typeCode(String type) {
+        for (int i = 1; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ============ ENCODE ============
+
+    /**
+     * Encode thành frame hoàn chỉnh (kèm header).
+     * Trả về null nếu type không hỗ trợ hoặc object có field ngoài schema -> gửi JSON.
+     */
+    public static byte[] encode(JsonObject json) {
+        JsonElement typeElement = json.get("type");
+        if (typeElement == null) {
+            return null;
+        }
+        int code = typeCode(typeElement.getAsString());
+        if (code < 0) {
+            return null;
+        }
+
+        Out out = new Out(64);
+        out.pos = HEADER_SIZE;
+        if (!writeObject(out, json, SCHEMAS[code], true)) {
+            return null;
+        }
+
+        int bodyLength = out.pos - HEADER_SIZE;
+        out.buf[0] = MAGIC;
+        out.buf[1] = (byte) code;
+        out.buf[2] = (byte) (bodyLength >>> 24);
+        out.buf[3] = (byte) (bodyLength >>> 16);
+        out.buf[4] = (byte) (bodyLength >>> 8);
+        out.buf[5] = (byte) bodyLength;
+        return out.toByteArray();
+    }
+
+    private static boolean writeObject(Out out, JsonObject json, Schema schema, boolean skipType) {
+        long mask = 0;
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            if (skipType && entry.getKey().equals("type")) {
+                continue;
+            }
+            int index = schema.indexOf(entry.getKey());
+            if (index < 0) {
+                return false;
+            }
+            if (!entry.getValue().isJsonNull()) {
+                mask |= 1L << index;
+            }
+        }
+        out.writeVarLong(mask);
+
+        for (int i = 0; i < schema.names.length; i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            JsonElement value = json.get(schema.names[i]);
+            switch (schema.kinds[i]) {
+                case STRING:
+                    if (!value.isJsonPrimitive()) return false;
+                    out.writeString(value.getAsString());
+                    break;
+                case INT:
+                case LONG:
+                    if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) return false;
+                    out.writeVarLong(zigzag(value.getAsLong()));
+                    break;
+                case BOOLEAN:
+                    if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isBoolean()) return false;
+                    out.writeVarLong(value.getAsBoolean() ? 1 : 0);
+                    break;
+                case STRING_LIST: {
+                    if (!value.isJsonArray()) return false;
+                    JsonArray array = value.getAsJsonArray();
+                    out.writeVarLong(array.size());
+                    for (JsonElement item : array) {
+                        if (!item.isJsonPrimitive()) return false;
+                        out.writeString(item.getAsString());
+                    }
+                    break;
+                }
+                case MESSAGE_LIST: {
+                    if (!value.isJsonArray()) return false;
+                    JsonArray array = value.getAsJsonArray();
+                    out.writeVarLong(array.size());
+                    for (JsonElement item : array) {
+                        if (!item.isJsonObject() || !writeObject(out, item.getAsJsonObject(), MESSAGE, false)) {
+                            return false;
+                        }
+                    }
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Header cho 1 frame raw (FILE_CHUNK / FILE_DATA) - ghi header rồi ghi thẳng dữ liệu,
+     * không copy vào frame mới
+     */
+    public static byte[] rawFrameHeader(int type, int id, int length) {
+        int bodyLength = length + 4;
+        return new byte[]{
+                MAGIC, (byte) type,
+                (byte) (bodyLength >>> 24), (byte) (bodyLength >>> 16), (byte) (bodyLength >>> 8), (byte) bodyLength,
+                (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id
+        };
+    }
+
+    public static boolean isFileChunk(byte[] payload) {
+        return (payload[0] & 0xFF) == FILE_CHUNK;
+    }
+
+    public static boolean isFileData(byte[] payload) {
+        return (payload[0] & 0xFF) == FILE_DATA;
+    }
+
+    public static int readRawFrameId(byte[] payload) {
+        if (payload.length < CHUNK_DATA_OFFSET) {
+            throw new IllegalArgumentException("Truncated file chunk");
+        }
+        return ((payload[1] & 0xFF) << 24) | ((payload[2] & 0xFF) << 16)
+                | ((payload[3] & 0xFF) << 8) | (payload[4] & 0xFF);
+    }
+
+    // ============ DECODE ============
+
+    /**
+     * Decode payload (type byte + body, không có magic/length) thành JsonObject
+     */
+    public static JsonObject decode(byte[] payload) {
+        int code = payload[0] & 0xFF;
+        if (code <= 0 || code >= TYPE_NAMES.length) {
+            throw new IllegalArgumentException("Unknown binary frame type: " + code);
+        }
+        In in = new In(payload, 1);
+        JsonObject json = new JsonObject();
+        json.addProperty("type", TYPE_NAMES[code]);
+        readObject(in, json, SCHEMAS[code]);
+        return json;
+    }
+
+    private static void readObject(In in, JsonObject json, Schema schema) {
+        long mask = in.readVarLong();
+        for (int i = 0; i < schema.names.length; i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            String name = schema.names[i];
+            switch (schema.kinds[i]) {
+                case STRING:
+                    json.addProperty(name, in.readString());
+                    break;
+                case INT:
+                    json.addProperty(name, (int) unzigzag(in.readVarLong()));
+                    break;
+                case LONG:
+                    json.addProperty(name, unzigzag(in.readVarLong()));
+                    break;
+                case BOOLEAN:
+                    json.addProperty(name, in.readVarLong() != 0);
+                    break;
+                case STRING_LIST: {
+                    int count = in.readCount();
+                    JsonArray array = new JsonArray();
+                    for (int j = 0; j < count; j++) {
+                        array.add(new JsonPrimitive(in.readString()));
+                    }
+                    json.add(name, array);
+                    break;
+                }
+                case MESSAGE_LIST: {
+                    int count = in.readCount();
+                    JsonArray array = new JsonArray();
+                    for (int j = 0; j < count; j++) {
+                        JsonObject item = new JsonObject();
+                        readObject(in, item, MESSAGE);
+                        array.add(item);
+                    }
+                    json.add(name, array);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Độ dài body tối đa server nhận cho 1 frame của client theo type
+     */
+    public static int maxInboundFrameSize(int type, boolean uploading) {
+        if (type == FILE_CHUNK && uploading) {
+            return Math.max(MAX_CHUNK_FRAME_SIZE, MAX_CONTROL_FRAME_SIZE);
+        }
+        return MAX_CONTROL_FRAME_SIZE;
+    }
+
+    /**
+     * Đọc độ dài body từ header (byte 2..5)
+     */
+    public static int readLength(byte[] header) {
+        return ((header[2] & 0xFF) << 24) | ((header[3] & 0xFF) << 16)
+                | ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // ============ BUFFERS ============
+
+    private static final class Out {
+        byte[] buf;
+        int pos;
+
+        Out(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                byte[] bigger = new byte[Math.max(buf.length * 2, pos + extra)];
+                System.arraycopy(buf, 0, bigger, 0, pos);
+                buf = bigger;
+            }
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[pos];
+            System.arraycopy(buf, 0, result, 0, pos);
+            return result;
+        }
+    }
+
+    private static final class In {
+        final byte[] buf;
+        int pos;
+
+        In(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        long readVarLong() {
+            long result = 0;
+            int shift = 0;
+            while (true) {
+                if (pos >= buf.length) {
+                    throw new IllegalArgumentException("Truncated binary frame");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+            }
+        }
+
+        /**
+         * Số phần tử của list - mỗi phần tử chiếm ít nhất 1 byte, nên không thể lớn hơn
+         * số byte còn lại (không tin count trên wire để cấp phát)
+         */
+        int readCount() {
+            long count = readVarLong();
+            if (count < 0 || count > buf.length - pos) {
+                throw new IllegalArgumentException("Invalid list count: " + count);
+            }
+            return (int) count;
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("Truncated binary frame");
+            }
+            String s = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return s;
+        }
+    }
+
+    // test: so sánh kích thước và thời gian parse JSON vs binary
+    public static void main(String[] args) {
+        System.out.println("=== BINARY CODEC TEST ===\n");
+
+        JsonObject newMessage = sampleMessage("NEW_MESSAGE", 1);
+
+        JsonObject history = new JsonObject();
+        history.addProperty("type", "GROUP_HISTORY");
+        JsonArray messages = new JsonArray();
+        for (int i = 0; i < 50; i++) {
+            JsonObject m = sampleMessage(null, i);
+            m.addProperty("timestamp", "2025-11-20T10:15:" + (10 + i % 50));
+            m.addProperty("messageId", 120_000 + i);
+            messages.add(m);
+        }
+        history.add("messages", messages);
+        history.addProperty("groupId", 42);
+        history.addProperty("beforeMessageId", 120_050);
+        history.addProperty("hasMore", true);
+
+        // Mở lại group không có tin mới: sync chỉ trả response rỗng
+        JsonObject sync = new JsonObject();
+        sync.addProperty("type", "GROUP_HISTORY");
+        sync.add("messages", new JsonArray());
+        sync.addProperty("groupId", 42);
+        sync.addProperty("hasMore", false);
+        sync.addProperty("sinceMessageId", 120_049);
+        sync.addProperty("tooFarBehind", false);
+
+        JsonObject online = new JsonObject();
+        online.addProperty("type", "ONLINE_USERS");
+        JsonArray users = new JsonArray();
+        for (int i = 0; i < 200; i++) {
+            users.add("user_" + i);
+        }
+        online.add("users", users);
+
+        JsonObject joined = new JsonObject();
+        joined.addProperty("type", "USER_JOINED");
+        joined.addProperty("username", "alice_test");
+
+        compare("NEW_MESSAGE", newMessage);
+        compare("USER_JOINED", joined);
+        compare("GROUP_HISTORY x50", history);
+        compare("GROUP_HISTORY sync", sync);
+        compare("ONLINE_USERS x200", online);
+
+        System.out.println("\nMalformed frames from a client:");
+        byte[][] malformed = {
+                {3, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07},   // count = Integer.MAX_VALUE
+                {7, 1, (byte) 0x80, (byte) 0xC2, (byte) 0xD7, 0x2F},               // count = 100M
+                {1, 4, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}    // content length > frame
+        };
+        for (byte[] payload : malformed) {
+            try {
+                decode(payload);
+                System.out.println("  FAIL: type " + payload[0] + " decoded");
+            } catch (IllegalArgumentException e) {
+                System.out.println("  type " + payload[0] + " (client type: " + isClientType(payload)
+                        + ") rejected: " + e.getMessage());
+            }
+        }
+
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+
+    private static JsonObject sampleMessage(String type, int i) {
+        JsonObject m = new JsonObject();
+        if (type != null) {
+            m.addProperty("type", type);
+        }
+        m.addProperty("sender", "alice_test");
+        m.addProperty("content", "Xin chào, đây là tin nhắn số " + i + " trong nhóm BeanTalk 😊");
+        m.addProperty("groupId", 42);
+        m.addProperty("messageType", "TEXT");
+        return m;
+    }
+
+    private static void compare(String label, JsonObject json) {
+        String text = json.toString();
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = encode(json);
+        byte[] payload = new byte[frame.length - HEADER_SIZE + 1];
+        payload[0] = frame[1];
+        System.arraycopy(frame, HEADER_SIZE, payload, 1, frame.length - HEADER_SIZE);
+
+        if (!decode(payload).equals(json)) {
+            System.out.println("❌ Round trip mismatch for " + label);
+            return;
+        }
+
+        int iterations = 200_000 / Math.max(1, textBytes.length / 100);
+        // warm up
+        for (int i = 0; i < iterations; i++) {
+            JsonParser.parseString(new String(textBytes, StandardCharsets.UTF_8));
+            decode(payload);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            JsonParser.parseString(new String(textBytes, StandardCharsets.UTF_8));
+        }
+        long jsonNanos = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            decode(payload);
+        }
+        long binaryNanos = (System.nanoTime() - start) / iterations;
+
+        System.out.printf("%-18s JSON %6d B %8d ns | binary %6d B %8d ns%n",
+                label, textBytes.length + 1, jsonNanos, frame.length, binaryNanos);
+    }
+}
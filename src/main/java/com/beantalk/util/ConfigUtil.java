@@ -1,4 +1,65 @@
 package com.beantalk.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Đọc cấu hình từ config.properties, cho phép ghi đè bằng -Dkey=value khi khởi động
+ */
 public class ConfigUtil {
+    private static final Properties props = new Properties();
+
+    static {
+        loadConfig();
+    }
+
+    private static void loadConfig() {
+        try (InputStream input = ConfigUtil.class
+                .getClassLoader()
+                .getResourceAsStream("config.properties")) {
+
+            if (input == null) {
+                System.err.println("ERROR: Cannot find config.properties file");
+                return;
+            }
+            props.load(input);
+
+        } catch (IOException e) {
+            System.err.println("ERROR: Cannot read config file - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lấy giá trị cấu hình (System property được ưu tiên)
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = props.getProperty(key);
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(get(key, String.valueOf(defaultValue)));
+    }
 }
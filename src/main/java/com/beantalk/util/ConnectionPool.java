@@ -0,0 +1,442 @@
+package com.beantalk.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JDBC connection pool - DAO vẫn gọi conn.close() như cũ, connection được trả về pool.
+ * Dùng ReentrantLock thay vì synchronized để virtual thread không bị pin khi chờ.
+ */
+public class ConnectionPool {
+
+    /**
+     * Tạo connection thật tới database
+     */
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    // Giới hạn trên (ms) của các bucket trong histogram thời gian chờ lấy connection
+    private static final long[] WAIT_BUCKETS_MS = {1, 5, 10, 50, 100, 500, 1000, Long.MAX_VALUE};
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long validationIntervalMs;
+    private final long leakThresholdMs;
+    private final boolean leakTrace;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<PooledConnection, Boolean> borrowed = new ConcurrentHashMap<>();
+    private int totalConnections = 0;   // idle + borrowed + đang tạo
+    private volatile boolean closed = false;
+
+    private final ScheduledExecutorService housekeeper;
+
+    private final LongAdder[] waitHistogram = new LongAdder[WAIT_BUCKETS_MS.length];
+    private final LongAdder created = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize, long acquireTimeoutMs,
+                          long idleTimeoutMs, long validationIntervalMs, long leakThresholdMs,
+                          boolean leakTrace, long housekeepingMs) {
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = Math.max(1, maxSize);
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.leakTrace = leakThresholdMs > 0 && leakTrace;
+
+        for (int i = 0; i < waitHistogram.length; i++) {
+            waitHistogram[i] = new LongAdder();
+        }
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0, housekeepingMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lấy connection từ pool (chờ tối đa acquireTimeoutMs)
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+
+        while (true) {
+            PooledConnection pooled = null;
+            boolean mustCreate = false;
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    pooled = idle.pollFirst();
+                    if (pooled != null) {
+                        break;
+                    }
+                    if (totalConnections < maxSize) {
+                        totalConnections++;
+                        mustCreate = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.increment();
+                        throw new SQLException("Timeout after " + acquireTimeoutMs
+                                + "ms waiting for database connection (pool size " + maxSize + ")");
+                    }
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for database connection");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // Tạo / kiểm tra connection bên ngoài lock
+            if (mustCreate) {
+                pooled = createConnection();
+            } else if (!validate(pooled)) {
+                discard(pooled);
+                continue;
+            }
+
+            recordWait(System.nanoTime() - start);
+            return borrow(pooled);
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        try {
+            PooledConnection pooled = new PooledConnection(factory.create());
+            created.increment();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            lock.lock();
+            try {
+                totalConnections--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Chỉ gọi isValid() khi connection đã nằm yên lâu hơn validationIntervalMs
+     */
+    private boolean validate(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMs) {
+            return true;
+        }
+        try {
+            return pooled.raw.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Connection borrow(PooledConnection pooled) {
+        pooled.borrowedAt = System.currentTimeMillis();
+        pooled.leakReported = false;
+        // Chụp stack trace tốn chi phí ở mỗi lần mượn - chỉ khi bật db.pool.leakTrace
+        pooled.borrowStack = leakTrace ? new Throwable("Connection acquired here") : null;
+        borrowed.put(pooled, Boolean.TRUE);
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new ConnectionHandle(pooled));
+    }
+
+    /**
+     * Connection được DAO close() - reset trạng thái rồi trả về pool
+     */
+    private void release(PooledConnection pooled) {
+        borrowed.remove(pooled);
+
+        boolean healthy = true;
+        try {
+            if (!pooled.raw.getAutoCommit()) {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        if (!healthy || closed) {
+            discard(pooled);
+            return;
+        }
+
+        pooled.lastUsed = System.currentTimeMillis();
+        lock.lock();
+        try {
+            idle.addFirst(pooled);   // LIFO: connection vừa dùng còn "nóng"
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        closeQuietly(pooled);
+        lock.lock();
+        try {
+            totalConnections--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Chạy định kỳ: đóng connection idle quá lâu, giữ tối thiểu minSize, báo leak
+     */
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+
+            // Idle eviction - connection ít dùng nhất nằm cuối deque
+            lock.lock();
+            try {
+                while (totalConnections > minSize && !idle.isEmpty()
+                        && now - idle.peekLast().lastUsed > idleTimeoutMs) {
+                    closeQuietly(idle.pollLast());
+                    totalConnections--;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // Bổ sung cho đủ minSize
+            while (!closed) {
+                lock.lock();
+                try {
+                    if (totalConnections >= minSize) {
+                        break;
+                    }
+                    totalConnections++;
+                } finally {
+                    lock.unlock();
+                }
+                PooledConnection pooled = createConnection();
+                release(pooled);
+            }
+
+            // Leak detection
+            if (leakThresholdMs > 0) {
+                for (PooledConnection pooled : borrowed.keySet()) {
+                    if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMs) {
+                        pooled.leakReported = true;
+                        leaks.increment();
+                        System.err.println("⚠️ Possible connection leak: held for "
+                                + (now - pooled.borrowedAt) + "ms"
+                                + (leakTrace ? "" : " (db.pool.leakTrace=true to see where)"));
+                        if (pooled.borrowStack != null) {
+                            pooled.borrowStack.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Connection pool housekeeping failed: " + e.getMessage());
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        for (int i = 0; i < WAIT_BUCKETS_MS.length; i++) {
+            if (waitMs < WAIT_BUCKETS_MS[i]) {
+                waitHistogram[i].increment();
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(PooledConnection pooled) {
+        try {
+            pooled.raw.close();
+        } catch (SQLException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Đóng pool và toàn bộ connection idle
+     */
+    public void shutdown() {
+        closed = true;
+        housekeeper.shutdownNow();
+        lock.lock();
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                closeQuietly(pooled);
+                totalConnections--;
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ============ METRICS ============
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getTotalCount() {
+        lock.lock();
+        try {
+            return totalConnections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * Histogram thời gian chờ lấy connection, vd: "<1ms=120 <5ms=3 ... >=1000ms=0"
+     */
+    public String getWaitHistogram() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < WAIT_BUCKETS_MS.length; i++) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            if (WAIT_BUCKETS_MS[i] == Long.MAX_VALUE) {
+                sb.append(">=").append(WAIT_BUCKETS_MS[i - 1]).append("ms");
+            } else {
+                sb.append('<').append(WAIT_BUCKETS_MS[i]).append("ms");
+            }
+            sb.append('=').append(waitHistogram[i].sum());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Số lần chờ rơi vào bucket thứ i (dùng cho ServerMetrics)
+     */
+    public long getWaitCount(int bucket) {
+        return waitHistogram[bucket].sum();
+    }
+
+    public static int getWaitBucketCount() {
+        return WAIT_BUCKETS_MS.length;
+    }
+
+    public static String getWaitBucketName(int bucket) {
+        return WAIT_BUCKETS_MS[bucket] == Long.MAX_VALUE
+                ? "ge" + WAIT_BUCKETS_MS[bucket - 1] + "ms"
+                : "lt" + WAIT_BUCKETS_MS[bucket] + "ms";
+    }
+
+    // ============ INTERNAL ============
+
+    private static class PooledConnection {
+        final Connection raw;
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile long borrowedAt;
+        volatile Throwable borrowStack;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * Proxy trả cho DAO - close() trả connection về pool thay vì đóng thật
+     */
+    private class ConnectionHandle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned = false;
+
+        ConnectionHandle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.raw.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + pooled.raw + "]";
+                default:
+                    if (returned) {
+                        throw new SQLException("Connection already returned to pool");
+                    }
+                    try {
+                        return method.invoke(pooled.raw, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
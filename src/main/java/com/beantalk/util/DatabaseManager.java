@@ -1,48 +1,56 @@
 package com.beantalk.util;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.Properties;
 
 // Database Connection Manager
 public class DatabaseManager {
     private static String DB_URL;
     private static String DB_USER;
     private static String DB_PASSWORD;
+    private static ConnectionPool pool;
 
-    // Load configuration from file
+    // Load configuration (config.properties, ghi đè được bằng -D)
     static {
         loadConfig();
     }
     private static void loadConfig(){
-        try (InputStream input = DatabaseManager.class
-                .getClassLoader()
-                .getResourceAsStream("config.properties")) {
+        DB_URL = ConfigUtil.get("db.url", null);
+        DB_USER = ConfigUtil.get("db.username", "");
+        DB_PASSWORD = ConfigUtil.get("db.password", "");
 
-            if (input == null) {
-                System.err.println("ERROR: Cannot find config.properties file");
-                return;
-            }
-
-            Properties prop = new Properties();
-            prop.load(input);
-
-            DB_URL = prop.getProperty("db.url");
-            DB_USER = prop.getProperty("db.username", "");
-            DB_PASSWORD = prop.getProperty("db.password", "");
-
-        } catch (IOException e) {
-            System.err.println("ERROR: Cannot read config file - " + e.getMessage());
+        if (ConfigUtil.getBoolean("db.pool.enabled", true)) {
+            pool = new ConnectionPool(
+                    DatabaseManager::openConnection,
+                    ConfigUtil.getInt("db.pool.minSize", 2),
+                    ConfigUtil.getInt("db.pool.maxSize", 20),
+                    ConfigUtil.getLong("db.pool.acquireTimeoutMs", 5000),
+                    ConfigUtil.getLong("db.pool.idleTimeoutMs", 300000),
+                    ConfigUtil.getLong("db.pool.validationIntervalMs", 30000),
+                    ConfigUtil.getLong("db.pool.leakThresholdMs", 10000),
+                    ConfigUtil.getBoolean("db.pool.leakTrace", false),
+                    ConfigUtil.getLong("db.pool.housekeepingMs", 30000)
+            );
         }
     }
 
     /**
-     * Get database connection
+     * Get database connection (từ pool nếu bật db.pool.enabled)
+     * Không dùng synchronized ở đây (mssql-jdbc 12.x cũng chỉ dùng ReentrantLock)
+     * nên virtual thread gọi DAO không bị pin vào carrier thread
      */
     public static Connection getConnection() throws SQLException {
+        if (pool != null) {
+            return pool.getConnection();
+        }
+        return openConnection();
+    }
+
+    /**
+     * Mở connection mới tới SQL Server (không qua pool)
+     */
+    private static Connection openConnection() throws SQLException {
         // If using Windows Authentication (empty username)
         if (DB_USER == null || DB_USER.isEmpty()) {
             return DriverManager.getConnection(DB_URL);
@@ -51,6 +59,13 @@ public class DatabaseManager {
         return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
     }
 
+    /**
+     * Pool đang dùng, null nếu tắt pool
+     */
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
     /**
      * Test database connection
      */
@@ -10,8 +10,11 @@ public class FileTransferUtil {
     // thu muc luu file tren server
     private static final String UPLOAD_DIR = "uploads/";
 
-    // max file size 10MB
-    private static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+    // max file size khi upload theo chunk - cau hinh bang file.maxSize, mac dinh 100MB
+    private static final long MAX_FILE_SIZE = ConfigUtil.getLong("file.maxSize", 100L * 1024 * 1024);
+
+    // gioi han cu cho SEND_FILE (ca file Base64 trong 1 dong JSON), chi dung voi server cu
+    private static final long MAX_INLINE_FILE_SIZE = 10 * 1024 * 1024;
 
     static {
         // tao thu muc uploads neu chua co
@@ -25,7 +28,7 @@ public class FileTransferUtil {
 
     // convert file thanh Base64 string
     public static String fileToBase64(File file) throws IOException {
-        if (file.length() > MAX_FILE_SIZE) {
+        if (file.length() > MAX_INLINE_FILE_SIZE) {
             throw new IOException("File too large. Maximum size is 10MB.");
         }
         byte[] fileContent = Files.readAllBytes(file.toPath());
@@ -35,18 +38,40 @@ public class FileTransferUtil {
     // convert base64 string thanh file
     public static String base64ToFile(String base64Data, String originalFileName) throws IOException {
         byte[] fileContent = Base64.getDecoder().decode(base64Data);
-
-        // tao ten file unique
-        String extension = getFileExtension(originalFileName);
-        String uniqueFileName = UUID.randomUUID().toString() + extension;
-        String filePath = UPLOAD_DIR + uniqueFileName;
+        if (fileContent.length > MAX_INLINE_FILE_SIZE) {
+            throw new IOException("File too large. Maximum size is 10MB.");
+        }
 
         // Ghi file
+        String filePath = newUploadPath(originalFileName);
         Files.write(Paths.get(filePath), fileContent);
 
         return filePath;
     }
 
+    // tao duong dan unique trong uploads/ (chi giu extension cua ten file goc)
+    public static String newUploadPath(String originalFileName) {
+        String extension = getFileExtension(originalFileName);
+        if (!extension.matches("\\.[A-Za-z0-9]{1,10}")) {
+            extension = "";
+        }
+        return UPLOAD_DIR + UUID.randomUUID().toString() + extension;
+    }
+
+    // duong dan file trong uploads/ ma client yeu cau download, null neu nam ngoai thu muc uploads
+    public static Path resolveUpload(String filePath) {
+        Path uploadDir = Paths.get(UPLOAD_DIR).toAbsolutePath().normalize();
+        Path path = Paths.get(filePath).toAbsolutePath().normalize();
+        if (!path.startsWith(uploadDir) || path.equals(uploadDir)) {
+            return null;
+        }
+        return path;
+    }
+
+    public static long getMaxFileSize() {
+        return MAX_FILE_SIZE;
+    }
+
     // lay extension cua file
     public static String getFileExtension(String fileName) {
         int lastDot = fileName.lastIndexOf('.');
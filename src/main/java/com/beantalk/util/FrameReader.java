@@ -0,0 +1,156 @@
+package com.beantalk.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Đọc frame từ stream blocking - chấp nhận cả JSON lines lẫn binary frame (BinaryCodec)
+ * trên cùng 1 kết nối, phân biệt bằng byte đầu tiên.
+ */
+public class FrameReader {
+    // Độ dài tối đa của 1 dòng JSON server nhận từ client (byte)
+    public static final int MAX_LINE_BYTES = ConfigUtil.getInt("protocol.maxLineBytes", 1024 * 1024);
+
+    private final InputStream in;
+    private final int maxLineLength;
+    // type -> độ dài body tối đa
+    private final IntUnaryOperator maxFrameSize;
+    private byte[] lineBuffer = new byte[256];
+
+    /**
+     * Đọc từ server (client dùng): chấp nhận dòng / frame tới MAX_FRAME_SIZE
+     */
+    public FrameReader(InputStream in) {
+        this(in, BinaryCodec.MAX_FRAME_SIZE, type -> BinaryCodec.MAX_FRAME_SIZE);
+    }
+
+    public FrameReader(InputStream in, int maxLineLength, IntUnaryOperator maxFrameSize) {
+        this.in = new BufferedInputStream(in, 8192);
+        this.maxLineLength = maxLineLength;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Đọc frame tiếp theo:
+     *   String - 1 dòng JSON (không kèm '\n')
+     *   byte[] - binary payload (type byte + body), decode bằng BinaryCodec.decode
+     *   null   - hết stream
+     */
+    public Object read() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if ((byte) first == BinaryCodec.MAGIC) {
+            return readBinary();
+        }
+        return readLine(first);
+    }
+
+    private byte[] readBinary() throws IOException {
+        byte[] header = new byte[BinaryCodec.HEADER_SIZE];
+        header[0] = BinaryCodec.MAGIC;
+        readFully(header, 1, header.length - 1);
+
+        int length = BinaryCodec.readLength(header);
+        int max = maxFrameSize.applyAsInt(header[1] & 0xFF);
+        if (length < 0 || length > max) {
+            throw new IOException("Binary frame too large: " + length + " (max " + max + ")");
+        }
+        int total = length + 1;
+        byte[] payload = new byte[Math.min(total, BinaryCodec.INITIAL_PAYLOAD_SIZE)];
+        payload[0] = header[1];
+        int filled = 1;
+        while (filled < total) {
+            if (filled == payload.length) {
+                payload = Arrays.copyOf(payload, (int) Math.min(total, 2L * payload.length));
+            }
+            int n = in.read(payload, filled, payload.length - filled);
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a binary frame");
+            }
+            filled += n;
+        }
+        return payload;
+    }
+
+    private String readLine(int first) throws IOException {
+        int length = 0;
+        int b = first;
+        while (b >= 0 && b != '\n') {
+            if (length == maxLineLength) {
+                throw new IOException("Line too long (max " + maxLineLength + " bytes)");
+            }
+            if (length == lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+            }
+            lineBuffer[length++] = (byte) b;
+            b = in.read();
+        }
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // test: header khai độ dài lớn bị từ chối trước khi cấp phát, frame hợp lệ lớn hơn
+    // buffer ban đầu vẫn đọc đủ (buffer lớn dần)
+    public static void main(String[] args) throws IOException {
+        System.out.println("=== FRAME READER TEST ===\n");
+
+        byte[] header = {BinaryCodec.MAGIC, 1, 0x04, 0, 0, 0};   // 64MB
+        try {
+            new FrameReader(new ByteArrayInputStream(header), MAX_LINE_BYTES,
+                    type -> BinaryCodec.MAX_CONTROL_FRAME_SIZE).read();
+            System.out.println("FAIL: oversized frame accepted");
+        } catch (IOException e) {
+            System.out.println("Oversized control frame rejected: " + e.getMessage());
+        }
+
+        int length = 3 * BinaryCodec.INITIAL_PAYLOAD_SIZE + 7;
+        byte[] frame = new byte[BinaryCodec.HEADER_SIZE + length];
+        frame[0] = BinaryCodec.MAGIC;
+        frame[1] = (byte) BinaryCodec.FILE_CHUNK;
+        frame[2] = (byte) (length >>> 24);
+        frame[3] = (byte) (length >>> 16);
+        frame[4] = (byte) (length >>> 8);
+        frame[5] = (byte) length;
+        for (int i = 0; i < length; i++) {
+            frame[BinaryCodec.HEADER_SIZE + i] = (byte) i;
+        }
+        byte[] payload = (byte[]) new FrameReader(new ByteArrayInputStream(frame)).read();
+        boolean same = payload.length == length + 1;
+        for (int i = 0; same && i < length; i++) {
+            same = payload[i + 1] == (byte) i;
+        }
+        System.out.println("Frame of " + length + " bytes read intact: " + same);
+
+        byte[] line = new byte[100];
+        Arrays.fill(line, (byte) 'a');
+        try {
+            new FrameReader(new ByteArrayInputStream(line), 64, type -> 0).read();
+            System.out.println("FAIL: over-long line accepted");
+        } catch (IOException e) {
+            System.out.println("Over-long line rejected: " + e.getMessage());
+        }
+
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = in.read(buffer, offset, length);
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a binary frame");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.beantalk.model.Group;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -30,7 +31,9 @@ public class GroupDAO {
             if (rows > 0) {
                 ResultSet rs = stmt.getGeneratedKeys();
                 if (rs.next()) {
-                    return rs.getInt(1);
+                    int groupId = rs.getInt(1);
+                    GroupMemberCache.invalidateGroup(groupId);
+                    return groupId;
                 }
             }
         } catch (SQLException e) {
@@ -52,7 +55,9 @@ public class GroupDAO {
             stmt.setInt(2, userId);
             stmt.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
 
-            return stmt.executeUpdate() > 0;
+            boolean added = stmt.executeUpdate() > 0;
+            GroupMemberCache.invalidateGroup(groupId);
+            return added;
         } catch (SQLException e) {
             System.err.println("Error adding group member: " + e.getMessage());
         }
@@ -173,7 +178,9 @@ public class GroupDAO {
             stmt.setInt(1, groupId);
             stmt.setInt(2, userId);
 
-            return stmt.executeUpdate() > 0;
+            boolean removed = stmt.executeUpdate() > 0;
+            GroupMemberCache.invalidateGroup(groupId);
+            return removed;
         } catch (SQLException e) {
             System.err.println("Error removing group member: " + e.getMessage());
         }
@@ -181,47 +188,48 @@ public class GroupDAO {
     }
 
     /**
-     * Kiểm tra user có phải member của group không
+     * Kiểm tra user có phải member của group không (qua cache)
      */
     public static boolean isMember(int groupId, int userId) {
-        String sql = "SELECT COUNT(*) FROM GroupMembers WHERE group_id = ? AND user_id = ?";
-
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-            stmt.setInt(1, groupId);
-            stmt.setInt(2, userId);
-            ResultSet rs = stmt.executeQuery();
+        return GroupMemberCache.isMember(groupId, userId);
+    }
 
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
-            }
-        } catch (SQLException e) {
-            System.err.println("Error checking membership: " + e.getMessage());
-        }
-        return false;
+    /**
+     * Lấy user IDs trong group dạng mảng int (qua cache, KHÔNG được sửa mảng trả về)
+     */
+    public static int[] getGroupMemberIdArray(int groupId) {
+        return GroupMemberCache.getMemberIds(groupId);
     }
 
     /**
-     * Lấy tất cả user IDs trong group
+     * Query member ids trực tiếp từ database (cache gọi khi miss), null nếu lỗi
      */
-    public static List<Integer> getGroupMemberIds(int groupId) {
-        String sql = "SELECT user_id FROM GroupMembers WHERE group_id = ? ORDER BY joined_at";
-        List<Integer> memberIds = new ArrayList<>();
+    static int[] queryGroupMemberIds(int groupId) {
+        String sql = "SELECT user_id FROM GroupMembers WHERE group_id = ?";
+        return queryIds(sql, groupId, "Error getting group member IDs: ");
+    }
+
+    private static int[] queryIds(String sql, int param, String errorMessage) {
+        int[] ids = new int[16];
+        int count = 0;
 
         try (Connection conn = DatabaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setInt(1, groupId);
+            stmt.setInt(1, param);
             ResultSet rs = stmt.executeQuery();
 
             while (rs.next()) {
-                memberIds.add(rs.getInt("user_id"));
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                ids[count++] = rs.getInt(1);
             }
         } catch (SQLException e) {
-            System.err.println("Error getting group member IDs: " + e.getMessage());
+            System.err.println(errorMessage + e.getMessage());
+            return null;
         }
-        return memberIds;
+        return Arrays.copyOf(ids, count);
     }
 
     /**
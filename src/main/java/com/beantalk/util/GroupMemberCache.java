@@ -0,0 +1,113 @@
+package com.beantalk.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache membership của group trên server: groupId -> member ids.
+ * Mỗi tập là mảng int đã sắp xếp, không bao giờ bị sửa sau khi đưa vào cache
+ * (muốn thay đổi thì invalidate rồi load lại), nên dùng được ngoài lock.
+ * Giữ tối đa groupCache.maxGroups group (LRU).
+ */
+public class GroupMemberCache {
+    private static final int MAX_GROUPS = Math.max(1, ConfigUtil.getInt("groupCache.maxGroups", 10000));
+
+    private static final Object lock = new Object();
+    // Thứ tự truy cập (LRU), chỉ truy cập khi giữ lock
+    private static final Map<Integer, int[]> membersByGroup = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            if (size() <= MAX_GROUPS) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        }
+    };
+
+    // Tăng mỗi lần invalidate - kết quả load bắt đầu trước đó sẽ không được đưa vào cache
+    private static long generation = 0;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private static int[] get(int groupId) {
+        synchronized (lock) {
+            return membersByGroup.get(groupId);
+        }
+    }
+
+    private static long generation() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    private static void store(int groupId, int[] members, long gen) {
+        synchronized (lock) {
+            if (generation == gen) {
+                membersByGroup.putIfAbsent(groupId, members);
+            }
+        }
+    }
+
+    /**
+     * Member ids của group (mảng đã sắp xếp, KHÔNG được sửa)
+     */
+    public static int[] getMemberIds(int groupId) {
+        int[] members = get(groupId);
+        if (members != null) {
+            hits.increment();
+            return members;
+        }
+        misses.increment();
+
+        long gen = generation();
+        members = GroupDAO.queryGroupMemberIds(groupId);
+        if (members == null) {
+            return new int[0];   // lỗi database - không cache
+        }
+        Arrays.sort(members);
+        store(groupId, members, gen);
+        return members;
+    }
+
+    /**
+     * Kiểm tra membership (tìm nhị phân trong tập member của group)
+     */
+    public static boolean isMember(int groupId, int userId) {
+        return Arrays.binarySearch(getMemberIds(groupId), userId) >= 0;
+    }
+
+    /**
+     * Group mới được tạo / membership thay đổi (thêm / xóa member)
+     */
+    public static void invalidateGroup(int groupId) {
+        synchronized (lock) {
+            generation++;
+            membersByGroup.remove(groupId);
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static long getCachedGroups() {
+        synchronized (lock) {
+            return membersByGroup.size();
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.beantalk.util;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * AES engine cho nội dung tin nhắn.
+ * Key được tạo 1 lần; mỗi thread giữ sẵn Cipher của mình
+ * (Cipher không thread-safe, còn Cipher.getInstance tốn hơn cả phần mã hóa với tin nhắn ngắn).
+ *
+ * Định dạng content_encrypted:
+ *   v2:Base64(iv[12] + ciphertext + tag[16]) - AES-256-GCM, IV ngẫu nhiên cho mỗi tin nhắn
+ *   Base64(ciphertext)                       - v1, AES/ECB cũ (không có prefix, chỉ còn để đọc)
+ * Base64 không bao giờ chứa ':' nên dòng cũ không thể bị nhầm là có prefix.
+ */
+public class MessageCipher {
+    public static final int CURRENT_VERSION = 2;
+    private static final String CURRENT_PREFIX = "v" + CURRENT_VERSION + ":";
+
+    private static final String LEGACY_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKeySpec legacyKey;
+    private final SecretKeySpec gcmKey;
+    private final ThreadLocal<Cipher> legacyDecryptors;
+    // GCM phải init lại với IV mới cho mỗi tin nhắn, nhưng vẫn dùng lại được object Cipher
+    private final ThreadLocal<Cipher> gcmCiphers;
+
+    public MessageCipher(String secret) {
+        this.legacyKey = deriveKey(secret);
+        this.gcmKey = deriveGcmKey(secret);
+        this.legacyDecryptors = ThreadLocal.withInitial(() -> newLegacyCipher(Cipher.DECRYPT_MODE));
+        this.gcmCiphers = ThreadLocal.withInitial(MessageCipher::newGcmCipher);
+    }
+
+    /**
+     * Key v1: 32 byte đầu của secret, thiếu thì đệm 0 (giữ nguyên để đọc được dòng cũ)
+     */
+    static SecretKeySpec deriveKey(String secret) {
+        byte[] keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[32];
+        System.arraycopy(keyBytes, 0, key, 0, Math.min(keyBytes.length, 32));
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Key v2: SHA-256 của secret - đủ 256 bit kể cả khi secret ngắn hơn 32 ký tự
+     */
+    static SecretKeySpec deriveGcmKey(String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("beantalk-message-v" + CURRENT_VERSION + ":").getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(digest.digest(secret.getBytes(StandardCharsets.UTF_8)), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private Cipher newLegacyCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+            cipher.init(mode, legacyKey);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize " + LEGACY_TRANSFORMATION, e);
+        }
+    }
+
+    private static Cipher newGcmCipher() {
+        try {
+            return Cipher.getInstance(GCM_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize " + GCM_TRANSFORMATION, e);
+        }
+    }
+
+    /**
+     * Mã hóa bằng phiên bản hiện tại (v2, AES-GCM)
+     */
+    public String encrypt(String plainText) throws GeneralSecurityException {
+        byte[] input = plainText.getBytes(StandardCharsets.UTF_8);
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+
+        Cipher cipher = gcmCiphers.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, gcmKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            byte[] output = new byte[GCM_IV_LENGTH + cipher.getOutputSize(input.length)];
+            System.arraycopy(iv, 0, output, 0, GCM_IV_LENGTH);
+            cipher.doFinal(input, 0, input.length, output, GCM_IV_LENGTH);
+            return CURRENT_PREFIX + Base64.getEncoder().encodeToString(output);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            gcmCiphers.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Giải mã - tự nhận phiên bản theo prefix
+     */
+    public String decrypt(String encryptedText) throws GeneralSecurityException {
+        int version = getVersion(encryptedText);
+        if (version == 1) {
+            return decryptLegacy(encryptedText);
+        }
+        if (version == 2) {
+            return decryptGcm(encryptedText.substring(CURRENT_PREFIX.length()));
+        }
+        throw new GeneralSecurityException("Unknown key version: " + version);
+    }
+
+    /**
+     * Giải mã cả trang lịch sử; phần tử null hoặc lỗi -> null, không làm hỏng cả trang
+     */
+    public List<String> decryptAll(List<String> encryptedTexts) {
+        List<String> result = new ArrayList<>(encryptedTexts.size());
+        for (String encryptedText : encryptedTexts) {
+            if (encryptedText == null) {
+                result.add(null);
+                continue;
+            }
+            try {
+                result.add(decrypt(encryptedText));
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Phiên bản của 1 giá trị content_encrypted: 1 = ECB cũ (không prefix), n = "vn:..."
+     */
+    public static int getVersion(String encryptedText) {
+        int colon = encryptedText.indexOf(':');
+        if (colon < 0) {
+            return 1;
+        }
+        if (colon < 2 || encryptedText.charAt(0) != 'v') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(encryptedText.substring(1, colon));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * true nếu giá trị đã ở phiên bản hiện tại (không cần re-encrypt)
+     */
+    public static boolean isCurrent(String encryptedText) {
+        return encryptedText != null && encryptedText.startsWith(CURRENT_PREFIX);
+    }
+
+    private String decryptGcm(String body) throws GeneralSecurityException {
+        byte[] data = Base64.getDecoder().decode(body);
+        if (data.length < GCM_IV_LENGTH + GCM_TAG_BITS / 8) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        Cipher cipher = gcmCiphers.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, gcmKey, new GCMParameterSpec(GCM_TAG_BITS, data, 0, GCM_IV_LENGTH));
+            byte[] decrypted = cipher.doFinal(data, GCM_IV_LENGTH, data.length - GCM_IV_LENGTH);
+            return new String(decrypted, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            gcmCiphers.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * doFinal đưa Cipher ECB về trạng thái vừa init nên dùng lại được ngay;
+     * nếu lỗi thì bỏ Cipher của thread này
+     */
+    private String decryptLegacy(String encryptedText) throws GeneralSecurityException {
+        try {
+            byte[] decrypted = legacyDecryptors.get().doFinal(Base64.getDecoder().decode(encryptedText));
+            return new String(decrypted, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            legacyDecryptors.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Mã hóa theo định dạng v1 cũ - chỉ dùng để tạo dữ liệu thử
+     */
+    String encryptLegacy(String plainText) throws GeneralSecurityException {
+        byte[] encrypted = newLegacyCipher(Cipher.ENCRYPT_MODE).doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(encrypted);
+    }
+
+    // benchmark: thông lượng v1 (ECB) và v2 (GCM) với payload 1 KB và 64 KB
+    public static void main(String[] args) throws Exception {
+        System.out.println("=== MESSAGE CIPHER BENCHMARK ===\n");
+
+        String secret = "BeanTalkSecretKey2025!@#$%^&*com";
+        MessageCipher cipher = new MessageCipher(secret);
+
+        // Kiểm tra định dạng
+        String legacy = cipher.encryptLegacy("Tin nhắn cũ 😊");
+        String current = cipher.encrypt("Tin nhắn mới 😊");
+        System.out.println("v1: " + legacy + " -> " + cipher.decrypt(legacy));
+        System.out.println("v2: " + current + " -> " + cipher.decrypt(current));
+        System.out.println("Same plaintext, different ciphertext: "
+                + !cipher.encrypt("hello").equals(cipher.encrypt("hello")));
+        char[] tampered = current.toCharArray();
+        tampered[10] = tampered[10] == 'A' ? 'B' : 'A';
+        System.out.println("Tampered v2 rejected: "
+                + (cipher.decryptAll(List.of(new String(tampered))).get(0) == null));
+        System.out.println();
+
+        // Tin nhắn ngắn: tạo key + Cipher cho mỗi lần gọi (cách cũ) so với key / Cipher dùng lại
+        String message = "Xin chào, đây là 1 tin nhắn bình thường trong BeanTalk 😊";
+        String v1Message = cipher.encryptLegacy(message);
+        String v2Message = cipher.encrypt(message);
+        List<String> page = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            page.add(cipher.encrypt(message + " #" + i));
+        }
+
+        int iterations = 200_000;
+        for (int round = 0; round < 2; round++) {   // vòng đầu để warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                uncachedDecryptLegacy(secret, v1Message);
+            }
+            long uncachedV1 = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                cipher.decrypt(v1Message);
+            }
+            long cachedV1 = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                uncachedDecryptGcm(secret, v2Message);
+            }
+            long uncachedV2 = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                cipher.decrypt(v2Message);
+            }
+            long cachedV2 = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                cipher.encrypt(message);
+            }
+            long cachedEncrypt = (System.nanoTime() - start) / iterations;
+
+            int pages = iterations / page.size();
+            start = System.nanoTime();
+            for (int i = 0; i < pages; i++) {
+                cipher.decryptAll(page);
+            }
+            long bulk = (System.nanoTime() - start) / (pages * (long) page.size());
+
+            if (round == 1) {
+                System.out.println("Short message:");
+                System.out.println("  v1 decrypt, new key + Cipher per call: " + uncachedV1 + " ns/message");
+                System.out.println("  v1 decrypt, cached per-thread Cipher:  " + cachedV1 + " ns/message");
+                System.out.println("  v2 decrypt, new key + Cipher per call: " + uncachedV2 + " ns/message");
+                System.out.println("  v2 decrypt, cached per-thread Cipher:  " + cachedV2 + " ns/message");
+                System.out.println("  v2 encrypt, cached per-thread Cipher:  " + cachedEncrypt + " ns/message");
+                System.out.println("  v2 decryptAll, 50-message page:        " + bulk + " ns/message");
+            }
+        }
+        System.out.println();
+
+        for (int size : new int[]{1024, 64 * 1024}) {
+            String plain = "x".repeat(size);
+            String v1 = cipher.encryptLegacy(plain);
+            String v2 = cipher.encrypt(plain);
+            iterations = size == 1024 ? 100_000 : 3_000;
+
+            for (int round = 0; round < 2; round++) {   // vòng đầu để warm up
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    cipher.encrypt(plain);
+                }
+                long gcmEncrypt = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    cipher.decrypt(v2);
+                }
+                long gcmDecrypt = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    cipher.decrypt(v1);
+                }
+                long ecbDecrypt = System.nanoTime() - start;
+
+                if (round == 1) {
+                    System.out.println((size / 1024) + " KB payload:");
+                    System.out.println("  v2 GCM encrypt: " + throughput(size, iterations, gcmEncrypt));
+                    System.out.println("  v2 GCM decrypt: " + throughput(size, iterations, gcmDecrypt));
+                    System.out.println("  v1 ECB decrypt: " + throughput(size, iterations, ecbDecrypt));
+                }
+            }
+        }
+
+        System.out.println("\n=== BENCHMARK COMPLETED ===");
+    }
+
+    private static String uncachedDecryptLegacy(String secret, String encryptedText) throws Exception {
+        Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(secret));
+        return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedText)), StandardCharsets.UTF_8);
+    }
+
+    private static String uncachedDecryptGcm(String secret, String encryptedText) throws Exception {
+        byte[] data = Base64.getDecoder().decode(encryptedText.substring(CURRENT_PREFIX.length()));
+        Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, deriveGcmKey(secret),
+                new GCMParameterSpec(GCM_TAG_BITS, data, 0, GCM_IV_LENGTH));
+        byte[] decrypted = cipher.doFinal(data, GCM_IV_LENGTH, data.length - GCM_IV_LENGTH);
+        return new String(decrypted, StandardCharsets.UTF_8);
+    }
+
+    private static String throughput(int size, int iterations, long nanos) {
+        double mbPerSec = (double) size * iterations / (1024 * 1024) / (nanos / 1e9);
+        return String.format("%.0f MB/s, %d ns/message", mbPerSec, nanos / iterations);
+    }
+}
@@ -4,8 +4,9 @@ import com.beantalk.model.Message;
 import com.beantalk.model.User;
 
 import java.sql.*;
-import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 // Data Access Object for Messages table
@@ -13,76 +14,250 @@ public class MessageDAO {
     // Luu message moi
     public static boolean saveMessage(int senderID, Integer receiverID, Integer groupID,
                                       String contentEncrypted, String messagetype, String filePath) {
+        Message message = new Message(senderID, receiverID, groupID, contentEncrypted, messagetype);
+        message.setFilePath(filePath);
+        return insertMessage(message);
+    }
+
+    // Luu 1 message, gan message_id do database cap vao message
+    public static boolean insertMessage(Message msg) {
         String sql = "INSERT INTO Messages (sender_id, receiver_id, group_id, content_encrypted, " +
-                     "message_type, file_path, sent_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+                     "message_type, file_path, sent_at) OUTPUT INSERTED.message_id VALUES (?, ?, ?, ?, ?, ?, ?)";
 
         try (Connection conn = DatabaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, senderID);
-            if (receiverID != null) {
-                stmt.setInt(2, receiverID);
-            } else {
-                stmt.setNull(2, Types.INTEGER);
+            setMessageParams(stmt, 1, msg);
+
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                msg.setMessageID(rs.getInt(1));
+                return true;
             }
-            if (groupID != null) {
-                stmt.setInt(3, groupID);
-            } else {
-                stmt.setNull(3, Types.INTEGER);
+            return false;
+        } catch (SQLException e) {
+            System.err.println("Error saving message: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Ghi lai 1 message sau khi batch bao loi: commit co the da thanh cong (mat ket noi luc commit),
+    // nen tim dong da co truoc khi insert de khong ghi trung. content_encrypted co nonce ngau nhien
+    // (AES-GCM) nen cung nguoi gui + cung noi dung ma hoa = cung 1 message
+    public static boolean insertMessageIfAbsent(Message msg) {
+        String sql = "SELECT TOP 1 message_id FROM Messages WHERE sender_id = ? AND sent_at >= ? AND sent_at <= ? AND " +
+                (msg.getContentEncrypted() != null ? "content_encrypted = ?" : "content_encrypted IS NULL") +
+                " ORDER BY message_id";
+
+        try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            // sent_at co the bi lam tron theo kieu cot (DATETIME ~3ms)
+            stmt.setInt(1, msg.getSenderID());
+            stmt.setTimestamp(2, Timestamp.valueOf(msg.getSentAt().minusSeconds(1)));
+            stmt.setTimestamp(3, Timestamp.valueOf(msg.getSentAt().plusSeconds(1)));
+            if (msg.getContentEncrypted() != null) {
+                stmt.setString(4, msg.getContentEncrypted());
             }
-            stmt.setString(4, contentEncrypted);
-            stmt.setString(5, messagetype);
-            stmt.setString(6, filePath);
-            stmt.setTimestamp(7, Timestamp.valueOf(LocalDateTime.now()));
 
-            return stmt.executeUpdate() > 0;
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                msg.setMessageID(rs.getInt(1));
+                return true;
+            }
         } catch (SQLException e) {
-            System.err.println("Error saving message: " + e.getMessage());
+            // khong biet dong da co hay chua - khong insert de tranh trung
+            System.err.println("Error checking saved message: " + e.getMessage());
             return false;
         }
+        return insertMessage(msg);
+    }
+
+    // So dong toi da trong 1 cau INSERT nhieu dong (7 tham so / dong, SQL Server gioi han 2100 tham so)
+    private static final int INSERT_ROWS_PER_STATEMENT = 250;
+
+    // Luu nhieu message trong 1 transaction (dung cho MessageJournal), gan message_id cho tung message.
+    // Moi cau INSERT chua toi da 250 dong: INSERT ... SELECT ... ORDER BY ord dam bao identity
+    // duoc cap theo thu tu ord, nen sap xep cac id tra ve (OUTPUT) tang dan la khop voi thu tu list
+    public static boolean saveMessages(List<Message> messages) {
+        int[] ids = new int[messages.size()];
+
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try {
+                for (int from = 0; from < messages.size(); from += INSERT_ROWS_PER_STATEMENT) {
+                    int to = Math.min(messages.size(), from + INSERT_ROWS_PER_STATEMENT);
+                    insertRows(conn, messages.subList(from, to), ids, from);
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error saving message batch: " + e.getMessage());
+            return false;
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).setMessageID(ids[i]);
+        }
+        return true;
+    }
+
+    private static void insertRows(Connection conn, List<Message> rows, int[] ids, int offset) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO Messages (sender_id, receiver_id, group_id, " +
+                "content_encrypted, message_type, file_path, sent_at) OUTPUT INSERTED.message_id " +
+                "SELECT sender_id, receiver_id, group_id, content_encrypted, message_type, file_path, sent_at " +
+                "FROM (VALUES ");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?, ").append(i).append(")");
+        }
+        sql.append(") AS v (sender_id, receiver_id, group_id, content_encrypted, message_type, file_path, sent_at, ord) " +
+                "ORDER BY ord");
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Message msg : rows) {
+                index = setMessageParams(stmt, index, msg);
+            }
+
+            ResultSet rs = stmt.executeQuery();
+            int[] inserted = new int[rows.size()];
+            int count = 0;
+            while (rs.next()) {
+                if (count == inserted.length) {
+                    throw new SQLException("Unexpected number of inserted rows");
+                }
+                inserted[count++] = rs.getInt(1);
+            }
+            if (count != inserted.length) {
+                throw new SQLException("Inserted " + count + " of " + inserted.length + " messages");
+            }
+            // Thu tu dong OUTPUT khong duoc dam bao, thu tu identity thi co
+            Arrays.sort(inserted);
+            System.arraycopy(inserted, 0, ids, offset, inserted.length);
+        }
+    }
+
+    // Gan 7 tham so (sender_id .. sent_at) bat dau tu index, tra ve index tiep theo
+    private static int setMessageParams(PreparedStatement stmt, int index, Message msg) throws SQLException {
+        stmt.setInt(index, msg.getSenderID());
+        if (msg.getReceiverID() != null) {
+            stmt.setInt(index + 1, msg.getReceiverID());
+        } else {
+            stmt.setNull(index + 1, Types.INTEGER);
+        }
+        if (msg.getGroupID() != null) {
+            stmt.setInt(index + 2, msg.getGroupID());
+        } else {
+            stmt.setNull(index + 2, Types.INTEGER);
+        }
+        stmt.setString(index + 3, msg.getContentEncrypted());
+        stmt.setString(index + 4, msg.getMessageType());
+        stmt.setString(index + 5, msg.getFilePath());
+        stmt.setTimestamp(index + 6, Timestamp.valueOf(msg.getSentAt()));
+        return index + 7;
+    }
+
+    // Lich su chat phan trang theo message_id (keyset), khong dung OFFSET / sort ca hoi thoai.
+    // Can 2 index (tao boi ensureHistoryIndexes):
+    //   IX_Messages_Conversation (sender_id, receiver_id, message_id) - moi chieu cua chat 1-1 la 1 lan seek
+    //   IX_Messages_Group        (group_id, message_id)
+    private static final String[][] HISTORY_INDEXES = {
+            {"IX_Messages_Conversation", "CREATE INDEX IX_Messages_Conversation ON Messages (sender_id, receiver_id, message_id)"},
+            {"IX_Messages_Group", "CREATE INDEX IX_Messages_Group ON Messages (group_id, message_id)"}
+    };
+
+    // tao index cho history neu chua co (goi 1 lan khi server khoi dong)
+    public static void ensureHistoryIndexes() {
+        String sql = "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = ? AND object_id = OBJECT_ID('Messages')) " +
+                "EXEC(?)";
+
+        try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (String[] index : HISTORY_INDEXES) {
+                stmt.setString(1, index[0]);
+                stmt.setString(2, index[1]);
+                stmt.execute();
+            }
+        } catch (SQLException e) {
+            System.err.println("Error creating history indexes: " + e.getMessage());
+        }
     }
 
-    // lay lich su chat giua 2 users
+    // lay lich su chat giua 2 users (trang moi nhat)
     public static List<Message> getChatHistory(int user1ID, int user2ID, int limit) {
-        String sql = "SELECT * FROM (" +
-                "    SELECT TOP (?) * FROM Messages " +
-                "    WHERE (sender_id = ? AND receiver_id = ?) OR (sender_id = ? AND receiver_id = ?) " +
-                "    ORDER BY sent_at DESC" +
-                ") AS RecentMessages " +
-                "ORDER BY sent_at ASC";
+        return getChatHistoryPage(user1ID, user2ID, null, null, limit);
+    }
+
+    // 1 trang lich su chat giua 2 users, tra ve theo thu tu message_id tang dan
+    // beforeId != null: toi da limit tin cu hon beforeId (gan beforeId nhat) - cuon len
+    // chi co afterId:   toi da limit tin moi hon afterId (gan afterId nhat) - lay phan con thieu
+    // ca 2 null:        limit tin moi nhat
+    public static List<Message> getChatHistoryPage(int user1ID, int user2ID, Integer beforeId, Integer afterId, int limit) {
+        boolean newest = beforeId != null || afterId == null;
+        String order = newest ? "DESC" : "ASC";
+        // Moi chieu (A->B, B->A) la 1 lan seek tren IX_Messages_Conversation, gop 2 nhanh roi lay TOP
+        String branch = "SELECT TOP (?) * FROM Messages " +
+                "WHERE sender_id = ? AND receiver_id = ? AND message_id < ? AND message_id > ? " +
+                "ORDER BY message_id " + order;
+        String sql = "SELECT TOP (?) * FROM (" +
+                "    SELECT * FROM (" + branch + ") AS Sent" +
+                "    UNION ALL" +
+                "    SELECT * FROM (" + branch + ") AS Received" +
+                ") AS Page ORDER BY message_id " + order;
+        int before = beforeId != null ? beforeId : Integer.MAX_VALUE;
+        int after = afterId != null ? afterId : 0;
         List<Message> messages = new ArrayList<>();
 
         try (Connection conn = DatabaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, limit);
-            stmt.setInt(2, user1ID);
-            stmt.setInt(3, user2ID);
-            stmt.setInt(4, user2ID);
-            stmt.setInt(5, user1ID);
+            int[][] directions = {{user1ID, user2ID}, {user2ID, user1ID}};
+            for (int i = 0; i < directions.length; i++) {
+                int base = 2 + i * 5;
+                stmt.setInt(base, limit);
+                stmt.setInt(base + 1, directions[i][0]);
+                stmt.setInt(base + 2, directions[i][1]);
+                stmt.setInt(base + 3, before);
+                stmt.setInt(base + 4, after);
+            }
 
             ResultSet rs = stmt.executeQuery();
-
             while (rs.next()) {
-                messages.add(new Message(
-                        rs.getInt("message_id"),
-                        rs.getInt("sender_id"),
-                        (Integer) rs.getObject("receiver_id"),
-                        (Integer) rs.getObject("group_id"),
-                        rs.getString("content_encrypted"),
-                        rs.getString("message_type"),
-                        rs.getString("file_path"),
-                        rs.getTimestamp("sent_at").toLocalDateTime()
-                ));
+                messages.add(readMessage(rs));
             }
         } catch (SQLException e) {
             System.err.println("Error getting chat history: " + e.getMessage());
         }
+        if (newest) {
+            Collections.reverse(messages);
+        }
         return messages;
     }
 
-    // lay messages cua group
+    // lay messages cua group (trang moi nhat)
     public static List<Message> getGroupMessages(int groupID, int limit) {
-        String sql = "SELECT TOP (?) * FROM Messages WHERE group_id = ? ORDER BY sent_at ASC";
+        return getGroupMessagesPage(groupID, null, null, limit);
+    }
+
+    // 1 trang messages cua group, tra ve theo thu tu message_id tang dan (beforeId / afterId nhu getChatHistoryPage),
+    // moi message da co senderUsername (1 query IN cho ca trang qua UsernameCache, khong query tung dong)
+    public static List<Message> getGroupMessagesPage(int groupID, Integer beforeId, Integer afterId, int limit) {
+        List<Message> messages = queryGroupMessagesPage(groupID, beforeId, afterId, limit);
+        UsernameCache.resolveSenders(messages);
+        return messages;
+    }
+
+    // Chi query trang messages, chua co ten nguoi gui
+    static List<Message> queryGroupMessagesPage(int groupID, Integer beforeId, Integer afterId, int limit) {
+        boolean newest = beforeId != null || afterId == null;
+        String sql = "SELECT TOP (?) * FROM Messages " +
+                "WHERE group_id = ? AND message_id < ? AND message_id > ? " +
+                "ORDER BY message_id " + (newest ? "DESC" : "ASC");
 
         List<Message> messages = new ArrayList<>();
 
@@ -91,27 +266,114 @@ public class MessageDAO {
 
             stmt.setInt(1, limit);
             stmt.setInt(2, groupID);
+            stmt.setInt(3, beforeId != null ? beforeId : Integer.MAX_VALUE);
+            stmt.setInt(4, afterId != null ? afterId : 0);
 
             ResultSet rs = stmt.executeQuery();
 
             while(rs.next()) {
-                messages.add(new Message(
-                        rs.getInt("message_id"),
-                        rs.getInt("sender_id"),
-                        (Integer) rs.getObject("receiver_id"),
-                        (Integer) rs.getObject("group_id"),
-                        rs.getString("content_encrypted"),
-                        rs.getString("message_type"),
-                        rs.getString("file_path"),
-                        rs.getTimestamp("sent_at").toLocalDateTime()
-                ));
+                messages.add(readMessage(rs));
             }
         } catch (SQLException e) {
             System.err.println("Error getting group messages: " + e.getMessage());
         }
+        if (newest) {
+            Collections.reverse(messages);
+        }
         return messages;
     }
 
+    private static Message readMessage(ResultSet rs) throws SQLException {
+        return new Message(
+                rs.getInt("message_id"),
+                rs.getInt("sender_id"),
+                (Integer) rs.getObject("receiver_id"),
+                (Integer) rs.getObject("group_id"),
+                rs.getString("content_encrypted"),
+                rs.getString("message_type"),
+                rs.getString("file_path"),
+                rs.getTimestamp("sent_at").toLocalDateTime()
+        );
+    }
+
+    // kiem tra user co duoc xem file khong: la nguoi gui / nguoi nhan, hoac la member cua group
+    public static boolean canAccessFile(int userID, String filePath) {
+        String sql = "SELECT TOP 1 1 FROM Messages " +
+                "WHERE file_path = ? AND (sender_id = ? OR receiver_id = ? " +
+                "    OR group_id IN (SELECT group_id FROM GroupMembers WHERE user_id = ?))";
+
+        try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, filePath);
+            stmt.setInt(2, userID);
+            stmt.setInt(3, userID);
+            stmt.setInt(4, userID);
+
+            ResultSet rs = stmt.executeQuery();
+            return rs.next();
+        } catch (SQLException e) {
+            System.err.println("Error checking file access: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // lay cac dong con ma hoa kieu cu (content_encrypted khong co prefix "vN:") sau afterId, theo thu tu message_id
+    public static List<Message> getLegacyEncrypted(int afterId, int limit) {
+        String sql = "SELECT TOP (?) * FROM Messages " +
+                "WHERE message_id > ? AND content_encrypted IS NOT NULL AND CHARINDEX(':', content_encrypted) = 0 " +
+                "ORDER BY message_id";
+        List<Message> messages = new ArrayList<>();
+
+        try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, limit);
+            stmt.setInt(2, afterId);
+
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                messages.add(readMessage(rs));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error getting legacy encrypted messages: " + e.getMessage());
+        }
+        return messages;
+    }
+
+    // ghi lai content_encrypted moi cho 1 batch; chi cap nhat dong van con gia tri cu (oldValues)
+    // tra ve so dong da cap nhat, -1 neu loi
+    public static int updateEncryptedContents(List<Message> messages, List<String> oldValues) {
+        String sql = "UPDATE Messages SET content_encrypted = ? WHERE message_id = ? AND content_encrypted = ?";
+
+        try (Connection conn = DatabaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < messages.size(); i++) {
+                    stmt.setString(1, messages.get(i).getContentEncrypted());
+                    stmt.setInt(2, messages.get(i).getMessageID());
+                    stmt.setString(3, oldValues.get(i));
+                    stmt.addBatch();
+                }
+                int updated = 0;
+                for (int count : stmt.executeBatch()) {
+                    if (count > 0) {
+                        updated += count;
+                    }
+                }
+                conn.commit();
+                return updated;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error updating encrypted messages: " + e.getMessage());
+            return -1;
+        }
+    }
+
     // test DAO
     public static void main(String[] args) {
         System.out.println("=== MESSAGE DAO TEST ===\n");
@@ -135,7 +397,14 @@ public class MessageDAO {
 
         for (Message msg : history) {
             String decrypted = SecurityUtil.decryptMessage(msg.getContentEncrypted());
-            System.out.println("  - Message: " + decrypted);
+            System.out.println("  - #" + msg.getMessageID() + ": " + decrypted);
+        }
+
+        // Test 3: Trang cu hon (cursor = tin cu nhat cua trang truoc)
+        if (!history.isEmpty()) {
+            System.out.println("\n3. Testing older page before #" + history.get(0).getMessageID() + "...");
+            List<Message> older = getChatHistoryPage(senderId, receiverId, history.get(0).getMessageID(), null, 10);
+            System.out.println("Found " + older.size() + " older messages");
         }
 
         System.out.println("\n=== TEST COMPLETED ===");
@@ -0,0 +1,412 @@
+package com.beantalk.util;
+
+import com.beantalk.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind journal cho bảng Messages.
+ * Tin nhắn được đưa vào hàng đợi vòng (bounded), thread flusher ghi xuống database
+ * theo batch JDBC khi đủ batchSize hoặc hết flushIntervalMs.
+ *
+ * Hàng đợi đầy thì save() chờ tới khi có chỗ (backpressure) chứ không ghi thẳng xuống database:
+ * message_id phải được cấp theo đúng thứ tự tin nhắn được gửi đi (cursor phân trang / sync dựa vào đó).
+ *
+ * Durability:
+ *   enqueue - save() trả về ngay khi đã vào hàng đợi
+ *   flush   - save() chờ tới khi batch chứa tin nhắn được commit (group commit)
+ *
+ * onSaved (nếu có) được gọi sau khi tin nhắn đã commit, message đã có message_id;
+ * flushPending() chỉ trả về sau khi các onSaved của tin nhắn trước đó đã chạy xong.
+ * flushPendingChat / flushPendingGroup chỉ chờ khi chính hội thoại đó còn tin chưa ghi.
+ */
+public class MessageJournal {
+    private static final boolean ENABLED = ConfigUtil.getBoolean("message.journal.enabled", true);
+    private static final int CAPACITY = ConfigUtil.getInt("message.journal.capacity", 8192);
+    private static final int BATCH_SIZE = ConfigUtil.getInt("message.journal.batchSize", 200);
+    private static final long FLUSH_INTERVAL_MS = ConfigUtil.getLong("message.journal.flushIntervalMs", 50);
+    private static final long ENQUEUE_TIMEOUT_MS = ConfigUtil.getLong("message.journal.enqueueTimeoutMs", 100);
+    private static final boolean ACK_AFTER_FLUSH =
+            ConfigUtil.get("message.journal.durability", "enqueue").equalsIgnoreCase("flush");
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(Math.max(1, CAPACITY));
+    // Số tin nhắn đã nhận nhưng chưa ghi xong xuống database
+    private static final AtomicInteger pending = new AtomicInteger();
+    // Số tin chưa ghi xong theo hội thoại (key: conversationKey), không có key = 0
+    private static final Map<String, Integer> pendingByConversation = new ConcurrentHashMap<>();
+    private static volatile boolean running = true;
+    // save() / flushPending() giữ read lock khi kiểm tra running và đưa vào hàng đợi, shutdown() giữ
+    // write lock khi tắt running: không entry nào vào hàng đợi sau khi flusher đã có thể dừng
+    private static final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private static Thread flusher;
+
+    // Metrics
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder flushedMessages = new LongAdder();
+    private static final LongAdder failedMessages = new LongAdder();
+    private static final LongAdder backpressureWaits = new LongAdder();
+    // Ghi trực tiếp vì journal đã dừng (server đang tắt)
+    private static final LongAdder syncFallbacks = new LongAdder();
+    private static final LongAdder flushNanos = new LongAdder();
+    private static final AtomicLong maxFlushNanos = new AtomicLong();
+    private static final AtomicLong maxBatchSize = new AtomicLong();
+
+    static {
+        if (ENABLED) {
+            flusher = new Thread(MessageJournal::runFlusher, "message-journal");
+            flusher.setDaemon(true);
+            flusher.start();
+            // Ghi nốt hàng đợi khi server tắt
+            Runtime.getRuntime().addShutdownHook(new Thread(MessageJournal::shutdown, "message-journal-shutdown"));
+            System.out.println("Message journal: capacity=" + CAPACITY + ", batch=" + BATCH_SIZE
+                    + ", interval=" + FLUSH_INTERVAL_MS + "ms, durability=" + (ACK_AFTER_FLUSH ? "flush" : "enqueue"));
+        }
+    }
+
+    /**
+     * 1 phần tử trong hàng đợi; message == null là barrier dùng cho flushPending()
+     */
+    private static class Entry {
+        final Message message;
+        final CompletableFuture<Boolean> done;
+        final Consumer<Message> onSaved;
+
+        Entry(Message message, CompletableFuture<Boolean> done, Consumer<Message> onSaved) {
+            this.message = message;
+            this.done = done;
+            this.onSaved = onSaved;
+        }
+    }
+
+    /**
+     * Lưu tin nhắn - cùng tham số với MessageDAO.saveMessage
+     */
+    public static boolean save(int senderID, Integer receiverID, Integer groupID,
+                               String contentEncrypted, String messageType, String filePath) {
+        return save(senderID, receiverID, groupID, contentEncrypted, messageType, filePath, null);
+    }
+
+    /**
+     * Lưu tin nhắn, gọi onSaved (trên thread ghi) sau khi đã commit
+     */
+    public static boolean save(int senderID, Integer receiverID, Integer groupID,
+                               String contentEncrypted, String messageType, String filePath,
+                               Consumer<Message> onSaved) {
+        Message message = new Message(senderID, receiverID, groupID, contentEncrypted, messageType);
+        message.setFilePath(filePath);
+        if (!ENABLED) {
+            return saveNow(message, onSaved);
+        }
+
+        Entry entry = new Entry(message, ACK_AFTER_FLUSH ? new CompletableFuture<>() : null, onSaved);
+        boolean queued;
+        lifecycle.readLock().lock();
+        try {
+            queued = running;
+            if (queued) {
+                pending.incrementAndGet();
+                pendingByConversation.merge(conversationKey(message), 1, Integer::sum);
+                enqueue(entry);
+            }
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        if (!queued) {
+            // Journal đã dừng - flusher đã ghi hết hàng đợi nên ghi trực tiếp vẫn đúng thứ tự
+            syncFallbacks.increment();
+            return saveNow(message, onSaved);
+        }
+
+        if (entry.done != null) {
+            return entry.done.join();
+        }
+        return true;
+    }
+
+    private static String conversationKey(Message message) {
+        if (message.getGroupID() != null) {
+            return "g:" + message.getGroupID();
+        }
+        int receiverID = message.getReceiverID() != null ? message.getReceiverID() : 0;
+        return chatKey(message.getSenderID(), receiverID);
+    }
+
+    private static String chatKey(int userID1, int userID2) {
+        return "u:" + Math.min(userID1, userID2) + ":" + Math.max(userID1, userID2);
+    }
+
+    private static boolean saveNow(Message message, Consumer<Message> onSaved) {
+        boolean saved = MessageDAO.insertMessage(message);
+        if (saved) {
+            notifySaved(message, onSaved);
+        }
+        return saved;
+    }
+
+    private static void notifySaved(Message message, Consumer<Message> onSaved) {
+        if (onSaved == null) {
+            return;
+        }
+        try {
+            onSaved.accept(message);
+        } catch (Exception e) {
+            System.err.println("Message journal: onSaved callback failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chờ tới khi mọi tin nhắn đã nhận trước thời điểm gọi được ghi xuống database
+     * (gọi trước khi đọc lịch sử chat)
+     */
+    public static void flushPending() {
+        if (!ENABLED || pending.get() == 0) {
+            return;
+        }
+        awaitBarrier();
+    }
+
+    /**
+     * Như flushPending() nhưng chỉ chờ nếu chat 1-1 giữa 2 user còn tin chưa ghi
+     * (mở chat không phải chờ batch của các hội thoại khác)
+     */
+    public static void flushPendingChat(int userID1, int userID2) {
+        if (ENABLED && pendingByConversation.containsKey(chatKey(userID1, userID2))) {
+            awaitBarrier();
+        }
+    }
+
+    public static void flushPendingGroup(int groupID) {
+        if (ENABLED && pendingByConversation.containsKey("g:" + groupID)) {
+            awaitBarrier();
+        }
+    }
+
+    public static boolean hasPending() {
+        return ENABLED && pending.get() > 0;
+    }
+
+    private static void awaitBarrier() {
+        Entry barrier = new Entry(null, new CompletableFuture<>(), null);
+        try {
+            boolean queued;
+            lifecycle.readLock().lock();
+            try {
+                queued = running && queue.offer(barrier, ENQUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } finally {
+                lifecycle.readLock().unlock();
+            }
+            if (queued) {
+                barrier.done.get(FLUSH_INTERVAL_MS + 5000, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException | ExecutionException e) {
+            System.err.println("Timed out waiting for message journal flush");
+        }
+    }
+
+    /**
+     * Đưa vào hàng đợi, đầy thì chờ flusher (không ghi vượt lên trước các tin đang chờ).
+     * Gọi khi giữ read lock của lifecycle - flusher vẫn chạy nên luôn có chỗ trống.
+     */
+    private static void enqueue(Entry entry) {
+        if (queue.offer(entry)) {
+            return;
+        }
+        backpressureWaits.increment();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(entry);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ============ FLUSHER ============
+
+    private static void runFlusher() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Gom thêm cho tới khi đủ batch, hết thời gian, hoặc gặp barrier
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                boolean barrier = first.message == null;
+                while (!barrier && batch.size() < BATCH_SIZE) {
+                    int from = batch.size();
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    for (int i = from; i < batch.size(); i++) {
+                        if (batch.get(i).message == null) {
+                            barrier = true;
+                        }
+                    }
+                    if (barrier || batch.size() >= BATCH_SIZE) {
+                        break;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    barrier = next.message == null;
+                }
+            } catch (InterruptedException e) {
+                // shutdown() - vẫn flush nốt phần đã gom
+            }
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private static void flush(List<Entry> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            if (entry.message != null) {
+                messages.add(entry.message);
+            }
+        }
+
+        boolean ok = true;
+        if (!messages.isEmpty()) {
+            long start = System.nanoTime();
+            ok = MessageDAO.saveMessages(messages);
+            long elapsed = System.nanoTime() - start;
+
+            batches.increment();
+            flushNanos.add(elapsed);
+            maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+            maxBatchSize.accumulateAndGet(messages.size(), Math::max);
+        }
+
+        for (Entry entry : batch) {
+            boolean saved = ok;
+            if (!ok && entry.message != null) {
+                // Batch lỗi - thử từng tin nhắn để 1 dòng hỏng không làm mất cả batch. Commit có thể
+                // đã thành công dù driver báo lỗi, nên dòng đã có thì chỉ lấy lại message_id
+                saved = MessageDAO.insertMessageIfAbsent(entry.message);
+            }
+            if (entry.message != null) {
+                if (saved) {
+                    flushedMessages.increment();
+                    notifySaved(entry.message, entry.onSaved);
+                } else {
+                    failedMessages.increment();
+                    System.err.println("❌ Message journal: failed to save message from user " + entry.message.getSenderID());
+                }
+            }
+            if (entry.message != null) {
+                pendingByConversation.computeIfPresent(conversationKey(entry.message),
+                        (key, count) -> count == 1 ? null : count - 1);
+            }
+            if (entry.done != null) {
+                entry.done.complete(saved);
+            }
+        }
+        pending.addAndGet(-messages.size());
+    }
+
+    /**
+     * Dừng nhận tin nhắn mới và ghi nốt hàng đợi
+     */
+    public static void shutdown() {
+        lifecycle.writeLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            // Sau dòng này không còn entry mới - flusher ghi hết hàng đợi rồi dừng
+            running = false;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join(FLUSH_INTERVAL_MS + 10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ============ METRICS ============
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static long getQueueDepth() {
+        return queue.size();
+    }
+
+    public static long getBatchCount() {
+        return batches.sum();
+    }
+
+    public static long getFlushedCount() {
+        return flushedMessages.sum();
+    }
+
+    public static long getFailedCount() {
+        return failedMessages.sum();
+    }
+
+    public static long getBackpressureCount() {
+        return backpressureWaits.sum();
+    }
+
+    public static long getSyncFallbackCount() {
+        return syncFallbacks.sum();
+    }
+
+    public static long getAvgBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (flushedMessages.sum() + failedMessages.sum()) / count;
+    }
+
+    public static long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    public static long getAvgFlushMicros() {
+        long count = batches.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(flushNanos.sum() / count);
+    }
+
+    public static long getMaxFlushMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get());
+    }
+}
@@ -0,0 +1,180 @@
+package com.beantalk.util;
+
+import com.beantalk.model.Message;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Job nền chuyển content_encrypted của bảng Messages từ AES/ECB cũ sang định dạng hiện tại
+ * (xem MessageCipher). Chạy theo batch, nghỉ pauseMs giữa 2 batch để không tranh
+ * connection pool / database với tin nhắn thật.
+ *
+ * UPDATE có điều kiện content_encrypted vẫn là giá trị cũ nên chạy song song với server
+ * (hoặc chạy lại sau khi bị dừng giữa chừng) đều an toàn.
+ *
+ * Tin mới luôn được ghi bằng định dạng hiện tại, nên khi 1 lượt quét hết bảng không còn dòng cũ
+ * (và không có dòng lỗi) thì ghi file doneFile; các lần khởi động sau không quét lại cả bảng.
+ * Xóa file này nếu khôi phục database từ bản sao lưu cũ.
+ */
+public class MessageReencryptor {
+    private static final boolean ENABLED = ConfigUtil.getBoolean("crypto.reencrypt.enabled", true);
+    private static final int BATCH_SIZE = ConfigUtil.getInt("crypto.reencrypt.batchSize", 200);
+    private static final long PAUSE_MS = ConfigUtil.getLong("crypto.reencrypt.pauseMs", 500);
+    // Đánh dấu đã chuyển xong (trống = luôn quét lại khi khởi động)
+    private static final String DONE_FILE = ConfigUtil.get("crypto.reencrypt.doneFile", "data/reencrypt.done");
+
+    private static volatile boolean running = false;
+    private static volatile boolean finished = false;
+    private static Thread worker;
+
+    // Metrics
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder migrated = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+
+    /**
+     * Bắt đầu job (không làm gì nếu đã tắt trong config hoặc đang chạy)
+     */
+    public static synchronized void start() {
+        if (!ENABLED || running) {
+            return;
+        }
+        if (!DONE_FILE.isEmpty() && Files.exists(Path.of(DONE_FILE))) {
+            finished = true;
+            System.out.println("Message re-encryption: already finished (" + DONE_FILE + ")");
+            return;
+        }
+        running = true;
+        worker = new Thread(MessageReencryptor::run, "message-reencrypt");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        System.out.println("Message re-encryption: batch=" + BATCH_SIZE + ", pause=" + PAUSE_MS + "ms");
+    }
+
+    /**
+     * Dừng job sau batch hiện tại
+     */
+    public static synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    private static void run() {
+        int lastId = 0;
+        long start = System.currentTimeMillis();
+
+        while (running) {
+            List<Message> batch = MessageDAO.getLegacyEncrypted(lastId, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                finished = true;
+                System.out.println("🔐 Message re-encryption finished: " + migrated.sum() + " migrated, "
+                        + failed.sum() + " failed in " + (System.currentTimeMillis() - start) + "ms");
+                if (failed.sum() == 0) {
+                    markDone();
+                }
+                break;
+            }
+            lastId = batch.get(batch.size() - 1).getMessageID();
+            migrate(batch);
+
+            try {
+                Thread.sleep(PAUSE_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        running = false;
+    }
+
+    /**
+     * Ghi file doneFile - dòng lỗi (chưa chuyển được) thì không ghi để lần khởi động sau thử lại
+     */
+    private static void markDone() {
+        if (DONE_FILE.isEmpty()) {
+            return;
+        }
+        Path file = Path.of(DONE_FILE).toAbsolutePath();
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, "finished " + Instant.now() + ", migrated " + migrated.sum() + "\n",
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void migrate(List<Message> batch) {
+        List<String> oldValues = new ArrayList<>(batch.size());
+        for (Message msg : batch) {
+            oldValues.add(msg.getContentEncrypted());
+        }
+        List<String> plainTexts = SecurityUtil.decryptAll(oldValues);
+
+        List<Message> updates = new ArrayList<>(batch.size());
+        List<String> updateOldValues = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            String encrypted = plainTexts.get(i) == null ? null : SecurityUtil.encryptMessage(plainTexts.get(i));
+            if (encrypted == null) {
+                // Dòng không giải mã được (key sai / dữ liệu hỏng) - để nguyên, job lần sau sẽ bỏ qua vì lastId
+                failed.increment();
+                continue;
+            }
+            Message msg = batch.get(i);
+            msg.setContentEncrypted(encrypted);
+            updates.add(msg);
+            updateOldValues.add(oldValues.get(i));
+        }
+
+        if (!updates.isEmpty()) {
+            int updated = MessageDAO.updateEncryptedContents(updates, updateOldValues);
+            if (updated < 0) {
+                failed.add(updates.size());
+            } else {
+                migrated.add(updated);
+            }
+        }
+        batches.increment();
+    }
+
+    // ============ METRICS ============
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static boolean isFinished() {
+        return finished;
+    }
+
+    public static long getBatchCount() {
+        return batches.sum();
+    }
+
+    public static long getMigratedCount() {
+        return migrated.sum();
+    }
+
+    public static long getFailedCount() {
+        return failed.sum();
+    }
+
+    // chạy riêng (không cần bật server): migrate toàn bộ bảng rồi thoát
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== MESSAGE RE-ENCRYPTION ===\n");
+        running = true;
+        run();
+        System.out.println("Batches: " + getBatchCount() + ", migrated: " + getMigratedCount()
+                + ", failed: " + getFailedCount());
+    }
+}
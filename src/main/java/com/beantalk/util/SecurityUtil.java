@@ -2,12 +2,9 @@ package com.beantalk.util;
 
 import org.mindrot.jbcrypt.BCrypt;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -15,10 +12,15 @@ import java.util.Properties;
  */
 public class SecurityUtil {
     private static String AES_SECRET_KEY;
+    // Key + Cipher tạo 1 lần, dùng lại cho mọi tin nhắn (xem MessageCipher)
+    private static MessageCipher MESSAGE_CIPHER;
 
     // Load AES key from config
     static {
         loadConfig();
+        if (AES_SECRET_KEY != null) {
+            MESSAGE_CIPHER = new MessageCipher(AES_SECRET_KEY);
+        }
     }
 
     private static void loadConfig() {
@@ -63,22 +65,11 @@ public class SecurityUtil {
     // ============ AES-256 - Message Encryption ============
 
     /**
-     * Encrypt message using AES
+     * Encrypt message using AES-GCM (định dạng v2, xem MessageCipher)
      */
     public static String encryptMessage(String plainText) {
         try {
-            // Create key from secret (take first 32 bytes for AES-256)
-            byte[] keyBytes = AES_SECRET_KEY.getBytes(StandardCharsets.UTF_8);
-            byte[] key = new byte[32];
-            System.arraycopy(keyBytes, 0, key, 0, Math.min(keyBytes.length, 32));
-
-            SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-
-            byte[] encrypted = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-            return Base64.getEncoder().encodeToString(encrypted);
-
+            return MESSAGE_CIPHER.encrypt(plainText);
         } catch (Exception e) {
             System.err.println("ERROR: Encryption failed - " + e.getMessage());
             return null;
@@ -86,27 +77,30 @@ public class SecurityUtil {
     }
 
     /**
-     * Decrypt message using AES
+     * Decrypt message - đọc được cả dòng AES/ECB cũ lẫn AES-GCM
      */
     public static String decryptMessage(String encryptedText) {
         try {
-            byte[] keyBytes = AES_SECRET_KEY.getBytes(StandardCharsets.UTF_8);
-            byte[] key = new byte[32];
-            System.arraycopy(keyBytes, 0, key, 0, Math.min(keyBytes.length, 32));
-
-            SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
-
-            byte[] decrypted = cipher.doFinal(Base64.getDecoder().decode(encryptedText));
-            return new String(decrypted, StandardCharsets.UTF_8);
-
+            return MESSAGE_CIPHER.decrypt(encryptedText);
         } catch (Exception e) {
             System.err.println("ERROR: Decryption failed - " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Decrypt cả trang lịch sử 1 lần - kết quả cùng thứ tự, phần tử null/lỗi -> null
+     */
+    public static List<String> decryptAll(List<String> encryptedTexts) {
+        List<String> decrypted = MESSAGE_CIPHER.decryptAll(encryptedTexts);
+        for (int i = 0; i < decrypted.size(); i++) {
+            if (decrypted.get(i) == null && encryptedTexts.get(i) != null) {
+                System.err.println("ERROR: Decryption failed - message #" + i + " of page");
+            }
+        }
+        return decrypted;
+    }
+
     // ============ TEST ============
 
     public static void main(String[] args) {
@@ -133,6 +127,12 @@ public class SecurityUtil {
         System.out.println("Decrypted: " + decrypted);
         System.out.println("Match: " + message.equals(decrypted));
 
+        // Test 3: Decrypt cả trang
+        System.out.println("\n3. AES Bulk Decryption:");
+        System.out.println("---------------------------");
+        List<String> page = java.util.Arrays.asList(encrypted, null, "not-base64!", encryptMessage("Second"));
+        System.out.println("Decrypted page: " + decryptAll(page));
+
         System.out.println("\n=== ALL TESTS COMPLETED ===");
     }
 }
\ No newline at end of file
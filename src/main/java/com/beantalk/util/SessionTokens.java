@@ -0,0 +1,430 @@
+package com.beantalk.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session token cấp khi LOGIN_SUCCESS - client gửi lại (RESUME) khi kết nối lại
+ * thay vì username + password, server chỉ cần kiểm tra HMAC thay cho BCrypt.
+ *
+ * Định dạng: base64url(userID:expiresAt:tokenId:username) + "." + base64url(HMAC-SHA256)
+ * Không lưu gì trên server ngoài danh sách token đã thu hồi (LOGOUT) hoặc đã dùng (RESUME),
+ * nên token vẫn dùng được sau khi server khởi động lại. Danh sách thu hồi được ghi nối vào
+ * session.revokedFile và đọc lại khi khởi động - token đã đăng xuất / đã dùng không sống lại
+ * sau restart. Token hết hạn được dọn khỏi danh sách (và file) tối đa 1 lần / phút.
+ */
+public class SessionTokens {
+    private static final long TTL_MS = TimeUnit.HOURS.toMillis(ConfigUtil.getLong("session.ttlHours", 24));
+    // Để trống = chỉ giữ trong bộ nhớ
+    private static final String REVOKED_FILE = ConfigUtil.get("session.revokedFile", "data/revoked-tokens.log");
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final String SECRET_FILE = ConfigUtil.get("session.secretFile", "data/session-secret.key");
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final SecretKeySpec KEY = loadKey();
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(SessionTokens::newMac);
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    // tokenId -> hạn của token, để dọn khi token hết hạn
+    private static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private static final AtomicLong nextSweepAt = new AtomicLong();
+    // File thu hồi (ghi nối, ghi lại khi dọn) - chỉ truy cập khi giữ fileLock
+    private static final Object fileLock = new Object();
+    private static Writer revokedLog;
+
+    // Metrics
+    private static final LongAdder issued = new LongAdder();
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    static {
+        loadRevoked();
+    }
+
+    /**
+     * Thông tin trong 1 token hợp lệ
+     */
+    public static class Session {
+        public final int userID;
+        public final String username;
+        public final long expiresAt;
+        final String tokenId;
+
+        Session(int userID, String username, long expiresAt, String tokenId) {
+            this.userID = userID;
+            this.username = username;
+            this.expiresAt = expiresAt;
+            this.tokenId = tokenId;
+        }
+    }
+
+    /**
+     * Key HMAC: session.secret, để trống thì đọc từ session.secretFile (lần chạy đầu tạo
+     * 32 byte ngẫu nhiên, chỉ chủ sở hữu đọc được). Không suy ra từ cấu hình có trong repo -
+     * ai có key đó đều ký được token cho user bất kỳ. Key phải cố định giữa các lần chạy
+     * để token còn dùng được sau khi restart.
+     */
+    private static SecretKeySpec loadKey() {
+        String secret = ConfigUtil.get("session.secret", "");
+        byte[] key;
+        if (!secret.isEmpty()) {
+            try {
+                key = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        } else {
+            key = loadOrCreateSecretFile();
+        }
+        return new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    private static byte[] loadOrCreateSecretFile() {
+        if (!SECRET_FILE.isEmpty()) {
+            Path file = Path.of(SECRET_FILE);
+            try {
+                if (Files.exists(file)) {
+                    byte[] key = Base64.getDecoder().decode(Files.readString(file, StandardCharsets.US_ASCII).trim());
+                    if (key.length >= 32) {
+                        return key;
+                    }
+                    System.err.println("Session secret in " + file + " is too short, generating a new one");
+                }
+                byte[] key = new byte[32];
+                random.nextBytes(key);
+                writeSecretFile(file, Base64.getEncoder().encodeToString(key));
+                return key;
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Cannot use session secret file " + file + ": " + e.getMessage());
+            }
+        }
+        // Không lưu được - key chỉ sống trong lần chạy này (token mất hiệu lực khi restart)
+        System.err.println("⚠️ Session tokens use a temporary secret (set session.secret to keep them across restarts)");
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Ghi file tạm (rw-------) rồi rename, để không bao giờ có file secret ghi dở
+     */
+    private static void writeSecretFile(Path file, String content) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(temp);
+        }
+        Files.writeString(temp, content + "\n", StandardCharsets.US_ASCII);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(KEY);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize HmacSHA256", e);
+        }
+    }
+
+    /**
+     * Cấp token mới cho user vừa đăng nhập
+     */
+    public static String issue(int userID, String username) {
+        byte[] id = new byte[12];
+        random.nextBytes(id);
+        long expiresAt = System.currentTimeMillis() + TTL_MS;
+
+        String payload = userID + ":" + expiresAt + ":" + encoder.encodeToString(id) + ":" + username;
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        issued.increment();
+        return encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(macs.get().doFinal(payloadBytes));
+    }
+
+    /**
+     * Kiểm tra chữ ký, hạn và danh sách thu hồi; trả về null nếu token không dùng được
+     */
+    public static Session verify(String token) {
+        Session session = parse(token);
+        if (session == null || session.expiresAt < System.currentTimeMillis()
+                || revoked.containsKey(session.tokenId)) {
+            rejected.increment();
+            return null;
+        }
+        accepted.increment();
+        return session;
+    }
+
+    /**
+     * Kiểm tra và thu hồi token trong 1 bước (RESUME - token chỉ dùng 1 lần):
+     * 2 RESUME cùng token chạy song song thì chỉ 1 cái nhận được Session
+     */
+    public static Session consume(String token) {
+        Session session = parse(token);
+        long now = System.currentTimeMillis();
+        if (session == null || session.expiresAt < now
+                || revoked.putIfAbsent(session.tokenId, session.expiresAt) != null) {
+            rejected.increment();
+            return null;
+        }
+        record(session);
+        sweepIfDue(now);
+        accepted.increment();
+        return session;
+    }
+
+    /**
+     * Thu hồi token (LOGOUT); token sai định dạng / sai chữ ký thì bỏ qua
+     */
+    public static void revoke(String token) {
+        Session session = parse(token);
+        if (session == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (session.expiresAt >= now && revoked.putIfAbsent(session.tokenId, session.expiresAt) == null) {
+            record(session);
+        }
+        sweepIfDue(now);
+    }
+
+    /**
+     * Dọn token đã hết hạn khỏi danh sách thu hồi, tối đa 1 lần mỗi SWEEP_INTERVAL_MS
+     * (không quét cả danh sách ở mỗi lần RESUME / LOGOUT)
+     */
+    private static void sweepIfDue(long now) {
+        long due = nextSweepAt.get();
+        if (now < due || !nextSweepAt.compareAndSet(due, now + SWEEP_INTERVAL_MS)) {
+            return;
+        }
+        revoked.values().removeIf(expiresAt -> expiresAt < now);
+        synchronized (fileLock) {
+            rewriteRevokedFile();
+        }
+    }
+
+    // ============ FILE THU HỒI ============
+
+    /**
+     * Đọc danh sách thu hồi còn hạn từ lần chạy trước, ghi lại file chỉ với các token đó
+     */
+    private static void loadRevoked() {
+        if (REVOKED_FILE.isEmpty()) {
+            return;
+        }
+        Path file = Path.of(REVOKED_FILE);
+        long now = System.currentTimeMillis();
+        if (Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0) {
+                        continue;   // dòng ghi dở
+                    }
+                    try {
+                        long expiresAt = Long.parseLong(line.substring(space + 1).trim());
+                        if (expiresAt >= now) {
+                            revoked.put(line.substring(0, space), expiresAt);
+                        }
+                    } catch (NumberFormatException e) {
+                        // dòng ghi dở
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot read revoked session tokens: " + e.getMessage());
+            }
+        }
+        synchronized (fileLock) {
+            rewriteRevokedFile();
+        }
+        nextSweepAt.set(now + SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * Ghi nối 1 token vừa thu hồi (không fsync - mất điện có thể mất vài dòng cuối)
+     */
+    private static void record(Session session) {
+        synchronized (fileLock) {
+            if (revokedLog == null) {
+                return;
+            }
+            try {
+                revokedLog.write(session.tokenId + " " + session.expiresAt + "\n");
+                revokedLog.flush();
+            } catch (IOException e) {
+                System.err.println("Cannot record revoked session token: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ghi lại file với các token còn trong danh sách rồi mở lại để ghi nối (gọi khi giữ fileLock).
+     * Token được thêm vào map trong lúc ghi sẽ được record() ghi nối sau đó.
+     */
+    private static void rewriteRevokedFile() {
+        if (REVOKED_FILE.isEmpty()) {
+            return;
+        }
+        Path file = Path.of(REVOKED_FILE).toAbsolutePath();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (revokedLog != null) {
+                revokedLog.close();
+                revokedLog = null;
+            }
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : revoked.entrySet()) {
+                    writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            revokedLog = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Cannot write revoked session tokens: " + e.getMessage());
+        }
+    }
+
+    private static Session parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        try {
+            byte[] payloadBytes = decoder.decode(token.substring(0, dot));
+            byte[] signature = decoder.decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, macs.get().doFinal(payloadBytes))) {
+                return null;
+            }
+
+            String[] parts = new String(payloadBytes, StandardCharsets.UTF_8).split(":", 4);
+            if (parts.length != 4) {
+                return null;
+            }
+            return new Session(Integer.parseInt(parts[0]), parts[3], Long.parseLong(parts[1]), parts[2]);
+        } catch (IllegalArgumentException e) {
+            // base64 hoặc số không hợp lệ
+            return null;
+        }
+    }
+
+    // ============ METRICS ============
+
+    public static long getIssuedCount() {
+        return issued.sum();
+    }
+
+    public static long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public static long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public static long getRevokedCount() {
+        return revoked.size();
+    }
+
+    // test + benchmark: chi phí RESUME bằng token so với đăng nhập lại bằng BCrypt
+    public static void main(String[] args) {
+        System.out.println("=== SESSION TOKENS TEST ===\n");
+
+        String token = issue(42, "alice:smith");
+        Session session = verify(token);
+        System.out.println("Token: " + token);
+        System.out.println("Valid: " + (session != null) + " -> " + session.userID + " / " + session.username);
+
+        char[] forged = token.toCharArray();
+        forged[3] = forged[3] == 'A' ? 'B' : 'A';
+        System.out.println("Forged rejected: " + (verify(new String(forged)) == null));
+        System.out.println("Garbage rejected: " + (verify("not.a-token!") == null));
+        revoke(token);
+        System.out.println("Revoked rejected: " + (verify(token) == null));
+
+        // 8 RESUME cùng 1 token chạy song song: chỉ 1 cái thành công
+        String resume = issue(7, "bob");
+        AtomicInteger succeeded = new AtomicInteger();
+        CountDownLatch startGate = new CountDownLatch(1);
+        List<Thread> racers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            racers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    startGate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (consume(resume) != null) {
+                    succeeded.incrementAndGet();
+                }
+            }));
+        }
+        startGate.countDown();
+        for (Thread racer : racers) {
+            try {
+                racer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Concurrent consume: " + succeeded.get() + " of 8 succeeded");
+        System.out.println("Revoked file: " + (REVOKED_FILE.isEmpty() ? "(memory only)"
+                : Path.of(REVOKED_FILE).toAbsolutePath()) + ", " + getRevokedCount() + " tokens");
+
+        String hash = SecurityUtil.hashPassword("password");
+        int iterations = 100_000;
+        String fresh = issue(42, "alice");
+        for (int round = 0; round < 2; round++) {   // vòng đầu để warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                verify(fresh);
+            }
+            long tokenNanos = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                SecurityUtil.verifyPassword("password", hash);
+            }
+            long bcryptNanos = (System.nanoTime() - start) / 5;
+
+            if (round == 1) {
+                System.out.println("\nverify token:        " + tokenNanos + " ns");
+                System.out.println("verify BCrypt (10):  " + TimeUnit.NANOSECONDS.toMicros(bcryptNanos) + " us");
+            }
+        }
+
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+}
@@ -0,0 +1,372 @@
+package com.beantalk.util;
+
+import com.beantalk.model.User;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache User trên server theo username và theo id, dùng chung cho mọi kết nối
+ * (tin nhắn riêng, file riêng, GET_CHAT_HISTORY, tạo group... đều tra user theo username).
+ *
+ *   - Giới hạn maxEntries, bỏ user ít được dùng nhất (LRU) khi đầy
+ *   - Mỗi entry hết hạn sau ttlSeconds, entry "không tồn tại" (username sai) sau negativeTtlSeconds
+ *   - UserDAO invalidate khi đăng ký (xóa entry không tồn tại); cập nhật last_seen thì thay
+ *     User trong cache bằng bản mới chứ không bỏ entry (đăng nhập không làm mất cache)
+ *
+ * Invalidate để lại tombstone cho đúng key / userId đó: kết quả load bắt đầu trước tombstone
+ * sẽ không được đưa vào cache, còn load của user khác không bị ảnh hưởng. Tombstone được giữ
+ * TOMBSTONE_SECONDS; load chạy lâu hơn thế thì không được cache.
+ *
+ * Username không phân biệt hoa thường (như collation mặc định của SQL Server, và ClientRegistry):
+ * key là username viết thường. User trong cache dùng chung giữa các thread, không được sửa.
+ */
+public class UserCache {
+    private static final int MAX_ENTRIES = Math.max(1, ConfigUtil.getInt("userCache.maxEntries", 10000));
+    private static final long TTL_NANOS =
+            TimeUnit.SECONDS.toNanos(ConfigUtil.getLong("userCache.ttlSeconds", 300));
+    private static final long NEGATIVE_TTL_NANOS =
+            TimeUnit.SECONDS.toNanos(ConfigUtil.getLong("userCache.negativeTtlSeconds", 30));
+
+    /**
+     * user = null: username không tồn tại
+     */
+    private static final class Entry {
+        final User user;
+        final long expiresAt;
+
+        Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final Object lock = new Object();
+    // Thứ tự truy cập (LRU), key: username viết thường
+    private static final LinkedHashMap<String, Entry> byUsername = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= MAX_ENTRIES) {
+                return false;
+            }
+            if (eldest.getValue().user != null) {
+                byId.remove(eldest.getValue().user.getUserID());
+            }
+            evictions.increment();
+            return true;
+        }
+    };
+    // userId -> key trong byUsername (chỉ user tồn tại)
+    private static final Map<Integer, String> byId = new HashMap<>();
+
+    private static final long TOMBSTONE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final class Tombstone {
+        final long seq;
+        final long createdAt;
+
+        Tombstone(long seq, long createdAt) {
+            this.seq = seq;
+            this.createdAt = createdAt;
+        }
+    }
+
+    // key (username viết thường) hoặc userId -> lần invalidate gần nhất, theo thứ tự tạo
+    private static final LinkedHashMap<Object, Tombstone> tombstones = new LinkedHashMap<>();
+    // Tăng mỗi lần invalidate; load ghi lại giá trị lúc bắt đầu để so với tombstone
+    private static long seq = 0;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder negativeHits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder expirations = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+
+    /**
+     * User theo username, null nếu không tồn tại
+     */
+    static User getByUsername(String username) throws SQLException {
+        String key = key(username);
+        long startSeq;
+        synchronized (lock) {
+            Entry entry = lookup(key);
+            if (entry != null) {
+                return entry.user;
+            }
+            startSeq = seq;
+        }
+
+        long startedAt = System.nanoTime();
+        User user = UserDAO.queryUserByUsername(username);
+        store(key, user, startSeq, startedAt);
+        return user;
+    }
+
+    /**
+     * User theo id, null nếu không tồn tại (id không tồn tại không được cache)
+     */
+    static User getById(int userId) throws SQLException {
+        long startSeq;
+        synchronized (lock) {
+            String key = byId.get(userId);
+            Entry entry = key != null ? lookup(key) : null;
+            if (entry != null && entry.user != null) {
+                return entry.user;
+            }
+            if (key == null) {
+                misses.increment();
+            }
+            startSeq = seq;
+        }
+
+        long startedAt = System.nanoTime();
+        User user = UserDAO.queryUserById(userId);
+        if (user != null) {
+            store(key(user.getUsername()), user, startSeq, startedAt);
+        }
+        return user;
+    }
+
+    /**
+     * Entry còn hạn (đánh dấu vừa dùng), null nếu chưa có / đã hết hạn - gọi khi giữ lock
+     */
+    private static Entry lookup(String key) {
+        Entry entry = byUsername.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            remove(key);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (entry.user == null) {
+            negativeHits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Bỏ toàn bộ cache (benchmark cần cache nguội)
+     */
+    static void clear() {
+        synchronized (lock) {
+            byUsername.clear();
+            byId.clear();
+        }
+    }
+
+    /**
+     * Username của user đang có trong cache, không query database (null nếu không có / hết hạn).
+     * UsernameCache dùng trước khi tự query.
+     */
+    static String peekUsername(int userId) {
+        synchronized (lock) {
+            String key = byId.get(userId);
+            Entry entry = key != null ? byUsername.get(key) : null;
+            if (entry == null || entry.user == null || System.nanoTime() - entry.expiresAt >= 0) {
+                return null;
+            }
+            return entry.user.getUsername();
+        }
+    }
+
+    /**
+     * Đưa kết quả load vào cache, trừ khi key / userId bị invalidate sau khi load bắt đầu
+     */
+    private static void store(String key, User user, long startSeq, long startedAt) {
+        long ttl = user != null ? TTL_NANOS : NEGATIVE_TTL_NANOS;
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            long now = System.nanoTime();
+            purgeTombstones(now);
+            if (now - startedAt >= TOMBSTONE_NANOS || invalidatedSince(key, startSeq)
+                    || (user != null && invalidatedSince(user.getUserID(), startSeq))) {
+                return;
+            }
+            remove(key);
+            byUsername.put(key, new Entry(user, System.nanoTime() + ttl));
+            if (user != null) {
+                byId.put(user.getUserID(), key);
+            }
+        }
+    }
+
+    private static void remove(String key) {
+        Entry entry = byUsername.remove(key);
+        if (entry != null && entry.user != null) {
+            byId.remove(entry.user.getUserID());
+        }
+    }
+
+    private static boolean invalidatedSince(Object tombstoneKey, long startSeq) {
+        Tombstone tombstone = tombstones.get(tombstoneKey);
+        return tombstone != null && tombstone.seq > startSeq;
+    }
+
+    /**
+     * Ghi tombstone cho key / userId (gọi khi giữ lock)
+     */
+    private static void addTombstone(Object tombstoneKey) {
+        long now = System.nanoTime();
+        purgeTombstones(now);
+        seq++;
+        tombstones.remove(tombstoneKey);   // đưa xuống cuối thứ tự tạo
+        tombstones.put(tombstoneKey, new Tombstone(seq, now));
+    }
+
+    /**
+     * Bỏ các tombstone cũ hơn TOMBSTONE_NANOS - nằm ở đầu map nên chỉ tốn O(số tombstone bị bỏ)
+     */
+    private static void purgeTombstones(long now) {
+        Iterator<Tombstone> it = tombstones.values().iterator();
+        while (it.hasNext() && now - it.next().createdAt >= TOMBSTONE_NANOS) {
+            it.remove();
+        }
+    }
+
+    /**
+     * Username vừa được đăng ký / thay đổi (xóa cả entry "không tồn tại")
+     */
+    public static void invalidate(String username) {
+        String key = key(username);
+        synchronized (lock) {
+            addTombstone(key);
+            remove(key);
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * Dữ liệu user vừa thay đổi
+     */
+    public static void invalidate(int userId) {
+        synchronized (lock) {
+            addTombstone(userId);
+            String key = byId.get(userId);
+            if (key != null) {
+                remove(key);
+            }
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * last_seen vừa được cập nhật: thay User trong cache bằng bản có last_seen mới (giữ hạn cũ).
+     * Tombstone để load đang chạy (có thể đọc last_seen cũ) không ghi đè lên.
+     */
+    public static void updateLastSeen(int userId, LocalDateTime lastSeen) {
+        synchronized (lock) {
+            addTombstone(userId);
+            String key = byId.get(userId);
+            Entry entry = key != null ? byUsername.get(key) : null;
+            if (entry != null && entry.user != null) {
+                User old = entry.user;
+                User updated = new User(old.getUserID(), old.getUsername(), old.getPasswordHash(),
+                        old.getEmail(), old.getCreatedAt(), lastSeen);
+                byUsername.put(key, new Entry(updated, entry.expiresAt));
+            }
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // ============ METRICS ============
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * % lượt tra cứu trả về từ cache
+     */
+    public static long getHitRatePercent() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : hitCount * 100 / total;
+    }
+
+    public static long getExpirations() {
+        return expirations.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public static long getSize() {
+        synchronized (lock) {
+            return byUsername.size();
+        }
+    }
+
+    // self-test không cần database: đưa entry vào cache trực tiếp rồi kiểm tra LRU, entry
+    // "không tồn tại", tra theo id, invalidate và tombstone (chạy với -DuserCache.maxEntries=3)
+    public static void main(String[] args) throws SQLException {
+        System.out.println("=== USER CACHE TEST ===\n");
+        System.out.println("maxEntries = " + MAX_ENTRIES);
+
+        for (int i = 1; i <= MAX_ENTRIES; i++) {
+            store("user" + i, new User(i, "user" + i, "hash", null, null, null), seq, System.nanoTime());
+        }
+        store("ghost", null, seq, System.nanoTime());
+
+        System.out.println("\n1. LRU eviction:");
+        System.out.println("  size = " + getSize() + ", evictions = " + getEvictions()
+                + ", user1 evicted = " + (byId.get(1) == null));
+
+        System.out.println("\n2. Lookups from cache:");
+        System.out.println("  USER2 -> " + getByUsername("USER2").getUsername());
+        System.out.println("  ghost -> " + getByUsername("ghost") + " (negative entry)");
+        System.out.println("  id " + MAX_ENTRIES + " -> " + getById(MAX_ENTRIES).getUsername());
+
+        System.out.println("\n3. Invalidate:");
+        invalidate("ghost");
+        invalidate(2);
+        System.out.println("  ghost cached = " + byUsername.containsKey("ghost")
+                + ", user2 cached = " + byUsername.containsKey("user2"));
+
+        System.out.println("\n4. Tombstones (per key, not global):");
+        long startSeq = seq;
+        long startedAt = System.nanoTime();
+        invalidate("carol");   // đăng ký trong lúc 2 load đang chạy
+        store("carol", new User(100, "carol", "hash", null, null, null), startSeq, startedAt);
+        store("dave", new User(101, "dave", "hash", null, null, null), startSeq, startedAt);
+        System.out.println("  stale carol cached = " + byUsername.containsKey("carol")
+                + ", dave cached = " + byUsername.containsKey("dave"));
+        updateLastSeen(101, LocalDateTime.of(2025, 1, 1, 12, 0));
+        System.out.println("  last_seen updated in place: dave cached = " + byUsername.containsKey("dave")
+                + ", lastSeen = " + getById(101).getLastSeen());
+
+        System.out.println("\nhits = " + getHits() + " (negative " + getNegativeHits() + "), misses = "
+                + getMisses() + ", hit rate = " + getHitRatePercent() + "%, invalidations = " + getInvalidations());
+        System.out.println("\n=== TEST COMPLETED ===");
+    }
+}
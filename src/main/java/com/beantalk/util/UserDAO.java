@@ -5,6 +5,10 @@ import com.beantalk.model.User;
 
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 // Data Access Object for Users table
 public class UserDAO {
@@ -21,6 +25,8 @@ public class UserDAO {
             stmt.setTimestamp(4, Timestamp.valueOf(LocalDateTime.now()));
 
             int rows = stmt.executeUpdate();
+            // Xoa entry "khong ton tai" cua username nay trong cache
+            UserCache.invalidate(username);
             return rows > 0;
         } catch (SQLException e) {
             System.err.println("Error registering user: " + e.getMessage());
@@ -46,8 +52,18 @@ public class UserDAO {
         return false;
     }
 
-    // Lay user bang username
+    // Lay user bang username (qua cache, KHONG duoc sua User tra ve)
     public static User getUserByUsername(String username) {
+        try {
+            return UserCache.getByUsername(username);
+        } catch (SQLException e) {
+            System.err.println("Error getting user: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Query user truc tiep tu database (cache goi khi miss), null neu khong ton tai
+    static User queryUserByUsername(String username) throws SQLException {
         String sql = "SELECT * FROM Users WHERE username = ?";
 
         try(Connection conn = DatabaseManager.getConnection();
@@ -56,21 +72,8 @@ public class UserDAO {
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
 
-            if (rs.next()) {
-                return new User(
-                        rs.getInt("user_id"),
-                        rs.getString("username"),
-                        rs.getString("password_hash"),
-                        rs.getString("email"),
-                        rs.getTimestamp("created_at").toLocalDateTime(),
-                        rs.getTimestamp("last_seen") != null ?
-                                rs.getTimestamp("last_seen").toLocalDateTime() : null
-                );
-            }
-        } catch (SQLException e) {
-            System.err.println("Error getting user: " + e.getMessage());
+            return rs.next() ? readUser(rs) : null;
         }
-        return null;
     }
 
     // update last seen
@@ -80,9 +83,11 @@ public class UserDAO {
         try (Connection conn = DatabaseManager.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+            LocalDateTime now = LocalDateTime.now();
+            stmt.setTimestamp(1, Timestamp.valueOf(now));
             stmt.setInt(2, userID);
             stmt.executeUpdate();
+            UserCache.updateLastSeen(userID, now);
         } catch (SQLException e) {
             System.err.println("Error updating last_seen: " + e.getMessage());
         }
@@ -102,8 +107,18 @@ public class UserDAO {
         return null;
     }
 
-    // Lay user bang ID
+    // Lay user bang ID (qua cache, KHONG duoc sua User tra ve)
     public static User getUserById(int userId) {
+        try {
+            return UserCache.getById(userId);
+        } catch (SQLException e) {
+            System.err.println("Error getting user by ID: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Query user truc tiep tu database (cache goi khi miss), null neu khong ton tai
+    static User queryUserById(int userId) throws SQLException {
         String sql = "SELECT * FROM Users WHERE user_id = ?";
 
         try(Connection conn = DatabaseManager.getConnection();
@@ -112,21 +127,49 @@ public class UserDAO {
             stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
 
-            if (rs.next()) {
-                return new User(
-                        rs.getInt("user_id"),
-                        rs.getString("username"),
-                        rs.getString("password_hash"),
-                        rs.getString("email"),
-                        rs.getTimestamp("created_at").toLocalDateTime(),
-                        rs.getTimestamp("last_seen") != null ?
-                                rs.getTimestamp("last_seen").toLocalDateTime() : null
-                );
+            return rs.next() ? readUser(rs) : null;
+        }
+    }
+
+    private static User readUser(ResultSet rs) throws SQLException {
+        return new User(
+                rs.getInt("user_id"),
+                rs.getString("username"),
+                rs.getString("password_hash"),
+                rs.getString("email"),
+                rs.getTimestamp("created_at").toLocalDateTime(),
+                rs.getTimestamp("last_seen") != null ?
+                        rs.getTimestamp("last_seen").toLocalDateTime() : null
+        );
+    }
+
+    // Query username cua nhieu user bang 1 query IN (...) (UsernameCache goi khi miss),
+    // tra ve userId -> username, null neu loi
+    static Map<Integer, String> queryUsernames(Collection<Integer> userIds) {
+        Map<Integer, String> usernames = new HashMap<>();
+        if (userIds.isEmpty()) {
+            return usernames;
+        }
+        String placeholders = String.join(",", Collections.nCopies(userIds.size(), "?"));
+        String sql = "SELECT user_id, username FROM Users WHERE user_id IN (" + placeholders + ")";
+
+        try (Connection conn = DatabaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            int index = 1;
+            for (int userId : userIds) {
+                stmt.setInt(index++, userId);
+            }
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                usernames.put(rs.getInt("user_id"), rs.getString("username"));
             }
         } catch (SQLException e) {
-            System.err.println("Error getting user by ID: " + e.getMessage());
+            System.err.println("Error getting usernames: " + e.getMessage());
+            return null;
         }
-        return null;
+        return usernames;
     }
 
     /**
@@ -0,0 +1,200 @@
+package com.beantalk.util;
+
+import com.beantalk.model.Message;
+import com.beantalk.model.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tra userId -> username trên server, dùng để gắn tên người gửi cho cả 1 trang lịch sử.
+ * Xem UserCache trước (user vừa đăng nhập / vừa tra cứu đã có ở đó); chỉ giữ thêm username
+ * của những người gửi không có trong UserCache, tối đa usernameCache.maxEntries (LRU).
+ * Các id chưa có được query chung bằng 1 câu IN (...) thay vì getUserById cho từng dòng (N+1).
+ * Username không đổi sau khi đăng ký nên không cần invalidate.
+ */
+public class UsernameCache {
+    // SQL Server giới hạn 2100 tham số cho 1 câu lệnh
+    private static final int MAX_IDS_PER_QUERY = 1000;
+    private static final int MAX_ENTRIES = Math.max(1, ConfigUtil.getInt("usernameCache.maxEntries", 10000));
+
+    // Thứ tự truy cập (LRU), truy cập khi giữ lock của map
+    private static final LinkedHashMap<Integer, String> usernames = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            if (size() <= MAX_ENTRIES) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        }
+    };
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder batchQueries = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    /**
+     * userId -> username cho các id; id không tồn tại (hoặc lỗi database) không có trong map
+     */
+    public static Map<Integer, String> getUsernames(Collection<Integer> userIds) {
+        Map<Integer, String> result = new HashMap<>();
+        Set<Integer> missing = new LinkedHashSet<>();
+        for (int userId : userIds) {
+            if (result.containsKey(userId) || missing.contains(userId)) {
+                continue;
+            }
+            String username = UserCache.peekUsername(userId);
+            if (username == null) {
+                synchronized (usernames) {
+                    username = usernames.get(userId);
+                }
+            }
+            if (username != null) {
+                hits.increment();
+                result.put(userId, username);
+            } else {
+                missing.add(userId);
+                misses.increment();
+            }
+        }
+
+        List<Integer> chunk = new ArrayList<>(Math.min(missing.size(), MAX_IDS_PER_QUERY));
+        for (int userId : missing) {
+            chunk.add(userId);
+            if (chunk.size() == MAX_IDS_PER_QUERY) {
+                load(chunk, result);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            load(chunk, result);
+        }
+        return result;
+    }
+
+    private static void load(List<Integer> userIds, Map<Integer, String> result) {
+        batchQueries.increment();
+        Map<Integer, String> loaded = UserDAO.queryUsernames(userIds);
+        if (loaded == null) {
+            return;   // lỗi database - không cache
+        }
+        synchronized (usernames) {
+            usernames.putAll(loaded);
+        }
+        result.putAll(loaded);
+    }
+
+    /**
+     * Gắn senderUsername cho mọi tin trong trang (tối đa 1 query cho các id chưa có trong cache)
+     */
+    public static void resolveSenders(List<Message> messages) {
+        Set<Integer> senderIds = new LinkedHashSet<>();
+        for (Message message : messages) {
+            senderIds.add(message.getSenderID());
+        }
+        Map<Integer, String> names = getUsernames(senderIds);
+        for (Message message : messages) {
+            message.setSenderUsername(names.get(message.getSenderID()));
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getBatchQueries() {
+        return batchQueries.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static long getCachedUsers() {
+        synchronized (usernames) {
+            return usernames.size();
+        }
+    }
+
+    // benchmark (cần database): thời gian load 1 trang 500 tin của group, lấy trung vị sau vòng warm up
+    // - cách cũ: 1 query trang + query user theo id cho từng dòng (thẳng vào database, không qua UserCache)
+    // - cách mới: 1 query trang + tối đa 1 query IN cho người gửi chưa có trong cache
+    // chạy với database đã có dữ liệu: -Ddb.url=... -Ddb.username=... -Ddb.password=... UsernameCache [groupId] [rounds]
+    public static void main(String[] args) throws SQLException {
+        System.out.println("=== GROUP HISTORY SENDER BENCHMARK ===\n");
+
+        int groupId = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int rounds = args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : 5;
+        int pageSize = 500;
+
+        long[] perRowNanos = new long[rounds];
+        long[] coldNanos = new long[rounds];
+        long[] warmNanos = new long[rounds];
+        long coldQueries = 0;
+        long warmQueries = 0;
+        int pageRows = 0;
+
+        for (int round = -1; round < rounds; round++) {   // vòng -1 để warm up
+            long start = System.nanoTime();
+            List<Message> messages = MessageDAO.queryGroupMessagesPage(groupId, null, null, pageSize);
+            for (Message message : messages) {
+                User sender = UserDAO.queryUserById(message.getSenderID());
+                message.setSenderUsername(sender != null ? sender.getUsername() : null);
+            }
+            long perRow = System.nanoTime() - start;
+
+            // cache nguội: không còn username nào trong UserCache lẫn cache này
+            UserCache.clear();
+            synchronized (usernames) {
+                usernames.clear();
+            }
+            long queriesBefore = getBatchQueries();
+            start = System.nanoTime();
+            MessageDAO.getGroupMessagesPage(groupId, null, null, pageSize);
+            long cold = System.nanoTime() - start;
+            coldQueries = getBatchQueries() - queriesBefore;
+
+            queriesBefore = getBatchQueries();
+            start = System.nanoTime();
+            MessageDAO.getGroupMessagesPage(groupId, null, null, pageSize);
+            long warm = System.nanoTime() - start;
+            warmQueries = getBatchQueries() - queriesBefore;
+
+            if (round >= 0) {
+                perRowNanos[round] = perRow;
+                coldNanos[round] = cold;
+                warmNanos[round] = warm;
+            }
+            pageRows = messages.size();
+        }
+
+        System.out.println("Group#" + groupId + ": " + pageRows + " messages, median of " + rounds + " rounds\n");
+        System.out.println("Query per row:        " + medianMillis(perRowNanos) + " ms, " + (1 + pageRows) + " queries");
+        System.out.println("Batch (cold cache):   " + medianMillis(coldNanos) + " ms, " + (1 + coldQueries) + " queries");
+        System.out.println("Batch (warm cache):   " + medianMillis(warmNanos) + " ms, " + (1 + warmQueries) + " queries");
+
+        System.out.println("\n=== BENCHMARK COMPLETED ===");
+    }
+
+    private static long medianMillis(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]);
+    }
+}